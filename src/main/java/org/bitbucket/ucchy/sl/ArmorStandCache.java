@@ -0,0 +1,393 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.ArmorStand;
+import org.bukkit.entity.Entity;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntitySpawnEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * ブロック位置をキーとして、そこに立っているArmorStandを保持するキャッシュ。
+ * エンティティのスポーン・死亡と、チャンクのロード・アンロードのイベントで更新し、
+ * スタンドが別のブロックで見つかった場合は、その場で登録し直す。
+ * 取りこぼしやスタンドの移動によるずれは、定期的なセルフチェックで補正する。
+ * 死亡したスタンドのUUIDは、一定数まで覚えておく。
+ * @author ucchy
+ */
+public class ArmorStandCache implements Listener {
+
+    /** 覚えておく、死亡したスタンドのUUIDの最大数 */
+    private static final int MAX_DEAD_STANDS = 10000;
+
+    /** スタンドを登録している位置 */
+    private static class Entry {
+
+        String world;
+        long key;
+        ArmorStand stand;
+
+        Entry(String world, long key, ArmorStand stand) {
+            this.world = world;
+            this.key = key;
+            this.stand = stand;
+        }
+    }
+
+    /** ワールド名をキーとした、ブロック座標とArmorStandのマップ */
+    private HashMap<String, LongObjectHashMap<ArmorStand>> stands;
+
+    /** スタンドのUUIDをキーとした、登録している位置のマップ */
+    private HashMap<UUID, Entry> entries;
+
+    /** 死亡したスタンドのUUID。古いものから忘れる */
+    private LinkedHashMap<UUID, Boolean> deadStands;
+
+    /**
+     * コンストラクタ
+     */
+    public ArmorStandCache() {
+        stands = new HashMap<String, LongObjectHashMap<ArmorStand>>();
+        entries = new HashMap<UUID, Entry>();
+        deadStands = new LinkedHashMap<UUID, Boolean>() {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+                return size() > MAX_DEAD_STANDS;
+            }
+        };
+    }
+
+    /**
+     * ロード済みの全チャンクからキャッシュを作り直す
+     * @param worlds 対象のワールド
+     */
+    public void rebuild(Iterable<World> worlds) {
+        stands.clear();
+        entries.clear();
+        for ( World world : worlds ) {
+            for ( Chunk chunk : world.getLoadedChunks() ) {
+                addChunk(chunk);
+            }
+        }
+    }
+
+    /**
+     * 指定された位置にあるArmorStandを取得する
+     * @param location 位置
+     * @return ArmorStand、無い場合はnull
+     */
+    public ArmorStand getArmorStand(Location location) {
+        return getArmorStand(location.getWorld().getName(), BlockPosition.pack(location));
+    }
+
+    /**
+     * 指定された位置にあるArmorStandを取得する
+     * @param world ワールド名
+     * @param key ブロック座標のlong値
+     * @return ArmorStand、無い場合はnull
+     */
+    public ArmorStand getArmorStand(String world, long key) {
+
+        LongObjectHashMap<ArmorStand> map = stands.get(world);
+        if ( map == null ) return null;
+
+        ArmorStand stand = map.get(key);
+        if ( stand == null ) return null;
+
+        // 既に消えているか、別のブロックへ動いている場合は、ここで補正する
+        if ( !validate(world, key, stand) ) {
+            return map.get(key);
+        }
+        return stand;
+    }
+
+    /**
+     * 指定されたUUIDのArmorStandを取得する。登録位置に関係なく、登録されていれば見つかる。
+     * @param uuid スタンドのUUID
+     * @return ArmorStand、登録されていないか、既に消えている場合はnull
+     */
+    public ArmorStand getArmorStand(UUID uuid) {
+        Entry entry = entries.get(uuid);
+        if ( entry == null || !entry.stand.isValid() ) return null;
+        return entry.stand;
+    }
+
+    /**
+     * 指定されたUUIDのArmorStandが、死亡したことを確認済みかどうかを返す。
+     * アンロードされたチャンクにあるだけのスタンドは、死亡したことにならない。
+     * @param uuid スタンドのUUID
+     * @return 死亡したことを確認済みかどうか
+     */
+    public boolean isDead(UUID uuid) {
+        return deadStands.containsKey(uuid);
+    }
+
+    /**
+     * 指定された位置にArmorStandがあるかどうかを返す
+     * @param location 位置
+     * @return ArmorStandがあるかどうか
+     */
+    public boolean hasArmorStand(Location location) {
+        return getArmorStand(location) != null;
+    }
+
+    /**
+     * ArmorStandをキャッシュに登録する。
+     * 既に別の位置で登録されている場合は、その位置から外して登録し直す。
+     * @param stand ArmorStand
+     */
+    public void put(ArmorStand stand) {
+
+        Location location = stand.getLocation();
+        String world = location.getWorld().getName();
+        long key = BlockPosition.pack(location);
+
+        // 前回の登録位置と同じなら、何もしない
+        Entry prev = entries.get(stand.getUniqueId());
+        if ( prev != null && prev.key == key && prev.world.equals(world)
+                && getMap(world).get(key) == stand ) {
+            return;
+        }
+
+        if ( prev != null ) {
+            removeEntry(stand, prev, true);
+        }
+        getMap(world).put(key, stand);
+        entries.put(stand.getUniqueId(), new Entry(world, key, stand));
+    }
+
+    /**
+     * ArmorStandをキャッシュから削除する。
+     * 同じブロックに別のスタンドがある場合は、そのスタンドを登録し直す。
+     * @param stand ArmorStand
+     */
+    public void remove(ArmorStand stand) {
+        remove(stand, true);
+    }
+
+    /**
+     * キャッシュの全エントリを確認し、消えたスタンドや動いたスタンドを補正する
+     */
+    public void selfCheck() {
+        for ( String world : new ArrayList<String>(stands.keySet()) ) {
+            LongObjectHashMap<ArmorStand> map = stands.get(world);
+            if ( map == null ) continue;
+            for ( long key : map.keys() ) {
+                ArmorStand stand = map.get(key);
+                if ( stand != null ) {
+                    validate(world, key, stand);
+                }
+            }
+        }
+    }
+
+    /**
+     * セルフチェックを定期実行するタスクを開始する
+     * @param plugin プラグイン
+     * @param interval 実行間隔（秒）
+     */
+    public void startSelfCheckTask(StandLock plugin, int interval) {
+        long ticks = interval * 20L;
+        new BukkitRunnable() {
+            public void run() {
+                selfCheck();
+            }
+        }.runTaskTimer(plugin, ticks, ticks);
+    }
+
+    /**
+     * エンティティがスポーンした時に呼び出されるイベント
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onEntitySpawn(EntitySpawnEvent event) {
+        if ( event.getEntity() instanceof ArmorStand ) {
+            put((ArmorStand)event.getEntity());
+        }
+    }
+
+    /**
+     * エンティティが死亡した時に呼び出されるイベント
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onEntityDeath(EntityDeathEvent event) {
+        if ( event.getEntity() instanceof ArmorStand ) {
+            remove((ArmorStand)event.getEntity());
+            deadStands.put(event.getEntity().getUniqueId(), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * チャンクがロードされた時に呼び出されるイベント
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        addChunk(event.getChunk());
+    }
+
+    /**
+     * チャンクがアンロードされた時に呼び出されるイベント
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+
+        // 同じチャンクのスタンドは一緒にアンロードされるので、ブロックを調べ直さない
+        for ( Entity entity : event.getChunk().getEntities() ) {
+            if ( entity instanceof ArmorStand ) {
+                remove((ArmorStand)entity, false);
+            }
+        }
+    }
+
+    /**
+     * ワールドがアンロードされた時に呼び出されるイベント
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+
+        String world = event.getWorld().getName();
+        stands.remove(world);
+        Iterator<Entry> it = entries.values().iterator();
+        while ( it.hasNext() ) {
+            if ( it.next().world.equals(world) ) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * チャンク内のArmorStandを全てキャッシュに登録する
+     * @param chunk チャンク
+     */
+    private void addChunk(Chunk chunk) {
+        for ( Entity entity : chunk.getEntities() ) {
+            if ( entity instanceof ArmorStand ) {
+                put((ArmorStand)entity);
+            }
+        }
+    }
+
+    /**
+     * ArmorStandをキャッシュから削除する
+     * @param stand ArmorStand
+     * @param rescan 同じブロックの別のスタンドを登録し直すかどうか
+     */
+    private void remove(ArmorStand stand, boolean rescan) {
+
+        Entry entry = entries.remove(stand.getUniqueId());
+        if ( entry != null ) {
+            removeEntry(stand, entry, rescan);
+        }
+    }
+
+    /**
+     * 登録位置から、ArmorStandを外す
+     * @param stand ArmorStand
+     * @param entry 登録位置
+     * @param rescan 同じブロックの別のスタンドを登録し直すかどうか
+     */
+    private void removeEntry(ArmorStand stand, Entry entry, boolean rescan) {
+
+        LongObjectHashMap<ArmorStand> map = stands.get(entry.world);
+        if ( map == null || map.get(entry.key) != stand ) return;
+
+        map.remove(entry.key);
+        if ( rescan ) {
+            rescan(entry.world, entry.key, stand);
+        }
+    }
+
+    /**
+     * 指定されたブロックに立っている、別のArmorStandを探して登録する
+     * @param world ワールド名
+     * @param key ブロック座標のlong値
+     * @param exclude 対象外にするArmorStand
+     */
+    private void rescan(String world, long key, ArmorStand exclude) {
+
+        World w = Bukkit.getWorld(world);
+        if ( w == null ) return;
+
+        int chunkX = BlockPosition.getX(key) >> 4;
+        int chunkZ = BlockPosition.getZ(key) >> 4;
+        if ( !w.isChunkLoaded(chunkX, chunkZ) ) return;
+
+        for ( Entity entity : w.getChunkAt(chunkX, chunkZ).getEntities() ) {
+            if ( entity instanceof ArmorStand && entity != exclude && entity.isValid()
+                    && BlockPosition.pack(entity.getLocation()) == key ) {
+                put((ArmorStand)entity);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 指定したワールドのマップを取得する。無い場合は作成する。
+     * @param world ワールド名
+     * @return マップ
+     */
+    private LongObjectHashMap<ArmorStand> getMap(String world) {
+        LongObjectHashMap<ArmorStand> map = stands.get(world);
+        if ( map == null ) {
+            map = new LongObjectHashMap<ArmorStand>();
+            stands.put(world, map);
+        }
+        return map;
+    }
+
+    /**
+     * キャッシュのエントリが正しいかどうかを確認し、正しくなければ補正する。
+     * 消えていれば外し、別のブロックへ動いていれば、動いた先へ登録し直す。
+     * どちらの場合も、元のブロックに別のスタンドがあれば、そのスタンドを登録し直す。
+     * @param world エントリのワールド名
+     * @param key エントリのキー
+     * @param stand エントリのArmorStand
+     * @return エントリが正しかったかどうか
+     */
+    private boolean validate(String world, long key, ArmorStand stand) {
+
+        if ( !stand.isValid() ) {
+            // 死亡イベントを取りこぼしていても、ここで死亡を確認できる
+            if ( stand.isDead() ) {
+                deadStands.put(stand.getUniqueId(), Boolean.TRUE);
+            }
+            entries.remove(stand.getUniqueId());
+            removeEntry(stand, new Entry(world, key, stand), true);
+            return false;
+        }
+
+        Location location = stand.getLocation();
+        if ( BlockPosition.pack(location) != key
+                || !location.getWorld().getName().equals(world) ) {
+            removeEntry(stand, new Entry(world, key, stand), true);
+            put(stand);
+            return false;
+        }
+        return true;
+    }
+}
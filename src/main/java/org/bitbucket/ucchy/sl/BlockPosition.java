@@ -0,0 +1,89 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import org.bukkit.Location;
+
+/**
+ * ブロック座標を、1つのlong値に詰めて扱うためのユーティリティクラス。
+ * x と z は26ビット（±33,554,431）、y は12ビット（±2,047）で格納する。
+ * @author ucchy
+ */
+public class BlockPosition {
+
+    private static final int XZ_BITS = 26;
+    private static final int Y_BITS = 12;
+    private static final long XZ_MASK = (1L << XZ_BITS) - 1;
+    private static final long Y_MASK = (1L << Y_BITS) - 1;
+    private static final int X_SHIFT = XZ_BITS + Y_BITS;
+    private static final int Z_SHIFT = Y_BITS;
+
+    /**
+     * ブロック座標をlong値に変換する
+     * @param x X座標
+     * @param y Y座標
+     * @param z Z座標
+     * @return 変換後の値
+     */
+    public static long pack(int x, int y, int z) {
+        return ((x & XZ_MASK) << X_SHIFT) | ((z & XZ_MASK) << Z_SHIFT) | (y & Y_MASK);
+    }
+
+    /**
+     * Locationのブロック座標をlong値に変換する
+     * @param location Location
+     * @return 変換後の値
+     */
+    public static long pack(Location location) {
+        return pack(location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    /**
+     * チャンク座標をlong値に変換する
+     * @param chunkX チャンクのX座標
+     * @param chunkZ チャンクのZ座標
+     * @return 変換後の値
+     */
+    public static long packChunk(int chunkX, int chunkZ) {
+        return ((long)chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * ブロック座標のlong値から、そのブロックを含むチャンクのlong値を取得する
+     * @param key ブロック座標のlong値
+     * @return チャンク座標のlong値
+     */
+    public static long toChunk(long key) {
+        return packChunk(getX(key) >> 4, getZ(key) >> 4);
+    }
+
+    /**
+     * long値からX座標を取り出す
+     * @param key long値
+     * @return X座標
+     */
+    public static int getX(long key) {
+        return (int)(key >> X_SHIFT);
+    }
+
+    /**
+     * long値からY座標を取り出す
+     * @param key long値
+     * @return Y座標
+     */
+    public static int getY(long key) {
+        return (int)(key << (64 - Y_BITS) >> (64 - Y_BITS));
+    }
+
+    /**
+     * long値からZ座標を取り出す
+     * @param key long値
+     * @return Z座標
+     */
+    public static int getZ(long key) {
+        return (int)(key << (64 - X_SHIFT) >> (64 - XZ_BITS));
+    }
+}
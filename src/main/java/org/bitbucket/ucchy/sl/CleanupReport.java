@@ -0,0 +1,188 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * クリーンアップで削除される予定のロックデータを、レポートファイルへ書き出すクラス（ドライラン用）。
+ * 書き出しは専用のスレッドで順番に行い、ロックデータを溜め込まずに1件ずつ書き出す。
+ * @author ucchy
+ */
+public class CleanupReport {
+
+    private static final String FILE_NAME_FORMAT = "'cleanup-report-'yyyyMMdd-HHmmss'.txt'";
+
+    private File file;
+    private String title;
+    private OwnerNameCache names;
+    private SimpleDateFormat format;
+    private ExecutorService executor;
+
+    private BufferedWriter writer;
+    private int count;
+    private boolean failed;
+
+    /**
+     * コンストラクタ。メインスレッドから呼び出すこと。
+     * @param folder レポートファイルを置くフォルダ
+     * @param title レポートの見出し
+     * @param names オーナー名のキャッシュ
+     */
+    public CleanupReport(File folder, String title, OwnerNameCache names) {
+        this(folder, title, names, Messages.get("DateTimeFormat"));
+    }
+
+    /**
+     * コンストラクタ
+     * @param folder レポートファイルを置くフォルダ
+     * @param title レポートの見出し
+     * @param names オーナー名のキャッシュ
+     * @param dateTimeFormat ロックした日時の書式
+     */
+    public CleanupReport(File folder, String title, OwnerNameCache names, String dateTimeFormat) {
+        this.file = new File(folder, new SimpleDateFormat(FILE_NAME_FORMAT).format(new Date()));
+        this.title = title;
+        this.names = names;
+        this.format = new SimpleDateFormat(dateTimeFormat);
+        this.executor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * レポートファイルを取得する
+     * @return レポートファイル
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 削除される予定のロックデータを、レポートに追加する
+     * @param record ロックデータ
+     */
+    public void add(final LockRecord record) {
+        executor.execute(new Runnable() {
+            public void run() {
+                write(record);
+            }
+        });
+    }
+
+    /**
+     * カーソルから読み出したロックデータのうち、指定されたワールドのものを、レポートに追加する。
+     * カーソルは、書き出し用のスレッドで読み出す。読み出しに失敗した場合は、レポートの作成に失敗したものとする。
+     * @param cursor カーソル
+     * @param world ワールド名
+     */
+    public void addAll(final Iterator<LockRecord> cursor, final String world) {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    while ( cursor.hasNext() ) {
+                        LockRecord record = cursor.next();
+                        if ( record.world.equals(world) ) {
+                            write(record);
+                        }
+                    }
+                } catch (LockRecordCursor.ReadException e) {
+                    // 途中までのレポートは、失敗として扱う
+                    e.printStackTrace();
+                    failed = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * 合計を書き出してレポートを閉じる。閉じた後は、追加できない。
+     * @param callback 書き出しが終わった後に、書き出し用のスレッドで実行する処理、不要ならnull
+     */
+    public void close(final Callback callback) {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    open();
+                    writer.write("# total: " + count);
+                    writer.newLine();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failed = true;
+                } finally {
+                    if ( writer != null ) {
+                        try {
+                            writer.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            failed = true;
+                        }
+                    }
+                }
+                if ( callback != null ) {
+                    callback.done(failed ? -1 : count);
+                }
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * レポートの書き出しが終わった時に呼び出される処理
+     */
+    public interface Callback {
+
+        /**
+         * @param count レポートに書き出したロックデータの数、失敗した場合は-1
+         */
+        public void done(int count);
+    }
+
+    /**
+     * ロックデータを1行書き出す。書き出し用のスレッドから呼び出される。
+     * @param record ロックデータ
+     */
+    private void write(LockRecord record) {
+
+        if ( failed ) return;
+
+        try {
+            open();
+            String name = names.getName(record.owner);
+            writer.write(String.format("%s,%d,%d,%d,%s,%s,%s",
+                    record.world, record.x, record.y, record.z, record.owner,
+                    name == null ? "" : name,
+                    record.time < 0 ? "" : format.format(new Date(record.time))));
+            writer.newLine();
+            count++;
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed = true;
+        }
+    }
+
+    /**
+     * レポートファイルを開いて、見出しを書き出す。既に開いている場合は何もしない。
+     * @throws IOException
+     */
+    private void open() throws IOException {
+
+        if ( writer != null ) return;
+
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        writer.write("# " + title);
+        writer.newLine();
+        writer.write("# world,x,y,z,owner,name,time");
+        writer.newLine();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * ワールドごと・オーナーごとのロック数を保持するクラス。
+ * 全てのロックデータをメモリに置かない保存先で、ロック数の問い合わせに使う。
+ * @author ucchy
+ */
+public class LockCounter {
+
+    /** ロック数。ワールド名、オーナーの順のマップ */
+    private HashMap<String, HashMap<UUID, Integer>> counts;
+
+    /**
+     * コンストラクタ
+     */
+    public LockCounter() {
+        counts = new HashMap<String, HashMap<UUID, Integer>>();
+    }
+
+    /**
+     * ロック数を増減する
+     * @param world ワールド名
+     * @param owner オーナー
+     * @param delta 増減する数
+     */
+    public void add(String world, UUID owner, int delta) {
+
+        HashMap<UUID, Integer> owners = counts.get(world);
+        if ( owners == null ) {
+            owners = new HashMap<UUID, Integer>();
+            counts.put(world, owners);
+        }
+        Integer num = owners.get(owner);
+        int value = (num == null ? 0 : num) + delta;
+        if ( value > 0 ) {
+            owners.put(owner, value);
+        } else {
+            owners.remove(owner);
+            if ( owners.isEmpty() ) {
+                counts.remove(world);
+            }
+        }
+    }
+
+    /**
+     * 指定したオーナーの、全ワールドのロック数を返す
+     * @param owner オーナー
+     * @return ロック数
+     */
+    public int getCount(UUID owner) {
+        int count = 0;
+        for ( HashMap<UUID, Integer> owners : counts.values() ) {
+            Integer num = owners.get(owner);
+            if ( num != null ) {
+                count += num;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 指定したワールドの、指定したオーナーのロック数を返す
+     * @param world ワールド名
+     * @param owner オーナー
+     * @return ロック数
+     */
+    public int getCount(String world, UUID owner) {
+        HashMap<UUID, Integer> owners = counts.get(world);
+        if ( owners == null ) return 0;
+        Integer num = owners.get(owner);
+        return num == null ? 0 : num;
+    }
+
+    /**
+     * 指定したワールドのロック数を返す
+     * @param world ワールド名
+     * @return ロック数
+     */
+    public int getWorldCount(String world) {
+        HashMap<UUID, Integer> owners = counts.get(world);
+        if ( owners == null ) return 0;
+        int count = 0;
+        for ( int num : owners.values() ) {
+            count += num;
+        }
+        return count;
+    }
+
+    /**
+     * 指定したワールドのロック数を削除する
+     * @param world ワールド名
+     * @return 削除したかどうか
+     */
+    public boolean removeWorld(String world) {
+        return counts.remove(world) != null;
+    }
+
+    /**
+     * ロック数のあるワールド名を返す
+     * @return ワールド名
+     */
+    public Set<String> getWorlds() {
+        return counts.keySet();
+    }
+
+    /**
+     * 指定したワールドでロック数のあるオーナーを返す
+     * @param world ワールド名
+     * @return オーナー
+     */
+    public Set<UUID> getOwners(String world) {
+        HashMap<UUID, Integer> owners = counts.get(world);
+        if ( owners == null ) return new HashMap<UUID, Integer>().keySet();
+        return owners.keySet();
+    }
+
+    /**
+     * 複製を作成する
+     * @return 複製
+     */
+    public LockCounter copy() {
+        LockCounter copy = new LockCounter();
+        for ( String world : counts.keySet() ) {
+            copy.counts.put(world, new HashMap<UUID, Integer>(counts.get(world)));
+        }
+        return copy;
+    }
+}
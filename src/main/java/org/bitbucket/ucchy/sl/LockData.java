@@ -26,6 +26,9 @@ public class LockData {
     /** ロック日時 */
     private long time;
 
+    /** ロック対象のArmorStandのUUID、不明な場合はnull */
+    private UUID entityUuid;
+
     /**
      * コンストラクタ
      * @param uuid ロック所有者のUUID
@@ -33,9 +36,21 @@ public class LockData {
      * @param time ロック日時
      */
     public LockData(UUID uuid, Location location, long time) {
+        this(uuid, location, time, null);
+    }
+
+    /**
+     * コンストラクタ
+     * @param uuid ロック所有者のUUID
+     * @param location ロック対象のLocation
+     * @param time ロック日時
+     * @param entityUuid ロック対象のArmorStandのUUID、不明な場合はnull
+     */
+    public LockData(UUID uuid, Location location, long time, UUID entityUuid) {
         this.uuid = uuid;
         this.location = location;
         this.time = time;
+        this.entityUuid = entityUuid;
     }
 
     /**
@@ -61,6 +76,30 @@ public class LockData {
         return location;
     }
 
+    /**
+     * ロック対象の場所を設定する
+     * @param location 場所
+     */
+    protected void setLocation(Location location) {
+        this.location = location;
+    }
+
+    /**
+     * ロック対象のArmorStandのUUIDを返す
+     * @return ArmorStandのUUID、不明な場合はnull
+     */
+    public UUID getEntityUuid() {
+        return entityUuid;
+    }
+
+    /**
+     * ロック対象のArmorStandのUUIDを設定する
+     * @param entityUuid ArmorStandのUUID
+     */
+    protected void setEntityUuid(UUID entityUuid) {
+        this.entityUuid = entityUuid;
+    }
+
     /**
      * ロック日時を返す
      * @return ロック日時
@@ -74,6 +113,6 @@ public class LockData {
      * @see java.lang.Object#toString()
      */
     public String toString() {
-        return String.format("LockData{uuid=%s,location=%s}", uuid, location);
+        return String.format("LockData{uuid=%s,location=%s,entity=%s}", uuid, location, entityUuid);
     }
 }
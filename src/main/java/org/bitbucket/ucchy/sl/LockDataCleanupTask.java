@@ -1,64 +1,437 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
 package org.bitbucket.ucchy.sl;
 
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.ArmorStand;
 import org.bukkit.scheduler.BukkitRunnable;
 
 /**
- * プラグイン起動から一定時間後に、全ワールドの額縁を調べて、
- * 既に額縁が存在しなくなっているロックデータをクリーンアップするタスク。
+ * 読み込まれているチャンクのスタンドを調べて、
+ * 既にスタンドが存在しなくなっているロックデータをクリーンアップするタスク。
+ * 通常は、1tick あたりの処理時間に上限を設けて、チャンク単位で複数tickに分けて処理する。
+ * 全体照合の場合は、メインスレッドでスタンドとロックデータの位置とUUIDを配列に写し取り、
+ * 照合は別スレッドで行って、削除だけをメインスレッドへ戻す。
+ * ドライランの場合は、ロックデータを削除せずに、削除する予定のロックデータをレポートファイルへ書き出す。
  * @author ucchy
  */
 public class LockDataCleanupTask extends BukkitRunnable {
 
+    /** 調査待ちのチャンク */
+    private static class PendingChunk {
+
+        String world;
+        int chunkX;
+        int chunkZ;
+
+        PendingChunk(String world, int chunkX, int chunkZ) {
+            this.world = world;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+        }
+    }
+
+    /** 全体照合のための、1ワールド分の位置とUUIDのスナップショット */
+    private static class SweepWorld {
+
+        String world;
+
+        /** スタンドのブロック座標 */
+        long[] stands;
+
+        /** スタンドのUUIDの上位64ビットと下位64ビット */
+        long[] standMost;
+        long[] standLeast;
+
+        /** ロード済みチャンクのチャンク座標 */
+        long[] chunks;
+
+        /** ロックデータのブロック座標 */
+        long[] locks;
+
+        /** ロックデータに紐付いたスタンドのUUID、未登録の旧データは両方とも0 */
+        long[] lockMost;
+        long[] lockLeast;
+
+        /** 照合の結果、スタンドが見つからなかったロックデータの、locksでの添字 */
+        int[] stale;
+
+        /**
+         * ロックデータとスタンドを照合する。メインスレッド以外から呼び出される。
+         * スタンドのUUIDが紐付いたロックデータはUUIDで、旧データは位置で照合する。
+         */
+        void diff() {
+
+            Arrays.sort(stands);
+            Arrays.sort(chunks);
+            HashSet<UUID> uuids = new HashSet<UUID>();
+            for ( int i=0; i<standMost.length; i++ ) {
+                uuids.add(new UUID(standMost[i], standLeast[i]));
+            }
+
+            int[] result = new int[locks.length];
+            int count = 0;
+            for ( int i=0; i<locks.length; i++ ) {
+
+                // アンロードされているチャンクは、スタンドが読み込まれていないので調べない
+                if ( Arrays.binarySearch(chunks, BlockPosition.toChunk(locks[i])) < 0 ) continue;
+
+                UUID uuid = getLockUuid(i);
+                if ( uuid != null ? !uuids.contains(uuid)
+                        : Arrays.binarySearch(stands, locks[i]) < 0 ) {
+                    result[count++] = i;
+                }
+            }
+            stale = Arrays.copyOf(result, count);
+        }
+
+        /**
+         * ロックデータに紐付いたスタンドのUUIDを取得する
+         * @param index locksでの添字
+         * @return UUID、未登録の旧データはnull
+         */
+        UUID getLockUuid(int index) {
+            if ( lockMost[index] == 0 && lockLeast[index] == 0 ) return null;
+            return new UUID(lockMost[index], lockLeast[index]);
+        }
+    }
+
+    private long intervalMillis;
+    private long budgetNanos;
+    private boolean fullSweep;
+    private boolean dryRun;
+
+    private ArrayDeque<PendingChunk> pending;
+    private long nextPassTime;
+    private int checkedChunks;
+    private int removedLocks;
+    private boolean sweeping;
+    private CleanupReport report;
+
+    /**
+     * コンストラクタ
+     * @param interval 2回目以降の実行間隔（分）、0以下なら1回だけ実行する
+     * @param budget 1tick あたりの処理時間の上限（ミリ秒）
+     * @param fullSweep 全てのロックデータを別スレッドで一度に照合するかどうか
+     * @param dryRun ロックデータを削除せずに、レポートファイルへ書き出すかどうか
+     */
+    public LockDataCleanupTask(int interval, int budget, boolean fullSweep, boolean dryRun) {
+        this.intervalMillis = interval * 60L * 1000L;
+        this.budgetNanos = Math.max(budget, 1) * 1000000L;
+        this.fullSweep = fullSweep;
+        this.dryRun = dryRun;
+    }
+
     /**
      * @see java.lang.Runnable#run()
      */
     @Override
     public void run() {
 
-        // 全てのスタンドの位置を取得する
-        ArrayList<String> locs = new ArrayList<String>();
+        // 別スレッドで照合中なら、結果が戻ってくるのを待つ
+        if ( sweeping ) return;
+
+        // 調査中でなければ、次の調査を開始する
+        if ( pending == null ) {
+            if ( System.currentTimeMillis() < nextPassTime ) return;
+            if ( dryRun ) {
+                StandLock plugin = StandLock.getInstance();
+                report = new CleanupReport(plugin.getDataFolder(),
+                        "StandLock cleanup task (dry run)", plugin.getOwnerNameCache());
+            }
+            if ( fullSweep ) {
+                startSweep();
+                return;
+            }
+            startPass();
+        }
+
+        LockDataManager manager = StandLock.getInstance().getLockDataManager();
+        ArmorStandCache standCache = StandLock.getInstance().getArmorStandCache();
+        boolean isEnableLogging = StandLock.getInstance().getStandLockConfig().isCleanupTaskLog();
+        Logger logger = StandLock.getInstance().getLogger();
+        long deadline = System.nanoTime() + budgetNanos;
+
+        // 上限時間に達するまで、チャンクを1つずつ調べる
+        while ( !pending.isEmpty() && System.nanoTime() < deadline ) {
+
+            PendingChunk target = pending.poll();
+            World world = Bukkit.getWorld(target.world);
+
+            // 調査までの間にアンロードされたチャンクは、スタンドが読み込まれていないので調べない
+            if ( world == null || !world.isChunkLoaded(target.chunkX, target.chunkZ) ) continue;
+
+            // チャンク内のロックデータを確認し、スタンドが既に無い場合は、ロックデータを削除する。
+            Chunk chunk = world.getChunkAt(target.chunkX, target.chunkZ);
+            if ( dryRun ) {
+                for ( LockData data : manager.getStaleLockData(chunk, standCache) ) {
+                    report.add(LockRecord.fromLockData(data));
+                    removedLocks++;
+                }
+                checkedChunks++;
+                continue;
+            }
+            for ( LockData data : manager.verifyChunk(chunk, standCache) ) {
+                removedLocks++;
+                if ( isEnableLogging ) {
+                    logger.info("LockDataManager cleanup " + getDescription(data) + ".");
+                }
+            }
+            checkedChunks++;
+        }
+
+        if ( !pending.isEmpty() ) return;
+
+        // 今回の調査が終わった
+        pending = null;
+        if ( isEnableLogging ) {
+            logger.info("LockDataManager cleanup finished. checked " + checkedChunks
+                    + " chunks, removed " + removedLocks + " locks.");
+        }
+        finishPass();
+    }
+
+    /**
+     * 全体照合を開始する。スタンドとロックデータの位置を写し取り、照合を別スレッドへ渡す。
+     */
+    private void startSweep() {
+
+        LockDataManager manager = StandLock.getInstance().getLockDataManager();
+        final ArrayList<SweepWorld> snapshots = new ArrayList<SweepWorld>();
 
         for ( World world : Bukkit.getWorlds() ) {
-            for ( ArmorStand stand : world.getEntitiesByClass(ArmorStand.class) ) {
-                locs.add(getDescriptionFromLocation(stand.getLocation()));
+
+            List<LockData> locks = manager.getWorldLockData(world.getName());
+            if ( locks.isEmpty() ) continue;
+
+            SweepWorld snapshot = new SweepWorld();
+            snapshot.world = world.getName();
+            snapshot.locks = new long[locks.size()];
+            snapshot.lockMost = new long[locks.size()];
+            snapshot.lockLeast = new long[locks.size()];
+            for ( int i=0; i<locks.size(); i++ ) {
+                LockData data = locks.get(i);
+                snapshot.locks[i] = BlockPosition.pack(data.getLocation());
+                if ( data.getEntityUuid() != null ) {
+                    snapshot.lockMost[i] = data.getEntityUuid().getMostSignificantBits();
+                    snapshot.lockLeast[i] = data.getEntityUuid().getLeastSignificantBits();
+                }
+            }
+
+            Chunk[] chunks = world.getLoadedChunks();
+            snapshot.chunks = new long[chunks.length];
+            for ( int i=0; i<chunks.length; i++ ) {
+                snapshot.chunks[i] = BlockPosition.packChunk(chunks[i].getX(), chunks[i].getZ());
+            }
+
+            Collection<ArmorStand> stands = world.getEntitiesByClass(ArmorStand.class);
+            snapshot.stands = new long[stands.size()];
+            snapshot.standMost = new long[stands.size()];
+            snapshot.standLeast = new long[stands.size()];
+            int index = 0;
+            for ( ArmorStand stand : stands ) {
+                snapshot.stands[index] = BlockPosition.pack(stand.getLocation());
+                snapshot.standMost[index] = stand.getUniqueId().getMostSignificantBits();
+                snapshot.standLeast[index] = stand.getUniqueId().getLeastSignificantBits();
+                index++;
             }
+
+            snapshots.add(snapshot);
         }
 
-        // 全てのロックデータを確認し、該当位置に額縁が既に無い場合は、ロックデータを削除する。
+        sweeping = true;
+        final StandLock plugin = StandLock.getInstance();
+        new BukkitRunnable() {
+            public void run() {
+
+                diffAll(snapshots);
+
+                // 削除はメインスレッドで行う
+                if ( !plugin.isEnabled() ) return;
+                new BukkitRunnable() {
+                    public void run() {
+                        finishSweep(snapshots);
+                    }
+                }.runTask(plugin);
+            }
+        }.runTaskAsynchronously(plugin);
+    }
+
+    /**
+     * ワールドごとの照合を、複数のスレッドで並列に行う
+     * @param snapshots スナップショット
+     */
+    private static void diffAll(ArrayList<SweepWorld> snapshots) {
+
+        if ( snapshots.isEmpty() ) return;
+
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), snapshots.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        ArrayList<Future<SweepWorld>> futures = new ArrayList<Future<SweepWorld>>();
+
+        try {
+            for ( final SweepWorld snapshot : snapshots ) {
+                futures.add(executor.submit(new Callable<SweepWorld>() {
+                    public SweepWorld call() {
+                        snapshot.diff();
+                        return snapshot;
+                    }
+                }));
+            }
+
+            for ( Future<SweepWorld> future : futures ) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 照合の結果を受け取り、スタンドが無いロックデータを削除する
+     * @param snapshots 照合済みのスナップショット
+     */
+    private void finishSweep(ArrayList<SweepWorld> snapshots) {
+
         LockDataManager manager = StandLock.getInstance().getLockDataManager();
+        ArmorStandCache standCache = StandLock.getInstance().getArmorStandCache();
         boolean isEnableLogging = StandLock.getInstance().getStandLockConfig().isCleanupTaskLog();
         Logger logger = StandLock.getInstance().getLogger();
-        for ( LockData data : manager.getAllLockData() ) {
+        int checkedLocks = 0;
+        removedLocks = 0;
 
-            String loc = getDescriptionFromLocation(data.getLocation());
-            if ( !locs.contains(loc) ) {
-                // 該当位置に額縁が既に無いので、ロックデータを削除する。
-                manager.removeLockData(loc);
+        for ( SweepWorld snapshot : snapshots ) {
+
+            checkedLocks += snapshot.locks.length;
+            World world = Bukkit.getWorld(snapshot.world);
+            if ( world == null || snapshot.stale == null ) continue;
+
+            for ( int i : snapshot.stale ) {
+
+                // 照合している間に、アンロードされた位置は削除しない
+                long key = snapshot.locks[i];
+                int x = BlockPosition.getX(key);
+                int z = BlockPosition.getZ(key);
+                if ( !world.isChunkLoaded(x >> 4, z >> 4) ) continue;
+                Location location = new Location(world, x, BlockPosition.getY(key), z);
+
+                // 照合している間に、スタンドが現れたり、ロックデータが置き換わったりした場合も削除しない
+                UUID uuid = snapshot.getLockUuid(i);
+                LockData data = manager.getLockDataByLocation(location);
+                if ( data == null ) continue;
+                if ( uuid != null ) {
+                    if ( !uuid.equals(data.getEntityUuid()) ) continue;
+                    if ( standCache.getArmorStand(uuid) != null ) continue;
+                } else {
+                    if ( data.getEntityUuid() != null ) continue;
+                    if ( standCache.hasArmorStand(location) ) continue;
+                }
+
+                if ( dryRun ) {
+                    report.add(LockRecord.fromLockData(data));
+                    removedLocks++;
+                    continue;
+                }
+                manager.removeLockData(data);
+                removedLocks++;
                 if ( isEnableLogging ) {
-                    logger.info("LockDataManager cleanup " + loc + ".");
+                    logger.info("LockDataManager cleanup " + getDescription(data) + ".");
                 }
             }
         }
+
+        sweeping = false;
+        if ( isEnableLogging ) {
+            logger.info("LockDataManager cleanup finished. checked " + checkedLocks
+                    + " locks, removed " + removedLocks + " locks.");
+        }
+        finishPass();
     }
 
     /**
-     * Locationを文字列に変換する
-     * @param location Location
+     * 1回分の調査を終えて、次回の実行を予約する。次回が無い場合は、タスクを終了する。
+     */
+    private void finishPass() {
+
+        // ドライランのレポートを閉じる
+        if ( report != null ) {
+            final Logger logger = StandLock.getInstance().getLogger();
+            final File file = report.getFile();
+            report.close(new CleanupReport.Callback() {
+                public void done(int count) {
+                    logger.info("LockDataManager cleanup dry run: " + count
+                            + " lock(s) would be removed. See " + file.getName() + ".");
+                }
+            });
+            report = null;
+        }
+
+        if ( intervalMillis <= 0 ) {
+            cancel();
+            return;
+        }
+        nextPassTime = System.currentTimeMillis() + intervalMillis;
+    }
+
+    /**
+     * ロックデータの位置を、ログ出力用の文字列に変換する
+     * @param data ロックデータ
      * @return 変換後の文字列
      */
-    private static String getDescriptionFromLocation(Location location) {
+    protected static String getDescription(LockData data) {
 
         return String.format("%s_%d_%d_%d",
-                location.getWorld().getName(),
-                location.getBlockX(),
-                location.getBlockY(),
-                location.getBlockZ() );
+                data.getLocation().getWorld().getName(),
+                data.getLocation().getBlockX(),
+                data.getLocation().getBlockY(),
+                data.getLocation().getBlockZ() );
+    }
+
+    /**
+     * 読み込まれているチャンクのうち、ロックデータがあるものを調査待ちに積む
+     */
+    private void startPass() {
+
+        LockDataManager manager = StandLock.getInstance().getLockDataManager();
+        pending = new ArrayDeque<PendingChunk>();
+        checkedChunks = 0;
+        removedLocks = 0;
+
+        for ( World world : Bukkit.getWorlds() ) {
+            String name = world.getName();
+            for ( Chunk chunk : world.getLoadedChunks() ) {
+                if ( manager.hasChunkLockData(name, chunk.getX(), chunk.getZ()) ) {
+                    pending.add(new PendingChunk(name, chunk.getX(), chunk.getZ()));
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ロックデータを、保存形式に依存しないバイナリのダンプファイルへ書き出し、読み込むクラス。
+ * レコードは1件ずつストリームで読み書きするため、ロックデータの数によらず使用するメモリは一定になる。
+ * ファイル形式は、ヘッダー（マジックナンバー、バージョン）の後に、
+ * 「継続フラグ(true) + レコード」を繰り返し、継続フラグ(false)で終わる。
+ * @author ucchy
+ */
+public class LockDataDump {
+
+    private static final int MAGIC = 0x534C4431; // "SLD1"
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * ダンプファイルを書き出す。一時ファイルに書いてから置き換える。
+     * @param cursor 書き出すロックデータ
+     * @param file ダンプファイル
+     * @return 書き出したロックデータの数
+     * @throws IOException 書き出しや、ロックデータの読み出しに失敗した場合。書き出し途中のファイルは削除される。
+     */
+    public static int export(Iterator<LockRecord> cursor, File file) throws IOException {
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        int count = 0;
+        boolean completed = false;
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            while ( cursor.hasNext() ) {
+                out.writeBoolean(true);
+                cursor.next().write(out);
+                count++;
+            }
+            out.writeBoolean(false);
+            out.close();
+            Utility.replaceFile(temp, file);
+            completed = true;
+        } catch (LockRecordCursor.ReadException e) {
+            throw new IOException("Could not read lock data.", e);
+        } finally {
+            if ( !completed ) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // do nothing.
+                }
+                temp.delete();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * ダンプファイルを、一定数のレコードずつ読み込むクラス
+     */
+    public static class Reader implements Closeable {
+
+        /** 入力 */
+        private DataInputStream in;
+
+        /** 最後まで読み込んだかどうか */
+        private boolean finished;
+
+        /**
+         * コンストラクタ
+         * @param file ダンプファイル
+         * @throws IOException ファイルが開けない場合や、形式が違う場合
+         */
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                in.close();
+                throw new IOException("Unknown dump format.");
+            }
+        }
+
+        /**
+         * レコードを読み込む
+         * @param max 読み込む最大数
+         * @return 読み込んだレコード、最後まで読み込んだ場合は空のリスト
+         * @throws IOException
+         */
+        public List<LockRecord> read(int max) throws IOException {
+            ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+            while ( !finished && records.size() < max ) {
+                if ( !in.readBoolean() ) {
+                    finished = true;
+                    break;
+                }
+                records.add(LockRecord.read(in));
+            }
+            return records;
+        }
+
+        /**
+         * @see java.io.Closeable#close()
+         */
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,496 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * ロックデータを、バイナリの追記型ジャーナルとスナップショットで保存するクラス。
+ * 追加・削除のたびに1レコードだけをジャーナルへ追記し、
+ * ジャーナルが一定量を超えたら、スナップショットへまとめ直す（コンパクション）。
+ * ファイルへの書き込みは、全て専用のスレッドで順番に行い、ジャーナルへの追記は、
+ * 予約済みの追記を書き終えた時点でまとめて1回だけfsyncする（グループコミット）。
+ * 読み込み時に壊れていたファイルは、別名（&lt;ファイル名&gt;.broken）に移動してから作り直し、上書きはしない。
+ * @author ucchy
+ */
+public class LockDataJournal extends LockDataMemoryStore {
+
+    private static final String SNAPSHOT_FILE = "locks.dat";
+    private static final String JOURNAL_FILE = "locks.journal";
+
+    private static final int MAGIC = 0x534C4B31; // "SLK1"
+    private static final int VERSION = 1;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /** データを格納するフォルダ */
+    private File dataFolder;
+
+    /** スナップショットファイル */
+    private File snapshotFile;
+
+    /** ジャーナルファイル */
+    private File journalFile;
+
+    /** コンパクションを行う、ジャーナルのレコード数 */
+    private int compactThreshold;
+
+    /** 書き込みを行うスレッド */
+    private ExecutorService executor;
+
+    /** ジャーナルのファイル出力（書き込みスレッドからのみ使用する） */
+    private FileOutputStream journalStream;
+
+    /** ジャーナルの出力先（書き込みスレッドからのみ使用する） */
+    private DataOutputStream journalOut;
+
+    /** 予約済みで、まだ書き込んでいない追記の数 */
+    private final AtomicInteger pendingAppends = new AtomicInteger();
+
+    /** 壊れたファイルを移動できなかったため、コンパクションを止めているかどうか */
+    private boolean compactionDisabled;
+
+    /** ジャーナルに追記されたレコード数 */
+    private int journalRecords;
+
+    /**
+     * コンストラクタ
+     * @param dataFolder データを格納するフォルダ
+     * @param compactThreshold コンパクションを行う、ジャーナルのレコード数
+     */
+    public LockDataJournal(File dataFolder, int compactThreshold) {
+        this.dataFolder = dataFolder;
+        this.snapshotFile = new File(dataFolder, SNAPSHOT_FILE);
+        this.journalFile = new File(dataFolder, JOURNAL_FILE);
+        this.compactThreshold = compactThreshold;
+        this.executor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * スナップショットもジャーナルもまだ無いかどうかを返す
+     * @return まだ無いかどうか
+     */
+    public boolean isEmpty() {
+        return !snapshotFile.exists() && !journalFile.exists();
+    }
+
+    /**
+     * スナップショットとジャーナルから、全てのロックデータを読み込む。
+     * まだどちらも無い場合は、プレイヤーファイルから一度だけ移行する。
+     * @see org.bitbucket.ucchy.sl.LockStore#load(java.util.logging.Logger)
+     */
+    @Override
+    public void load(Logger logger) {
+
+        waitForIdle();
+        clear();
+        journalRecords = 0;
+        compactionDisabled = false;
+
+        // スナップショットの置き換え途中で停止していたら、元に戻す
+        Utility.recoverFile(snapshotFile);
+
+        if ( isEmpty() ) {
+            List<LockRecord> records = LockDataLoader.loadRecords(dataFolder);
+            for ( LockRecord record : records ) {
+                putRecord(record);
+            }
+            compact();
+            if ( records.size() > 0 ) {
+                logger.info("Migrated " + records.size() + " lock data from yml files to the journal.");
+            }
+            return;
+        }
+
+        // スナップショット、ジャーナルの順に適用する
+        boolean rewrite = false;
+
+        if ( snapshotFile.exists() ) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+                if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                    throw new IOException("Invalid snapshot header.");
+                }
+                int count = in.readInt();
+                for ( int i=0; i<count; i++ ) {
+                    in.readByte();
+                    putRecord(readAdd(in));
+                }
+            } catch (IOException e) {
+                // スナップショットは書き終えてから置き換えるので、不完全なものは無い。壊れたファイルは残しておく。
+                logger.warning("Lock data snapshot " + snapshotFile.getName() + " is broken.");
+                e.printStackTrace();
+                close(in);
+                in = null;
+                rewrite = quarantine(snapshotFile, logger);
+            } finally {
+                close(in);
+            }
+        }
+
+        if ( journalFile.exists() ) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+                while ( true ) {
+                    byte op;
+                    try {
+                        op = in.readByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if ( op == OP_ADD ) {
+                        putRecord(readAdd(in));
+                    } else if ( op == OP_REMOVE ) {
+                        String world = in.readUTF();
+                        removeRecord(world, BlockPosition.pack(in.readInt(), in.readInt(), in.readInt()));
+                    } else {
+                        throw new IOException("Unknown journal record type " + op + ".");
+                    }
+                    journalRecords++;
+                }
+            } catch (EOFException e) {
+                // 追記の途中で停止した場合。最後の不完全なレコードだけを捨てて、作り直す。
+                logger.warning("Lock data journal " + journalFile.getName()
+                        + " has an incomplete last record. It was ignored.");
+                rewrite = true;
+            } catch (IOException e) {
+                logger.warning("Lock data journal " + journalFile.getName() + " is broken.");
+                e.printStackTrace();
+                close(in);
+                in = null;
+                rewrite = quarantine(journalFile, logger) || rewrite;
+            } finally {
+                close(in);
+            }
+        }
+
+        // 読めた内容で、スナップショットを作り直しておく
+        if ( rewrite && !compactionDisabled ) {
+            compact();
+        }
+    }
+
+    /**
+     * 壊れたファイルを別名に移動する。移動できなかった場合は、上書きしないようにコンパクションを止める。
+     * @param file 壊れたファイル
+     * @param logger ロガー
+     * @return 移動できたかどうか
+     */
+    private boolean quarantine(File file, Logger logger) {
+        File dest = Utility.quarantineFile(file);
+        if ( dest == null ) {
+            logger.severe("Could not move the broken file " + file.getName()
+                    + ". Compaction is disabled until it is repaired.");
+            compactionDisabled = true;
+            return false;
+        }
+        logger.warning("The broken file was moved to " + dest.getName() + ".");
+        return true;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#prepareReload(java.util.logging.Logger)
+     */
+    @Override
+    public Reload prepareReload(Logger logger) {
+        // 非同期の再読込には対応しない
+        return null;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockDataMemoryStore#add(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void add(LockRecord record) {
+        putRecord(record);
+        append(encode(record));
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockDataMemoryStore#update(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void update(LockRecord record) {
+        putRecord(record);
+        append(encode(record));
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockDataMemoryStore#remove(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void remove(LockRecord record) {
+
+        if ( removeRecord(record.world, record.getBlockKey()) == null ) return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(OP_REMOVE);
+            out.writeUTF(record.world);
+            out.writeInt(record.x);
+            out.writeInt(record.y);
+            out.writeInt(record.z);
+        } catch (IOException e) {
+            e.printStackTrace(); // ByteArrayOutputStreamなので発生しない
+        }
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockDataMemoryStore#deleteWorld(java.lang.String)
+     */
+    @Override
+    public void deleteWorld(String world) {
+        super.deleteWorld(world);
+        compact();
+    }
+
+    /**
+     * ジャーナルが一定量を超えていて、コンパクションが必要かどうかを返す
+     * @return コンパクションが必要かどうか
+     */
+    public boolean needsCompaction() {
+        return journalRecords >= compactThreshold;
+    }
+
+    /**
+     * ジャーナルが一定量を超えていればコンパクションを行い、そうでなければジャーナルの出力をフラッシュする
+     * @see org.bitbucket.ucchy.sl.LockStore#flush()
+     */
+    @Override
+    public void flush() {
+
+        if ( needsCompaction() ) {
+            compact();
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                syncJournal();
+            }
+        });
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#saveAll()
+     */
+    @Override
+    public void saveAll() {
+        compact();
+    }
+
+    /**
+     * 全てのロックデータをスナップショットへ書き出し、ジャーナルを空にする
+     */
+    public void compact() {
+
+        if ( compactionDisabled ) return;
+
+        journalRecords = 0;
+        final List<LockRecord> records = getAllRecords();
+
+        executor.execute(new Runnable() {
+            public void run() {
+                writeSnapshot(records);
+            }
+        });
+    }
+
+    /**
+     * 予約済みの書き込みが全て終わるまで待つ
+     */
+    public void waitForIdle() {
+        try {
+            executor.submit(new Runnable() {
+                public void run() {
+                    // do nothing.
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * コンパクションを行ってから、書き込みスレッドを終了する
+     * @see org.bitbucket.ucchy.sl.LockStore#shutdown(int, java.util.logging.Logger)
+     */
+    @Override
+    public void shutdown(int timeout, Logger logger) {
+        compact();
+        executor.execute(new Runnable() {
+            public void run() {
+                closeJournal();
+            }
+        });
+        executor.shutdown();
+        try {
+            if ( !executor.awaitTermination(timeout, TimeUnit.SECONDS) ) {
+                logger.warning("Lock data could not be saved within " + timeout + " seconds.");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * ジャーナルへの追記を予約する
+     * @param record 追記するレコード
+     */
+    private void append(final byte[] record) {
+        journalRecords++;
+        pendingAppends.incrementAndGet();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if ( journalOut == null ) {
+                        journalStream = new FileOutputStream(journalFile, true);
+                        journalOut = new DataOutputStream(new BufferedOutputStream(journalStream));
+                    }
+                    journalOut.write(record);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                // 続けて予約されている追記が無ければ、ここまでの追記をまとめて同期する
+                if ( pendingAppends.decrementAndGet() == 0 ) {
+                    syncJournal();
+                }
+            }
+        });
+    }
+
+    /**
+     * スナップショットを一時ファイルに書き出して同期してから置き換え、ジャーナルを空にする。
+     * 書き込みスレッドから呼び出すこと。
+     * @param records 書き出すレコード
+     */
+    private void writeSnapshot(List<LockRecord> records) {
+
+        File temp = new File(snapshotFile.getParentFile(), SNAPSHOT_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+            for ( LockRecord record : records ) {
+                writeAdd(out, record);
+            }
+            out.flush();
+            out.close();
+            out = null;
+            Utility.replaceFile(temp, snapshotFile);
+
+            // スナップショットに反映済みなので、ジャーナルを空にする
+            closeJournal();
+            new FileOutputStream(journalFile).close();
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * ジャーナルの出力をフラッシュして、ディスクへ同期する。書き込みスレッドから呼び出すこと。
+     */
+    private void syncJournal() {
+        if ( journalOut != null ) {
+            try {
+                journalOut.flush();
+                journalStream.getFD().sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * ジャーナルの出力を同期してから閉じる。書き込みスレッドから呼び出すこと。
+     */
+    private void closeJournal() {
+        if ( journalOut != null ) {
+            syncJournal();
+            close(journalOut);
+            journalOut = null;
+            journalStream = null;
+        }
+    }
+
+    /**
+     * 追加レコードを読み込む（種別のバイトは読み込み済みであること）
+     * @param in 入力
+     * @return レコード
+     * @throws IOException
+     */
+    private static LockRecord readAdd(DataInputStream in) throws IOException {
+        return LockRecord.read(in);
+    }
+
+    /**
+     * 追加レコードとして書き出す
+     * @param out 出力
+     * @param record レコード
+     * @throws IOException
+     */
+    private static void writeAdd(DataOutputStream out, LockRecord record) throws IOException {
+        out.writeByte(OP_ADD);
+        record.write(out);
+    }
+
+    /**
+     * レコードをバイト列に変換する
+     * @param record レコード
+     * @return バイト列
+     */
+    private static byte[] encode(LockRecord record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(80);
+        try {
+            writeAdd(new DataOutputStream(bytes), record);
+        } catch (IOException e) {
+            e.printStackTrace(); // ByteArrayOutputStreamなので発生しない
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * ストリームを閉じる
+     * @param stream ストリーム
+     */
+    private static void close(Closeable stream) {
+        if ( stream != null ) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // do nothing.
+            }
+        }
+    }
+}
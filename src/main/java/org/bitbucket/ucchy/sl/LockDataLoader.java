@@ -0,0 +1,229 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * データフォルダのプレイヤーファイルを、複数のスレッドで並列に読み込むクラス。
+ * ここではファイルの解析と座標の変換までを行い、ワールドの解決は呼び出し元で行う。
+ * @author ucchy
+ */
+public class LockDataLoader {
+
+    private static final Pattern UUID_PATTERN =
+            Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    /**
+     * 1つのプレイヤーファイルの読み込み結果
+     */
+    public static class OwnerData {
+
+        /** オーナープレイヤーのUUID */
+        UUID uuid;
+
+        /** プレイヤーファイルに記録されていた名前、無い場合はnull */
+        String name;
+
+        /** 読み込んだロックデータ */
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+
+        /** ファイルの書き直しが必要かどうか（無効なデータを読み飛ばした場合など） */
+        boolean dirty;
+    }
+
+    /**
+     * データフォルダの全てのプレイヤーファイルを読み込む
+     * @param dataFolder データフォルダ
+     * @return 読み込み結果
+     */
+    public static List<OwnerData> loadFolder(File dataFolder) {
+        return loadFolder(dataFolder, null);
+    }
+
+    /**
+     * データフォルダの全てのプレイヤーファイルを読み込む。
+     * スナップショットから変更されていないファイルは、解析せずにスナップショットの内容を使う。
+     * @param dataFolder データフォルダ
+     * @param snapshot 前回停止時のスナップショット、無い場合はnull
+     * @return 読み込み結果
+     */
+    public static List<OwnerData> loadFolder(File dataFolder, LockDataSnapshot snapshot) {
+
+        // データフォルダに格納されているプレイヤーファイルのリストを取得
+        List<File> files = OwnerFileLayout.listFiles(dataFolder);
+
+        ArrayList<OwnerData> result = new ArrayList<OwnerData>();
+
+        // ファイルが無いなら、何もしない。
+        if ( files.isEmpty() ) return result;
+
+        // ファイルごとに、解析をワーカースレッドへ割り当てる
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), files.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        ArrayList<Future<OwnerData>> futures = new ArrayList<Future<OwnerData>>();
+
+        try {
+            for ( final File file : files ) {
+
+                // 後ろの4文字を削って拡張子を抜き、UUIDへ変換する（一覧の取得時に確認済み）
+                String key = file.getName().substring(0, file.getName().length() - 4);
+                final UUID uuid = UUID.fromString(key);
+
+                // 変更されていないファイルは、解析しない
+                if ( snapshot != null && snapshot.matches(file, uuid) ) {
+                    OwnerData data = new OwnerData();
+                    data.uuid = uuid;
+                    data.name = snapshot.getName(uuid);
+                    data.records = snapshot.getRecords(uuid);
+                    result.add(data);
+                    continue;
+                }
+
+                futures.add(executor.submit(new Callable<OwnerData>() {
+                    public OwnerData call() {
+                        return loadFile(file, uuid);
+                    }
+                }));
+            }
+
+            for ( Future<OwnerData> future : futures ) {
+                try {
+                    result.add(future.get());
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdown();
+        }
+
+        return result;
+    }
+
+    /**
+     * データフォルダの全てのプレイヤーファイルから、ロックデータを読み込む（移行用）
+     * @param dataFolder データフォルダ
+     * @return ロックデータ
+     */
+    public static List<LockRecord> loadRecords(File dataFolder) {
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        for ( OwnerData owner : loadFolder(dataFolder) ) {
+            records.addAll(owner.records);
+        }
+        return records;
+    }
+
+    /**
+     * プレイヤーファイルから、ロックデータを読み込む
+     * @param file プレイヤーファイル
+     * @param uuid プレイヤーのUUID
+     * @return 読み込み結果
+     */
+    public static OwnerData loadFile(File file, UUID uuid) {
+
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        OwnerData data = new OwnerData();
+        data.uuid = uuid;
+
+        // 名前が記録されていないファイルは、書き直して補っておく
+        data.name = config.getString("name");
+        if ( data.name == null ) {
+            data.dirty = true;
+        }
+
+        for ( String key : config.getKeys(false) ) {
+
+            if ( key.equals("name") ) continue;
+
+            LockRecord record = parseDescription(key);
+            if ( record == null ) {
+                data.dirty = true;
+                continue;
+            }
+            record.owner = uuid;
+
+            // 旧形式は「位置: 日時」、新形式は「位置: {time: 日時, entity: スタンドのUUID}」
+            if ( config.isConfigurationSection(key) ) {
+                ConfigurationSection section = config.getConfigurationSection(key);
+                record.time = section.getLong("time", -1);
+                String temp = section.getString("entity");
+                if ( temp != null && isUUID(temp) ) {
+                    record.entity = UUID.fromString(temp);
+                }
+            } else {
+                record.time = config.getLong(key, -1);
+            }
+
+            data.records.add(record);
+        }
+
+        return data;
+    }
+
+    /**
+     * 位置情報の文字列（world_x_y_z）を、ワールド名と座標に変換する
+     * @param description 文字列
+     * @return 変換結果（ownerとtimeは未設定）、変換に失敗した場合はnull
+     */
+    public static LockRecord parseDescription(String description) {
+
+        String[] temp = description.split("_");
+        if ( temp.length < 4 ) {
+            return null;
+        }
+
+        int offset = temp.length - 4;
+        String temp_x = temp[offset + 1];
+        String temp_y = temp[offset + 2];
+        String temp_z = temp[offset + 3];
+        if ( !isDigit(temp_x) || !isDigit(temp_y) || !isDigit(temp_z) ) {
+            return null;
+        }
+
+        LockRecord record = new LockRecord();
+        record.x = Integer.parseInt(temp_x);
+        record.y = Integer.parseInt(temp_y);
+        record.z = Integer.parseInt(temp_z);
+
+        String suffix = temp_x + "_" + temp_y + "_" + temp_z;
+        record.world = description.substring(0, description.lastIndexOf(suffix) - 1);
+        return record;
+    }
+
+    /**
+     * 文字列がUUIDかどうかを判定する
+     * @param source 文字列
+     * @return UUIDかどうか
+     */
+    protected static boolean isUUID(String source) {
+        return UUID_PATTERN.matcher(source).matches();
+    }
+
+    /**
+     * 文字列が整数値に変換可能かどうかを判定する
+     * @param source 変換対象の文字列
+     * @return 整数に変換可能かどうか
+     */
+    private static boolean isDigit(String source) {
+        return source.matches("^-?[0-9]{1,9}$");
+    }
+}
@@ -6,19 +6,22 @@
 package org.bitbucket.ucchy.sl;
 
 import java.io.File;
-import java.io.FilenameFilter;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.logging.Logger;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.World;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.ArmorStand;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
 
 /**
  * ロックデータマネージャ
@@ -26,33 +29,101 @@ import org.bukkit.entity.Player;
  */
 public class LockDataManager {
 
-    /** フラットデータファイルを格納するフォルダ */
-    private File dataFolder;
+    private static final int OP_ADD = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_DELETE_WORLD = 3;
 
-    /** ロックデータの、プレイヤーUUIDをキーとしたマップ */
-    private HashMap<UUID, ArrayList<LockData>> idMap;
+    /**
+     * 非同期の再読込中に行われた変更
+     */
+    private static class PendingChange {
+
+        /** 変更の種類 */
+        int op;
+
+        /** 追加・削除したロックデータ */
+        LockRecord record;
+
+        /** 削除したワールド名 */
+        String world;
+
+        PendingChange(int op, LockRecord record, String world) {
+            this.op = op;
+            this.record = record;
+            this.world = world;
+        }
+    }
+
+    /** ロックデータの、ワールド名をキーとしたチャンク・ブロック座標のインデックス */
+    private HashMap<String, WorldLockIndex> locationMap;
 
-    /** ロックデータの、Locationをキーとしたマップ */
-    private HashMap<String, LockData> locationMap;
+    /** ロックデータの、ArmorStandのUUIDをキーとしたマップ */
+    private HashMap<UUID, LockData> entityMap;
+
+    /** ロックデータの保存先 */
+    private LockStore store;
+
+    /** 非同期の再読込中に行われた変更、再読込中でない場合はnull */
+    private ArrayList<PendingChange> reloadChanges;
+
+    /** 非同期の再読込の完了を待っているタスク */
+    private ArrayList<Runnable> reloadCallbacks;
 
     /**
      * コンストラクタ
      * @param dataFolder フラットデータファイルを格納するフォルダ
+     * @param config コンフィグ
+     * @param names オーナー名のキャッシュ
      */
-    public LockDataManager(File dataFolder) {
-
-        this.dataFolder = dataFolder;
+    public LockDataManager(File dataFolder, StandLockConfig config, OwnerNameCache names) {
 
         // データフォルダがまだ存在しないなら、ここで作成する
         if ( !dataFolder.exists() ) {
             dataFolder.mkdirs();
         }
 
+        this.store = createStore(dataFolder, config, names, new LockStore.ChunkCallback() {
+            public void loaded(String world, List<LockRecord> records) {
+                attachLoadedRecords(world, records);
+            }
+        });
+
         // データのロード
+        // 無効なデータを読み飛ばしたファイルは、ロード時に保存が予約され、
+        // 書き込みスレッドで書き直される。
         reloadData();
+    }
 
-        // ロードしたデータをセーブ（nullだったHangingをデータに反映するため）
-        saveAllData();
+    /**
+     * storageTypeの設定に従って、保存先を作成する
+     * @param dataFolder フラットデータファイルを格納するフォルダ
+     * @param config コンフィグ
+     * @param names オーナー名のキャッシュ
+     * @param callback 保存先が後から読み込んだ、チャンクのロックデータを受け取る処理
+     * @return 保存先
+     */
+    private static LockStore createStore(File dataFolder, StandLockConfig config,
+            OwnerNameCache names, LockStore.ChunkCallback callback) {
+
+        String type = config.getStorageType();
+        if ( type.equalsIgnoreCase("journal") ) {
+            return new LockDataJournal(dataFolder, config.getJournalCompactThreshold());
+        } else if ( type.equalsIgnoreCase("region") ) {
+            return new LockDataRegionStore(dataFolder, StandLock.getInstance(), callback);
+        } else if ( type.equalsIgnoreCase("world") ) {
+            return new LockDataWorldStore(dataFolder);
+        } else if ( type.equalsIgnoreCase("mapped") ) {
+            return new LockDataMappedStore(dataFolder, StandLock.getInstance());
+        } else if ( type.equalsIgnoreCase("sqlite") ) {
+            try {
+                return new LockDataSqlStore(dataFolder, StandLock.getInstance(), callback);
+            } catch (Exception e) {
+                e.printStackTrace();
+                StandLock.getInstance().getLogger().warning(
+                        "Could not open the lock database. Lock data is stored in yml files instead.");
+            }
+        }
+        return new LockDataYamlStore(dataFolder, names, config.isShardedDataFolder());
     }
 
     /**
@@ -60,120 +131,604 @@ public class LockDataManager {
      */
     public void reloadData() {
 
-        // データフォルダに格納されているymlファイルのリストを取得
-        File[] files = dataFolder.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".yml");
+        locationMap = new HashMap<String, WorldLockIndex>();
+        entityMap = new HashMap<UUID, LockData>();
+
+        // 保存先から読み込み直し、ロード済みのワールドの分だけを展開する
+        store.load(StandLock.getInstance().getLogger());
+        for ( World world : Bukkit.getWorlds() ) {
+            loadWorld(world);
+        }
+    }
+
+    /**
+     * データを、メインスレッド以外で再読込する。
+     * 新しいインデックスを別スレッドで作成し、完了したらメインスレッドでまとめて差し替える。
+     * 保存先が非同期の再読込に対応しない場合は、{@link #reloadData()} を実行する。
+     * @param plugin プラグイン
+     * @param callback 再読込の完了後に、メインスレッドで実行するタスク
+     */
+    public void reloadDataAsync(final StandLock plugin, Runnable callback) {
+
+        // 再読込中なら、その完了を待つ
+        if ( reloadCallbacks != null ) {
+            reloadCallbacks.add(callback);
+            return;
+        }
+
+        final LockStore.Reload reload = store.prepareReload(plugin.getLogger());
+        if ( reload == null ) {
+            reloadData();
+            callback.run();
+            return;
+        }
+
+        reloadChanges = new ArrayList<PendingChange>();
+        reloadCallbacks = new ArrayList<Runnable>();
+        reloadCallbacks.add(callback);
+        final List<World> worlds = new ArrayList<World>(Bukkit.getWorlds());
+
+        new BukkitRunnable() {
+            public void run() {
+
+                // 保存先の読み込みと、ロード済みのワールドのインデックス作成を、ここで行う
+                reload.read();
+                final HashMap<String, WorldLockIndex> newLocationMap = new HashMap<String, WorldLockIndex>();
+                final HashMap<UUID, LockData> newEntityMap = new HashMap<UUID, LockData>();
+                for ( World world : worlds ) {
+                    for ( LockRecord record : reload.loadWorld(world.getName()) ) {
+                        putLoadedData(record.toLockData(world), newLocationMap, newEntityMap);
+                    }
+                }
+
+                new BukkitRunnable() {
+                    public void run() {
+                        finishReload(reload, worlds, newLocationMap, newEntityMap);
+                    }
+                }.runTask(plugin);
             }
-        });
+        }.runTaskAsynchronously(plugin);
+    }
 
-        // 全てのデータをロード
-        idMap = new HashMap<UUID, ArrayList<LockData>>();
-        locationMap = new HashMap<String, LockData>();
+    /**
+     * 非同期の再読込の結果を反映する
+     * @param reload 保存先の再読込の内容
+     * @param worlds インデックスを作成したワールド
+     * @param newLocationMap 新しい位置のインデックス
+     * @param newEntityMap 新しいArmorStandのインデックス
+     */
+    private void finishReload(LockStore.Reload reload, List<World> worlds,
+            HashMap<String, WorldLockIndex> newLocationMap, HashMap<UUID, LockData> newEntityMap) {
+
+        // 保存先とインデックスを、まとめて差し替える
+        reload.apply();
+        locationMap = newLocationMap;
+        entityMap = newEntityMap;
+
+        ArrayList<PendingChange> changes = reloadChanges;
+        ArrayList<Runnable> callbacks = reloadCallbacks;
+        reloadChanges = null;
+        reloadCallbacks = null;
+
+        // 再読込中にロード・アンロードされたワールドを反映する
+        HashSet<String> names = new HashSet<String>();
+        for ( World world : worlds ) {
+            names.add(world.getName());
+            if ( Bukkit.getWorld(world.getName()) == null ) {
+                detachWorld(world.getName());
+            }
+        }
+        for ( World world : Bukkit.getWorlds() ) {
+            if ( !names.contains(world.getName()) ) {
+                loadWorld(world);
+            }
+        }
+
+        // 再読込中に行われた変更を、やり直す
+        for ( PendingChange change : changes ) {
+            replayChange(change);
+        }
 
-        // filesがnullなら、何もしない。
-        if ( files == null ) return;
+        for ( Runnable callback : callbacks ) {
+            callback.run();
+        }
+    }
 
-        for ( File file : files ) {
+    /**
+     * 再読込中に行われた変更を、差し替えたインデックスと保存先へ適用する
+     * @param change 変更
+     */
+    private void replayChange(PendingChange change) {
 
-            // 後ろの4文字を削って拡張子を抜く
-            String key = file.getName().substring(0, file.getName().length() - 4);
+        if ( change.op == OP_DELETE_WORLD ) {
+            cleanupWorldLockData(change.world);
+            return;
+        }
 
-            // UUIDへ変換する
-            if ( !isUUID(key) ) {
-                continue;
+        LockRecord record = change.record;
+        World world = Bukkit.getWorld(record.world);
+        if ( world == null ) {
+            // ロードされていないワールドは、保存先にだけ適用する
+            if ( change.op == OP_ADD ) {
+                store.add(record);
+            } else {
+                store.remove(record);
             }
-            UUID uuid = UUID.fromString(key);
+            return;
+        }
 
-            // データをロードする
-            idMap.put(uuid, loadLockData(file, uuid));
+        removeLockData(getLockDataByLocation(new Location(world, record.x, record.y, record.z)));
+        if ( change.op == OP_ADD ) {
+            insertLockData(record.toLockData(world));
+        }
+    }
 
-            // Locationマップにも展開する
-            for ( LockData ld : idMap.get(uuid) ) {
-                locationMap.put(getDescriptionFromLocation(ld.getLocation()), ld);
+    /**
+     * ロードしたロックデータを、全てのインデックスに登録する
+     * @param ld ロックデータ
+     */
+    private void putLoadedData(LockData ld) {
+        putLoadedData(ld, locationMap, entityMap);
+    }
+
+    /**
+     * ロードしたロックデータを、指定したインデックスに登録する
+     * @param ld ロックデータ
+     * @param locationMap 位置のインデックス
+     * @param entityMap ArmorStandのインデックス
+     */
+    private static void putLoadedData(LockData ld,
+            HashMap<String, WorldLockIndex> locationMap, HashMap<UUID, LockData> entityMap) {
+
+        // Locationマップに展開する
+        String world = ld.getLocation().getWorld().getName();
+        WorldLockIndex index = locationMap.get(world);
+        if ( index == null ) {
+            index = new WorldLockIndex();
+            locationMap.put(world, index);
+        }
+        index.put(BlockPosition.pack(ld.getLocation()), ld);
+        if ( ld.getEntityUuid() != null ) {
+            entityMap.put(ld.getEntityUuid(), ld);
+        }
+    }
+
+    /**
+     * ワールドがロードされた時に、そのワールドのロックデータをインデックスへ展開する
+     * @param world ワールド
+     */
+    public void loadWorld(World world) {
+
+        for ( LockRecord record : store.loadWorld(world.getName()) ) {
+            putLoadedData(record.toLockData(world));
+        }
+        if ( store.isChunkPaged() ) {
+            for ( Chunk chunk : world.getLoadedChunks() ) {
+                loadChunk(chunk);
             }
         }
     }
 
     /**
-     * プレイヤーファイルから、ロックデータをロードする
-     * @param file プレイヤーファイル
-     * @param uuid プレイヤーのUUID
-     * @return ロードされたロックデータ
+     * ワールドがアンロードされた時に、そのワールドのロックデータをインデックスから外す。
+     * 外したデータは保存先に残り、再度ロードされた時に戻される。
+     * @param world ワールド名
      */
-    private ArrayList<LockData> loadLockData(File file, UUID uuid) {
+    public void unloadWorld(String world) {
 
-        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
-        ArrayList<LockData> data = new ArrayList<LockData>();
+        store.unloadWorld(world);
+        detachWorld(world);
+    }
 
-        for ( String key : config.getKeys(false) ) {
+    /**
+     * チャンクがロードされた時に、そのチャンクのロックデータをインデックスへ展開する。
+     * 保存先がチャンク単位の場合だけ処理する。
+     * @param chunk チャンク
+     */
+    public void loadChunk(Chunk chunk) {
 
-            if ( key.equals("name") ) continue;
+        if ( !store.isChunkPaged() ) return;
 
-            Location location = getLocationFromDescription(key);
-            if ( location == null ) {
-                continue;
-            }
+        World world = chunk.getWorld();
+        for ( LockRecord record : store.loadChunk(world.getName(), chunk.getX(), chunk.getZ()) ) {
+            putLoadedData(record.toLockData(world));
+        }
+    }
+
+    /**
+     * 保存先がメインスレッド以外で読み込んだチャンクまたはワールドのロックデータを、インデックスへ展開する
+     * @param worldName ワールド名
+     * @param records ロックデータ
+     */
+    private void attachLoadedRecords(String worldName, List<LockRecord> records) {
 
-            long time = config.getLong(key, -1);
+        World world = Bukkit.getWorld(worldName);
+        if ( world == null ) return;
 
-            data.add(new LockData(uuid, location, time));
+        WorldLockIndex index = locationMap.get(worldName);
+        for ( LockRecord record : records ) {
+            // 読み込み中にアンロードされたチャンクと、既に登録されている位置は飛ばす
+            if ( store.isChunkPaged() && !world.isChunkLoaded(record.x >> 4, record.z >> 4) ) continue;
+            if ( index != null && index.get(record.getBlockKey()) != null ) continue;
+            putLoadedData(record.toLockData(world));
         }
+    }
+
+    /**
+     * チャンクがアンロードされた時に、そのチャンクのロックデータをインデックスから外す。
+     * 外したデータは保存先に残り、再度ロードされた時に戻される。
+     * 保存先がチャンク単位の場合だけ処理する。
+     * @param chunk チャンク
+     */
+    public void unloadChunk(Chunk chunk) {
 
-        return data;
+        if ( !store.isChunkPaged() ) return;
+
+        String world = chunk.getWorld().getName();
+        for ( LockData data : getChunkLockData(world, chunk.getX(), chunk.getZ()) ) {
+            detachLockData(data);
+        }
+        store.unloadChunk(world, chunk.getX(), chunk.getZ());
     }
 
     /**
-     * 全てのデータを保存する
+     * チャンク内のロックデータを、実際にあるスタンドと照合して、
+     * 既にスタンドが存在しなくなっているロックデータを削除する。
+     * 削除は通常のロック解除と同じく、保存先へまとめて反映される。
+     * @param chunk ロード済みのチャンク
+     * @param standCache スタンドのキャッシュ
+     * @return 削除したロックデータ
      */
-    public void saveAllData() {
-        for ( UUID uuid : idMap.keySet() ) {
-            saveData(uuid);
+    public List<LockData> verifyChunk(Chunk chunk, ArmorStandCache standCache) {
+
+        List<LockData> removed = getStaleLockData(chunk, standCache);
+        for ( LockData data : removed ) {
+            removeLockData(data);
         }
+        return removed;
     }
 
     /**
-     * 指定したオーナープレイヤーのデータを保存する
-     * @param uuid オーナープレイヤー
+     * チャンク内のロックデータを、実際にあるスタンドと照合して、
+     * 既にスタンドが存在しなくなっているロックデータを取得する。取得したロックデータは削除しない。
+     * スタンドのUUIDが紐付いているロックデータは、UUIDで照合するので、
+     * スタンドが別のブロックやチャンクへ動いていても、削除の対象にならない。
+     * 見つからない場合は、死亡を確認済みのときか、周囲のチャンクも全てロードされていて
+     * どこにも無いときだけ対象にし、それ以外はアンロードされたチャンクにある可能性があるので判断を見送る。
+     * UUIDが未登録の旧データだけを、位置で照合する。
+     * @param chunk ロード済みのチャンク
+     * @param standCache スタンドのキャッシュ
+     * @return スタンドが存在しなくなっているロックデータ
+     */
+    public List<LockData> getStaleLockData(Chunk chunk, ArmorStandCache standCache) {
+
+        ArrayList<LockData> stale = new ArrayList<LockData>();
+        String world = chunk.getWorld().getName();
+
+        // ロックデータが無いチャンクは、エンティティを調べずに終わる
+        if ( !hasChunkLockData(world, chunk.getX(), chunk.getZ()) ) return stale;
+
+        // チャンク内のスタンドのUUIDと位置を取得する
+        HashSet<UUID> uuids = new HashSet<UUID>();
+        HashSet<Long> positions = new HashSet<Long>();
+        for ( Entity entity : chunk.getEntities() ) {
+            if ( entity instanceof ArmorStand ) {
+                uuids.add(entity.getUniqueId());
+                positions.add(BlockPosition.pack(entity.getLocation()));
+            }
+        }
+
+        Boolean neighborsLoaded = null;
+        for ( LockData data : getChunkLockData(world, chunk.getX(), chunk.getZ()) ) {
+            UUID uuid = data.getEntityUuid();
+            if ( uuid != null ) {
+                // チャンクの外へ動いたスタンドは、キャッシュから探す
+                if ( uuids.contains(uuid) || standCache.getArmorStand(uuid) != null ) continue;
+                if ( standCache.isDead(uuid) ) {
+                    stale.add(data);
+                    continue;
+                }
+                if ( neighborsLoaded == null ) {
+                    neighborsLoaded = isNeighborChunksLoaded(chunk);
+                }
+                if ( neighborsLoaded ) {
+                    stale.add(data);
+                }
+            } else if ( !positions.contains(BlockPosition.pack(data.getLocation())) ) {
+                stale.add(data);
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * チャンクと、その周囲8つのチャンクが、全てロードされているかどうかを返す
+     * @param chunk チャンク
+     * @return 全てロードされているかどうか
      */
-    public void saveData(UUID uuid) {
+    private static boolean isNeighborChunksLoaded(Chunk chunk) {
+        World world = chunk.getWorld();
+        for ( int dx=-1; dx<=1; dx++ ) {
+            for ( int dz=-1; dz<=1; dz++ ) {
+                if ( !world.isChunkLoaded(chunk.getX() + dx, chunk.getZ() + dz) ) return false;
+            }
+        }
+        return true;
+    }
 
-        File file = new File(dataFolder, uuid.toString() + ".yml");
+    /**
+     * 全てのロックデータを、少しずつ読み出すカーソルを作成する。
+     * 戻り値のイテレータは、メインスレッド以外で使うこと。
+     * @return カーソル
+     */
+    public Iterator<LockRecord> openCursor() {
+        return store.openCursor();
+    }
+
+    /**
+     * ロックデータをまとめて追加する。同じ位置にロックデータがある場合は、置き換える。
+     * @param records ロックデータ
+     */
+    public void importRecords(List<LockRecord> records) {
+
+        // 置き換えられるデータを、先にインデックスから外しておく
+        for ( LockRecord record : records ) {
+            World world = Bukkit.getWorld(record.world);
+            if ( world == null ) continue;
+            LockData prev = getLockDataByLocation(new Location(world, record.x, record.y, record.z));
+            if ( prev != null ) {
+                detachLockData(prev);
+            }
+        }
 
-        YamlConfiguration config = new YamlConfiguration();
+        store.importRecords(records);
 
-        config.set("name", Bukkit.getOfflinePlayer(uuid).getName());
+        // ロードされているワールド（チャンク単位の場合はチャンク）の分だけを展開する
+        for ( LockRecord record : records ) {
+            World world = Bukkit.getWorld(record.world);
+            if ( world == null ) continue;
+            if ( store.isChunkPaged() && !world.isChunkLoaded(record.x >> 4, record.z >> 4) ) continue;
+            putLoadedData(record.toLockData(world));
+        }
 
-        ArrayList<LockData> datas = idMap.get(uuid);
-        for ( LockData data : datas ) {
-            String desc = getDescriptionFromLocation(data.getLocation());
-            config.set(desc, data.getDate());
+        if ( reloadChanges != null ) {
+            for ( LockRecord record : records ) {
+                reloadChanges.add(new PendingChange(OP_ADD, record, null));
+            }
         }
+    }
 
-        try {
-            config.save(file);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * ロックデータを、保存先はそのままで、インデックスから外す
+     * @param data ロックデータ
+     */
+    private void detachLockData(LockData data) {
+        removeLocationIndex(data);
+        if ( data.getEntityUuid() != null ) {
+            entityMap.remove(data.getEntityUuid());
         }
     }
 
     /**
-     * 指定されたArmorStandから、ロックデータを取得する
+     * 全てのデータを保存する
+     */
+    public void saveAllData() {
+        store.saveAll();
+    }
+
+    /**
+     * 保存が予約されているデータを、書き込みスレッドへ渡す
+     */
+    public void flush() {
+        store.flush();
+    }
+
+    /**
+     * 一定間隔で {@link #flush()} を実行するタスクを開始する
+     * @param plugin プラグイン
+     * @param interval 実行間隔（秒）
+     */
+    public void startSaveTask(StandLock plugin, int interval) {
+        long ticks = Math.max(interval, 1) * 20L;
+        new BukkitRunnable() {
+            public void run() {
+                flush();
+            }
+        }.runTaskTimer(plugin, ticks, ticks);
+    }
+
+    /**
+     * 保存が予約されているデータを全て書き込んで、書き込みスレッドを終了する
+     * @param timeout 書き込みの完了を待つ最大時間（秒）
+     * @param logger ロガー
+     */
+    public void shutdown(int timeout, Logger logger) {
+        store.shutdown(timeout, logger);
+    }
+
+    /**
+     * 指定されたArmorStandから、ロックデータを取得する。
+     * インデックスと保存先は変更しないので、読み取りだけの処理から呼び出してよい。
      * @param stand ArmorStand
      * @return ロックデータ
      */
     public LockData getLockDataByArmorStand(ArmorStand stand) {
+
         if ( stand == null ) return null;
-        return locationMap.get(getDescriptionFromLocation(stand.getLocation()));
+
+        // まずはスタンドのUUIDで検索する
+        LockData ld = entityMap.get(stand.getUniqueId());
+        if ( ld != null ) return ld;
+
+        // 見つからなければ位置で検索する。
+        // 別のスタンドに紐付いたロックデータは、そのスタンドのものなので返さない。
+        ld = getLockDataByLocation(stand.getLocation());
+        if ( ld != null && ld.getEntityUuid() != null
+                && !ld.getEntityUuid().equals(stand.getUniqueId()) ) {
+            return null;
+        }
+        return ld;
+    }
+
+    /**
+     * 指定されたArmorStandから、ロックデータを取得し、スタンドの現在の状態に合わせる。
+     * スタンドがブロックの境界を越えて動いていたら、ロックの位置を追従させ、
+     * UUIDが未登録の旧データなら、ここで紐付けて保存する。
+     * @param stand ArmorStand
+     * @return ロックデータ
+     */
+    public LockData trackArmorStand(ArmorStand stand) {
+
+        LockData ld = getLockDataByArmorStand(stand);
+        if ( ld == null ) return null;
+
+        // UUIDが未登録の旧データなら、ここで紐付ける
+        if ( ld.getEntityUuid() == null ) {
+            ld.setEntityUuid(stand.getUniqueId());
+            entityMap.put(stand.getUniqueId(), ld);
+            store.update(LockRecord.fromLockData(ld));
+            if ( reloadChanges != null ) {
+                reloadChanges.add(new PendingChange(OP_ADD, LockRecord.fromLockData(ld), null));
+            }
+            return ld;
+        }
+
+        // スタンドがブロックの境界を越えて動いていたら、ロックの位置を追従させる
+        Location location = stand.getLocation();
+        if ( !isSameBlock(ld.getLocation(), location)
+                && getLockDataByLocation(location) == null ) {
+            removeLocationIndex(ld);
+            storeChange(OP_REMOVE, LockRecord.fromLockData(ld));
+            ld.setLocation(location);
+            putLocationIndex(ld);
+            storeChange(OP_ADD, LockRecord.fromLockData(ld));
+        }
+        return ld;
+    }
+
+    /**
+     * 指定された位置から、ロックデータを取得する
+     * @param location 位置
+     * @return ロックデータ
+     */
+    public LockData getLockDataByLocation(Location location) {
+        WorldLockIndex index = locationMap.get(location.getWorld().getName());
+        if ( index == null ) return null;
+        return index.get(BlockPosition.pack(location));
+    }
+
+    /**
+     * 指定されたチャンクにあるロックデータを取得する
+     * @param world ワールド名
+     * @param chunkX チャンクのX座標
+     * @param chunkZ チャンクのZ座標
+     * @return ロックデータのリスト
+     */
+    public List<LockData> getChunkLockData(String world, int chunkX, int chunkZ) {
+        WorldLockIndex index = locationMap.get(world);
+        if ( index == null ) return new ArrayList<LockData>();
+        return index.getChunk(chunkX, chunkZ);
+    }
+
+    /**
+     * 指定されたチャンクにロックデータがあるかどうかを返す
+     * @param world ワールド名
+     * @param chunkX チャンクのX座標
+     * @param chunkZ チャンクのZ座標
+     * @return ロックデータがあるかどうか
+     */
+    public boolean hasChunkLockData(String world, int chunkX, int chunkZ) {
+        WorldLockIndex index = locationMap.get(world);
+        return index != null && index.hasChunk(chunkX, chunkZ);
+    }
+
+    /**
+     * 指定された位置のチャンクのロックデータを、保存先がまだ読み込み中かどうかを返す。
+     * 読み込み中の間は、その位置にロックデータがあるかどうかが分からない。
+     * @param location 位置
+     * @return 読み込み中かどうか
+     */
+    public boolean isLockDataLoading(Location location) {
+        return store.isChunkLoading(location.getWorld().getName(),
+                location.getBlockX() >> 4, location.getBlockZ() >> 4);
+    }
+
+    /**
+     * 指定された複数のブロック位置に、ロックされたスタンドがあるかどうかをまとめて調べる。
+     * ロックデータを読み込み中のチャンクを含む場合は、ロックされているものとして扱う。
+     * ロックデータの記録位置から動いたスタンドは、キャッシュにある今の位置のスタンドを、UUIDのインデックスで確認する。
+     * それ以外は、位置を含むチャンクのいずれにもロックデータが無い場合に、エンティティを調べずに終わる。
+     * @param world ワールド
+     * @param positions ブロック座標のlong値の配列
+     * @param standCache スタンドのキャッシュ
+     * @return ロックされたスタンドがあるかどうか
+     */
+    public boolean hasLockedArmorStand(World world, long[] positions, ArmorStandCache standCache) {
+
+        String name = world.getName();
+
+        // ロックデータを読み込み中のチャンクは、ロックされているものとして扱う
+        for ( long key : positions ) {
+            if ( store.isChunkLoading(name, BlockPosition.getX(key) >> 4, BlockPosition.getZ(key) >> 4) ) {
+                return true;
+            }
+        }
+
+        WorldLockIndex index = locationMap.get(name);
+        if ( index == null || index.isEmpty() ) return false;
+
+        // 動いたスタンドは、記録位置のチャンクとは別のチャンクにいることがあるので、
+        // チャンクのインデックスを使わずに、キャッシュのスタンドをUUIDで確認する
+        if ( !entityMap.isEmpty() ) {
+            for ( long key : positions ) {
+                ArmorStand stand = standCache.getArmorStand(name, key);
+                if ( stand != null && entityMap.containsKey(stand.getUniqueId()) ) {
+                    return true;
+                }
+            }
+        }
+
+        // 位置を含むチャンクに、ロックデータがあるかどうかを先に確認する。
+        // 連続する位置は同じチャンクに入ることが多いので、直前のチャンクは確認を省く。
+        boolean found = false;
+        long lastChunk = 0;
+        for ( int i=0; i<positions.length && !found; i++ ) {
+            long chunk = BlockPosition.toChunk(positions[i]);
+            if ( i > 0 && chunk == lastChunk ) continue;
+            lastChunk = chunk;
+            found = index.hasChunk(BlockPosition.getX(positions[i]) >> 4,
+                    BlockPosition.getZ(positions[i]) >> 4);
+        }
+        if ( !found ) return false;
+
+        // 位置で記録されたロックデータを、キャッシュのスタンドから探す
+        for ( long key : positions ) {
+            ArmorStand stand = standCache.getArmorStand(name, key);
+            if ( stand != null && getLockDataByArmorStand(stand) != null ) {
+                return true;
+            }
+        }
+
+        // キャッシュは動いたスタンドを取りこぼすことがあるので、
+        // 位置を含むチャンクのエンティティを1回ずつ調べて確認する
+        for ( ArmorStand stand : StandUtility.getArmorstandsFromPositions(world, positions) ) {
+            standCache.put(stand);
+            if ( getLockDataByArmorStand(stand) != null ) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * 全てのロックデータを取得する
-     * @return 全てのロックデータ
+     * 指定されたワールドの、ロードされている全てのロックデータを取得する
+     * @param world ワールド名
+     * @return ロックデータのリスト
      */
-    public List<LockData> getAllLockData() {
-        return new ArrayList<LockData>(locationMap.values());
+    public List<LockData> getWorldLockData(String world) {
+        WorldLockIndex index = locationMap.get(world);
+        if ( index == null ) return new ArrayList<LockData>();
+        return index.values();
     }
 
     /**
@@ -186,23 +741,25 @@ public class LockDataManager {
         if ( uuid == null || stand == null ) return;
 
         // 既にロックデータが存在する場合は、古いデータを削除する
-        String locDesc = getDescriptionFromLocation(stand.getLocation());
-        if ( locationMap.containsKey(locDesc) ) {
+        if ( getLockDataByArmorStand(stand) != null ) {
             removeLockData(stand);
         }
 
-        // オーナープレイヤーのデータが無いなら新規作成する
-        if ( !idMap.containsKey(uuid) ) {
-            idMap.put(uuid, new ArrayList<LockData>());
-        }
-
         // ロックデータ追加
-        LockData data = new LockData(uuid, stand.getLocation(), System.currentTimeMillis());
-        idMap.get(uuid).add(data);
-        locationMap.put(locDesc, data);
+        insertLockData(new LockData(uuid, stand.getLocation(),
+                System.currentTimeMillis(), stand.getUniqueId()));
+    }
+
+    /**
+     * ロックデータを、全てのインデックスに登録して、保存する
+     * @param data ロックデータ
+     */
+    private void insertLockData(LockData data) {
+
+        putIndex(data);
 
         // データを保存
-        saveData(uuid);
+        storeChange(OP_ADD, LockRecord.fromLockData(data));
     }
 
     /**
@@ -212,23 +769,7 @@ public class LockDataManager {
     public void removeLockData(ArmorStand stand) {
 
         if ( stand == null ) return;
-
-        // 既にロックデータが無い場合は、何もしない
-        String locDesc = getDescriptionFromLocation(stand.getLocation());
-        if ( !locationMap.containsKey(locDesc) ) {
-            return;
-        }
-
-        LockData ld = locationMap.get(locDesc);
-
-        // 削除を実行
-        locationMap.remove(locDesc);
-        if ( idMap.containsKey(ld.getOwnerUuid()) ) {
-            idMap.get(ld.getOwnerUuid()).remove(ld);
-        }
-
-        // データを保存
-        saveData(ld.getOwnerUuid());
+        removeLockData(getLockDataByArmorStand(stand));
     }
 
     /**
@@ -239,21 +780,46 @@ public class LockDataManager {
 
         if ( locationDescription == null ) return;
 
+        Location location = getLocationFromDescription(locationDescription);
+        if ( location == null ) return;
+        removeLockData(getLockDataByLocation(location));
+    }
+
+    /**
+     * ロックデータを削除する
+     * @param ld 削除するロックデータ
+     */
+    public void removeLockData(LockData ld) {
+
         // 既にロックデータが無い場合は、何もしない
-        if ( !locationMap.containsKey(locationDescription) ) {
+        if ( ld == null || !removeLocationIndex(ld) ) {
             return;
         }
 
-        LockData ld = locationMap.get(locationDescription);
-
         // 削除を実行
-        locationMap.remove(locationDescription);
-        if ( idMap.containsKey(ld.getOwnerUuid()) ) {
-            idMap.get(ld.getOwnerUuid()).remove(ld);
+        if ( ld.getEntityUuid() != null ) {
+            entityMap.remove(ld.getEntityUuid());
         }
 
         // データを保存
-        saveData(ld.getOwnerUuid());
+        storeChange(OP_REMOVE, LockRecord.fromLockData(ld));
+    }
+
+    /**
+     * ロックデータの追加・削除を保存先へ反映する。再読込中の場合は、変更を記録しておく。
+     * @param op 変更の種類
+     * @param record ロックデータ
+     */
+    private void storeChange(int op, LockRecord record) {
+
+        if ( op == OP_ADD ) {
+            store.add(record);
+        } else {
+            store.remove(record);
+        }
+        if ( reloadChanges != null ) {
+            reloadChanges.add(new PendingChange(op, record, null));
+        }
     }
 
     /**
@@ -263,10 +829,8 @@ public class LockDataManager {
      */
     public int getPlayerLockNum(UUID uuid) {
 
-        if ( idMap.containsKey(uuid) ) {
-            return idMap.get(uuid).size();
-        }
-        return 0;
+        // ロードされていないワールドやチャンクのロックも、設置数に含める
+        return store.getCount(uuid);
     }
 
     /**
@@ -301,12 +865,7 @@ public class LockDataManager {
      * @return ロックデータの個数
      */
     public int getWorldLockDataNum(String world) {
-
-        int count = 0;
-        for ( String key : locationMap.keySet() ) {
-            if ( getWorldNameFromDescription(key).equals(world) ) count++;
-        }
-        return count;
+        return store.getWorldCount(world);
     }
 
     /**
@@ -315,121 +874,106 @@ public class LockDataManager {
      */
     public void cleanupWorldLockData(String world) {
 
-        ArrayList<LockData> dataList = new ArrayList<LockData>();
-        ArrayList<UUID> ownerList = new ArrayList<UUID>();
-
-        // 対象のワールドにあるロックデータをリスト化
-        for ( String key : locationMap.keySet() ) {
-            if ( getWorldNameFromDescription(key).equals(world) ) {
-                LockData data = locationMap.get(key);
-                dataList.add(data);
-                if ( !ownerList.contains(data.getOwnerUuid()) ) {
-                    ownerList.add(data.getOwnerUuid());
-                }
-            }
-        }
-
-        // 削除を実行
-        for ( LockData data : dataList ) {
-            String locDesc = getDescriptionFromLocation(data.getLocation());
-            locationMap.remove(locDesc);
-            if ( idMap.containsKey(data.getOwnerUuid()) ) {
-                idMap.get(data.getOwnerUuid()).remove(data);
-            }
-        }
-
-        // データを保存する
-        for ( UUID uuid : ownerList ) {
-            saveData(uuid);
+        // 保存先から削除して、インデックスからも取り外す
+        store.deleteWorld(world);
+        detachWorld(world);
+        if ( reloadChanges != null ) {
+            reloadChanges.add(new PendingChange(OP_DELETE_WORLD, null, world));
         }
     }
 
     /**
-     * Locationを文字列に変換する
-     * @param location Location
-     * @return 変換後の文字列
+     * 指定したワールドのロックデータを、インデックスから取り外す
+     * @param world ワールド名
      */
-    private static String getDescriptionFromLocation(Location location) {
+    private void detachWorld(String world) {
 
-        return String.format("%s_%d_%d_%d",
-                location.getWorld().getName(),
-                location.getBlockX(),
-                location.getBlockY(),
-                location.getBlockZ() );
+        WorldLockIndex index = locationMap.remove(world);
+        if ( index == null ) return;
+
+        for ( LockData data : index.values() ) {
+            if ( data.getEntityUuid() != null ) {
+                entityMap.remove(data.getEntityUuid());
+            }
+        }
     }
 
     /**
-     * 文字列をLocationに変換する
-     * @param description 文字列
-     * @return Location、変換に失敗した場合はnull
+     * ロックデータを、全てのインデックスに登録する
+     * @param data ロックデータ
      */
-    private static Location getLocationFromDescription(String description) {
-
-        String[] temp = description.split("_");
-        if ( temp.length < 4 ) {
-            return null;
+    private void putIndex(LockData data) {
+        putLocationIndex(data);
+        if ( data.getEntityUuid() != null ) {
+            entityMap.put(data.getEntityUuid(), data);
         }
+    }
 
-        int offset = temp.length - 4;
-        String temp_x = temp[offset + 1];
-        String temp_y = temp[offset + 2];
-        String temp_z = temp[offset + 3];
-        if ( !isDigit(temp_x) || !isDigit(temp_y) || !isDigit(temp_z) ) {
-            return null;
-        }
-        int x = Integer.parseInt(temp_x);
-        int y = Integer.parseInt(temp_y);
-        int z = Integer.parseInt(temp_z);
+    /**
+     * ロックデータを、位置のインデックスに登録する
+     * @param data ロックデータ
+     */
+    private void putLocationIndex(LockData data) {
 
-        String suffix = temp_x + "_" + temp_y + "_" + temp_z;
-        String wname = description.substring(0, description.lastIndexOf(suffix) - 1);
-        World world = Bukkit.getWorld(wname);
-        if ( world == null ) {
-            return null;
+        String world = data.getLocation().getWorld().getName();
+        WorldLockIndex index = locationMap.get(world);
+        if ( index == null ) {
+            index = new WorldLockIndex();
+            locationMap.put(world, index);
         }
-
-        return new Location(world, x, y, z);
+        index.put(BlockPosition.pack(data.getLocation()), data);
     }
 
     /**
-     * Location文字列からワールド名のみを取得する
-     * @param desc 文字列
-     * @return ワールド名
+     * ロックデータを、位置のインデックスから削除する
+     * @param data ロックデータ
+     * @return 削除したかどうか
      */
-    private static String getWorldNameFromDescription(String desc) {
+    private boolean removeLocationIndex(LockData data) {
 
-        String[] temp = desc.split("_");
-        if ( temp.length < 4 ) {
-            return "";
-        }
+        String world = data.getLocation().getWorld().getName();
+        WorldLockIndex index = locationMap.get(world);
+        if ( index == null ) return false;
 
-        int offset = temp.length - 4;
-        String temp_x = temp[offset + 1];
-        String temp_y = temp[offset + 2];
-        String temp_z = temp[offset + 3];
-        if ( !isDigit(temp_x) || !isDigit(temp_y) || !isDigit(temp_z) ) {
-            return "";
+        long key = BlockPosition.pack(data.getLocation());
+        if ( index.get(key) != data ) return false;
+        index.remove(key);
+        if ( index.isEmpty() ) {
+            locationMap.remove(world);
         }
-
-        String suffix = temp_x + "_" + temp_y + "_" + temp_z;
-        return desc.substring(0, desc.lastIndexOf(suffix) - 1);
+        return true;
     }
 
     /**
-     * 文字列がUUIDかどうかを判定する
-     * @param source 文字列
-     * @return UUIDかどうか
+     * 2つのLocationが同じブロックかどうかを確認する
+     * @param loc1
+     * @param loc2
+     * @return 同じブロックかどうか
      */
-    private static boolean isUUID(String source) {
-        return source.matches("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    private static boolean isSameBlock(Location loc1, Location loc2) {
+        return loc1.getWorld().getName().equals(loc2.getWorld().getName()) &&
+                loc1.getBlockX() == loc2.getBlockX() &&
+                loc1.getBlockY() == loc2.getBlockY() &&
+                loc1.getBlockZ() == loc2.getBlockZ();
     }
 
     /**
-     * 文字列が整数値に変換可能かどうかを判定する
-     * @param source 変換対象の文字列
-     * @return 整数に変換可能かどうか
+     * 文字列をLocationに変換する
+     * @param description 文字列
+     * @return Location、変換に失敗した場合はnull
      */
-    private static boolean isDigit(String source) {
-        return source.matches("^-?[0-9]{1,9}$");
+    private static Location getLocationFromDescription(String description) {
+
+        LockRecord record = LockDataLoader.parseDescription(description);
+        if ( record == null ) {
+            return null;
+        }
+
+        World world = Bukkit.getWorld(record.world);
+        if ( world == null ) {
+            return null;
+        }
+
+        return new Location(world, record.x, record.y, record.z);
     }
 }
@@ -0,0 +1,913 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.bukkit.plugin.Plugin;
+
+/**
+ * ロックデータを、固定長レコードのインデックスファイル（data/locks.idx）に保存するクラス。
+ * ファイルはメモリマップして開き、追加・削除はマップした領域へ1レコード分だけ直接書き込む。
+ * メモリには、チャンクごとのレコードの位置（int）だけを置き、ロックデータはチャンクがロードされた時に
+ * マップした領域から直接読み出す。起動時は各レコードの位置とオーナーを読むだけで、解析は行わない。
+ * 削除したレコードの位置は空きとして記録し、次の追加で再利用する。
+ * 各レコードにはチェックサムがあり、読み出した時に合わないレコード（書き込み途中で停止したもの）は読み飛ばす。
+ * 読み飛ばしたレコードはファイルに残し、同じ位置がロックされ直した時に上書きする。
+ * マップした領域の読み書きは、全てメインスレッドで行う。
+ * ワールド名は、ワールド番号との対応表（data/locks.idx.worlds）に保存する。
+ * ヘッダーが壊れている場合は、ファイルを別名に移動して、チェックサムの合うレコードを新しいファイルへ移す。
+ * @author ucchy
+ */
+public class LockDataMappedStore implements LockStore {
+
+    private static final String INDEX_FILE = "locks.idx";
+    private static final String WORLDS_FILE = "locks.idx.worlds";
+
+    private static final int MAGIC = 0x534C4D31; // "SLM1"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 64;
+    private static final int CHECKSUM_OFFSET = 56;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int STATE_USED = 1;
+    private static final int STATE_ENTITY = 2;
+
+    /** データを格納するフォルダ */
+    private File dataFolder;
+
+    /** インデックスファイル */
+    private File indexFile;
+
+    /** ワールド名の対応表のファイル */
+    private File worldsFile;
+
+    /** インデックスファイル */
+    private RandomAccessFile raf;
+
+    /** インデックスファイルのチャネル */
+    private FileChannel channel;
+
+    /** マップした領域 */
+    private MappedByteBuffer buffer;
+
+    /** レコードの数 */
+    private int capacity;
+
+    /** 空いているレコードの位置 */
+    private BitSet freeSlots;
+
+    /** ワールド番号をインデックスとした、ワールド名 */
+    private ArrayList<String> worldNames;
+
+    /** ワールド名をキーとした、ワールド番号 */
+    private HashMap<String, Integer> worldIds;
+
+    /** ワールド名、チャンク座標の順にキーとした、レコードの位置 */
+    private HashMap<String, LongObjectHashMap<Slots>> slots;
+
+    /** ワールド名、チャンク座標の順にキーとした、ロード済みのチャンク */
+    private HashMap<String, LongObjectHashMap<Boolean>> loadedChunks;
+
+    /** ロック数 */
+    private LockCounter counts;
+
+    /** ファイルへの反映を行うスレッド */
+    private ExecutorService executor;
+
+    /** カーソルの読み出しを、メインスレッドで行うためのプラグイン */
+    private Plugin plugin;
+
+    /** ロガー（loadで設定する） */
+    private Logger logger;
+
+    /**
+     * コンストラクタ
+     * @param dataFolder データを格納するフォルダ
+     * @param plugin カーソルの読み出しを、メインスレッドで行うためのプラグイン、
+     * nullの場合は呼び出したスレッドで読み出す
+     */
+    public LockDataMappedStore(File dataFolder, Plugin plugin) {
+        this.dataFolder = dataFolder;
+        this.plugin = plugin;
+        this.indexFile = new File(dataFolder, INDEX_FILE);
+        this.worldsFile = new File(dataFolder, WORLDS_FILE);
+        this.executor = Executors.newSingleThreadExecutor();
+        this.logger = Logger.getLogger(LockDataMappedStore.class.getName());
+    }
+
+    /**
+     * インデックスファイルを開き直して、全てのレコードを確認する。
+     * インデックスファイルがまだ無い場合は、プレイヤーファイルから一度だけ移行する。
+     * @see org.bitbucket.ucchy.sl.LockStore#load(java.util.logging.Logger)
+     */
+    @Override
+    public void load(Logger logger) {
+
+        this.logger = logger;
+        close();
+
+        freeSlots = new BitSet();
+        worldNames = new ArrayList<String>();
+        worldIds = new HashMap<String, Integer>();
+        slots = new HashMap<String, LongObjectHashMap<Slots>>();
+        loadedChunks = new HashMap<String, LongObjectHashMap<Boolean>>();
+        counts = new LockCounter();
+
+        try {
+            boolean migrate = !indexFile.exists();
+            List<LockRecord> salvaged = null;
+            if ( !migrate && !open() ) {
+                // ヘッダーが壊れている場合は、読めるレコードを控えてから、ファイルを別名に移動する
+                close();
+                salvaged = salvage();
+                logger.warning("Lock data index " + indexFile.getName() + " is broken.");
+                File dest = Utility.quarantineFile(indexFile);
+                if ( dest != null ) {
+                    logger.warning("The broken file was moved to " + dest.getName() + ".");
+                    Utility.quarantineFile(worldsFile);
+                }
+            }
+            if ( channel == null ) {
+                worldsFile.delete();
+                create();
+            }
+            loadWorldNames();
+
+            // レコードの位置とオーナーだけを読む。チェックサムは、レコードを読み出す時に確認する。
+            for ( int slot=0; slot<capacity; slot++ ) {
+                int base = HEADER_SIZE + slot * RECORD_SIZE;
+                if ( (buffer.getInt(base) & STATE_USED) == 0 ) {
+                    freeSlots.set(slot);
+                    continue;
+                }
+                int worldId = buffer.getInt(base + 4);
+                if ( worldId < 0 || worldId >= worldNames.size() ) {
+                    clearSlot(slot);
+                    freeSlots.set(slot);
+                    continue;
+                }
+                String world = worldNames.get(worldId);
+                addSlot(world, buffer.getLong(base + 8), slot);
+                counts.add(world, getOwner(slot), 1);
+            }
+
+            if ( salvaged != null ) {
+                for ( LockRecord record : salvaged ) {
+                    put(record);
+                }
+                buffer.force();
+                logger.warning("Recovered " + salvaged.size() + " lock data from the broken index.");
+
+                // 1件も読めなかった場合は、プレイヤーファイルから移行し直す
+                migrate = salvaged.isEmpty();
+            }
+
+            if ( migrate ) {
+                List<LockRecord> records = LockDataLoader.loadRecords(dataFolder);
+                for ( LockRecord record : records ) {
+                    put(record);
+                }
+                buffer.force();
+                if ( records.size() > 0 ) {
+                    logger.info("Migrated " + records.size() + " lock data from yml files to the index file.");
+                }
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#prepareReload(java.util.logging.Logger)
+     */
+    @Override
+    public Reload prepareReload(Logger logger) {
+        // 非同期の再読込には対応しない
+        return null;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#isChunkPaged()
+     */
+    @Override
+    public boolean isChunkPaged() {
+        return true;
+    }
+
+    /**
+     * チャンクのロード時に返すので、ワールド単位では返さない
+     * @see org.bitbucket.ucchy.sl.LockStore#loadWorld(java.lang.String)
+     */
+    @Override
+    public List<LockRecord> loadWorld(String world) {
+        return new ArrayList<LockRecord>();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#unloadWorld(java.lang.String)
+     */
+    @Override
+    public void unloadWorld(String world) {
+        loadedChunks.remove(world);
+    }
+
+    /**
+     * チャンクがロードされたことを記録し、マップした領域から、そのチャンクのレコードを読み出す
+     * @see org.bitbucket.ucchy.sl.LockStore#loadChunk(java.lang.String, int, int)
+     */
+    @Override
+    public List<LockRecord> loadChunk(String world, int chunkX, int chunkZ) {
+
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        long chunkKey = BlockPosition.packChunk(chunkX, chunkZ);
+        LongObjectHashMap<Boolean> loaded = loadedChunks.get(world);
+        if ( loaded == null ) {
+            loaded = new LongObjectHashMap<Boolean>();
+            loadedChunks.put(world, loaded);
+        }
+        if ( loaded.put(chunkKey, Boolean.TRUE) != null ) return records;
+
+        LongObjectHashMap<Slots> map = slots.get(world);
+        Slots chunk = map == null ? null : map.get(chunkKey);
+        if ( chunk == null ) return records;
+
+        for ( int i=0; i<chunk.size; i++ ) {
+            LockRecord record = readRecord(chunk.slots[i]);
+            if ( record != null ) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#unloadChunk(java.lang.String, int, int)
+     */
+    @Override
+    public void unloadChunk(String world, int chunkX, int chunkZ) {
+        LongObjectHashMap<Boolean> loaded = loadedChunks.get(world);
+        if ( loaded != null ) {
+            loaded.remove(BlockPosition.packChunk(chunkX, chunkZ));
+        }
+    }
+
+    /**
+     * チャンクのロックデータは、ロード時にその場で読み込むので、読み込み中のチャンクは無い
+     * @see org.bitbucket.ucchy.sl.LockStore#isChunkLoading(java.lang.String, int, int)
+     */
+    @Override
+    public boolean isChunkLoading(String world, int chunkX, int chunkZ) {
+        return false;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#add(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void add(LockRecord record) {
+        putSafely(record);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#update(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void update(LockRecord record) {
+        putSafely(record);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#remove(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void remove(LockRecord record) {
+        int slot = findSlot(record.world, record.getBlockKey());
+        if ( slot >= 0 ) {
+            releaseSlot(record.world, record.getBlockKey(), slot);
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#deleteWorld(java.lang.String)
+     */
+    @Override
+    public void deleteWorld(String world) {
+
+        LongObjectHashMap<Slots> map = slots.remove(world);
+        counts.removeWorld(world);
+        if ( map == null ) return;
+        for ( Slots chunk : map.values() ) {
+            for ( int i=0; i<chunk.size; i++ ) {
+                clearSlot(chunk.slots[i]);
+                freeSlots.set(chunk.slots[i]);
+            }
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#importRecords(java.util.List)
+     */
+    @Override
+    public void importRecords(List<LockRecord> records) {
+        for ( LockRecord record : records ) {
+            putSafely(record);
+        }
+    }
+
+    /**
+     * マップした領域を、先頭から一定数のレコードずつ、メインスレッドで読み出す。
+     * レコードはメインスレッドでその場で書き換えられるので、読み出しもメインスレッドで行い、
+     * 書き換えの途中のレコードを読まないようにする。
+     * @see org.bitbucket.ucchy.sl.LockStore#openCursor()
+     */
+    @Override
+    public Iterator<LockRecord> openCursor() {
+
+        final int[] next = new int[1];
+        final Callable<List<LockRecord>> copy = new Callable<List<LockRecord>>() {
+            public List<LockRecord> call() {
+                ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+                if ( buffer == null ) return records;
+
+                // 読み出しの間に拡張された場合は、拡張後の範囲まで読む
+                int end = Math.min(next[0] + INITIAL_CAPACITY, capacity);
+                for ( ; next[0] < end; next[0]++ ) {
+                    int slot = next[0];
+                    if ( (buffer.getInt(HEADER_SIZE + slot * RECORD_SIZE) & STATE_USED) == 0 ) continue;
+                    LockRecord record = decode(readSlot(slot), worldNames);
+                    if ( record != null ) {
+                        records.add(record);
+                    }
+                }
+                return records;
+            }
+        };
+
+        return new LockRecordCursor() {
+            protected List<LockRecord> nextBatch() throws Exception {
+                // 空のレコードだけが続いても、末尾に達するまでは読み進める
+                while ( true ) {
+                    List<LockRecord> records = plugin == null ? copy.call() : callSync(plugin, copy);
+                    if ( !records.isEmpty() ) return records;
+                    if ( next[0] >= capacity ) return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#getCount(java.util.UUID)
+     */
+    @Override
+    public int getCount(UUID owner) {
+        return counts.getCount(owner);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#getWorldCount(java.lang.String)
+     */
+    @Override
+    public int getWorldCount(String world) {
+        return counts.getWorldCount(world);
+    }
+
+    /**
+     * マップした領域の変更を、ディスクへ反映するよう予約する
+     * @see org.bitbucket.ucchy.sl.LockStore#flush()
+     */
+    @Override
+    public void flush() {
+        final MappedByteBuffer target = buffer;
+        if ( target == null ) return;
+        executor.execute(new Runnable() {
+            public void run() {
+                target.force();
+            }
+        });
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#saveAll()
+     */
+    @Override
+    public void saveAll() {
+        flush();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#shutdown(int, java.util.logging.Logger)
+     */
+    @Override
+    public void shutdown(int timeout, Logger logger) {
+        flush();
+        executor.shutdown();
+        try {
+            if ( !executor.awaitTermination(timeout, TimeUnit.SECONDS) ) {
+                logger.warning("Lock data could not be saved within " + timeout + " seconds.");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        close();
+    }
+
+    /**
+     * レコードを追加または更新する。
+     * インデックスファイルを拡張できなかった場合は、レコードを保存せずにログへ出力する。
+     * @param record レコード
+     */
+    private void putSafely(LockRecord record) {
+        try {
+            put(record);
+        } catch (IOException e) {
+            e.printStackTrace();
+            logger.severe("Could not save the lock data at " + record.world + " "
+                    + record.x + "," + record.y + "," + record.z + " because "
+                    + indexFile.getName() + " could not be extended.");
+        }
+    }
+
+    /**
+     * レコードを追加または更新する
+     * @param record レコード
+     * @throws IOException インデックスファイルを拡張できなかった場合
+     */
+    private void put(LockRecord record) throws IOException {
+
+        long key = record.getBlockKey();
+        int slot = findSlot(record.world, key);
+        if ( slot >= 0 ) {
+            counts.add(record.world, getOwner(slot), -1);
+        } else {
+            slot = freeSlots.nextSetBit(0);
+            if ( slot < 0 ) {
+                slot = grow();
+            }
+            freeSlots.clear(slot);
+            addSlot(record.world, key, slot);
+        }
+
+        writeSlot(slot, encode(record, getWorldId(record.world)));
+        counts.add(record.world, record.owner, 1);
+    }
+
+    /**
+     * 指定した位置のレコードを読み出す。
+     * チェックサムが合わない場合は読み飛ばすが、位置とロック数はそのまま残し、
+     * 同じブロック座標がロックし直された時に上書きする。
+     * @param slot レコードの位置
+     * @return レコード、チェックサムが合わない場合はnull
+     */
+    private LockRecord readRecord(int slot) {
+
+        LockRecord record = decode(readSlot(slot), worldNames);
+        if ( record == null ) {
+            long key = buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE + 8);
+            logger.warning("A broken lock data record at " + BlockPosition.getX(key) + ","
+                    + BlockPosition.getY(key) + "," + BlockPosition.getZ(key) + " in "
+                    + indexFile.getName() + " was skipped.");
+        }
+        return record;
+    }
+
+    /**
+     * 指定した位置のレコードのオーナーを、チェックサムを確認せずに読み出す
+     * @param slot レコードの位置
+     * @return オーナー
+     */
+    private UUID getOwner(int slot) {
+        int base = HEADER_SIZE + slot * RECORD_SIZE;
+        return new UUID(buffer.getLong(base + 16), buffer.getLong(base + 24));
+    }
+
+    /**
+     * ブロック座標のレコードの位置を探す。チャンク内のレコードの座標を、マップした領域から比べる。
+     * @param world ワールド名
+     * @param key ブロック座標のlong値
+     * @return レコードの位置、無い場合は-1
+     */
+    private int findSlot(String world, long key) {
+        LongObjectHashMap<Slots> map = slots.get(world);
+        Slots chunk = map == null ? null : map.get(BlockPosition.toChunk(key));
+        if ( chunk == null ) return -1;
+        for ( int i=0; i<chunk.size; i++ ) {
+            if ( buffer.getLong(HEADER_SIZE + chunk.slots[i] * RECORD_SIZE + 8) == key ) {
+                return chunk.slots[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * レコードの位置を登録する
+     * @param world ワールド名
+     * @param key ブロック座標のlong値
+     * @param slot レコードの位置
+     */
+    private void addSlot(String world, long key, int slot) {
+        LongObjectHashMap<Slots> map = slots.get(world);
+        if ( map == null ) {
+            map = new LongObjectHashMap<Slots>();
+            slots.put(world, map);
+        }
+        long chunkKey = BlockPosition.toChunk(key);
+        Slots chunk = map.get(chunkKey);
+        if ( chunk == null ) {
+            chunk = new Slots();
+            map.put(chunkKey, chunk);
+        }
+        chunk.add(slot);
+    }
+
+    /**
+     * レコードを削除して、位置を空きに戻す
+     * @param world ワールド名
+     * @param key ブロック座標のlong値
+     * @param slot レコードの位置
+     */
+    private void releaseSlot(String world, long key, int slot) {
+
+        counts.add(world, getOwner(slot), -1);
+        clearSlot(slot);
+        freeSlots.set(slot);
+
+        LongObjectHashMap<Slots> map = slots.get(world);
+        if ( map == null ) return;
+        long chunkKey = BlockPosition.toChunk(key);
+        Slots chunk = map.get(chunkKey);
+        if ( chunk != null && chunk.remove(slot) && chunk.size == 0 ) {
+            map.remove(chunkKey);
+        }
+    }
+
+    /**
+     * ワールド番号を取得する。対応表に無い場合は追加し、ファイルへの追記を予約する。
+     * 追加したワールドのレコードは、対応表の追記より後に {@link #flush()} でディスクへ反映される。
+     * @param world ワールド名
+     * @return ワールド番号
+     */
+    private int getWorldId(final String world) {
+
+        Integer id = worldIds.get(world);
+        if ( id != null ) return id;
+
+        id = worldNames.size();
+        worldNames.add(world);
+        worldIds.put(world, id);
+
+        executor.execute(new Runnable() {
+            public void run() {
+                FileOutputStream stream = null;
+                try {
+                    stream = new FileOutputStream(worldsFile, true);
+                    Writer writer = new OutputStreamWriter(stream, "UTF-8");
+                    writer.write(world + "\n");
+                    writer.flush();
+                    stream.getFD().sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    if ( stream != null ) {
+                        try {
+                            stream.close();
+                        } catch (IOException e) {
+                            // do nothing.
+                        }
+                    }
+                }
+            }
+        });
+        return id;
+    }
+
+    /**
+     * 壊れたインデックスファイルから、チェックサムの合うレコードを読み出す
+     * @return 読み出したレコード
+     */
+    private List<LockRecord> salvage() {
+
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        RandomAccessFile file = null;
+        try {
+            loadWorldNames();
+            file = new RandomAccessFile(indexFile, "r");
+            byte[] bytes = new byte[RECORD_SIZE];
+            for ( long pos = HEADER_SIZE; pos + RECORD_SIZE <= file.length(); pos += RECORD_SIZE ) {
+                file.seek(pos);
+                file.readFully(bytes);
+                if ( (ByteBuffer.wrap(bytes).getInt(0) & STATE_USED) == 0 ) continue;
+                LockRecord record = decode(bytes, worldNames);
+                if ( record != null ) {
+                    records.add(record);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if ( file != null ) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // do nothing.
+                }
+            }
+            worldNames = new ArrayList<String>();
+            worldIds = new HashMap<String, Integer>();
+        }
+        return records;
+    }
+
+    /**
+     * ワールド名の対応表を読み込む
+     * @throws IOException
+     */
+    private void loadWorldNames() throws IOException {
+
+        if ( !worldsFile.exists() ) return;
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(worldsFile), "UTF-8"));
+        try {
+            String line;
+            while ( (line = reader.readLine()) != null ) {
+                worldIds.put(line, worldNames.size());
+                worldNames.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 既存のインデックスファイルを開く
+     * @return ヘッダーが正しかったかどうか
+     * @throws IOException
+     */
+    private boolean open() throws IOException {
+
+        raf = new RandomAccessFile(indexFile, "rw");
+        channel = raf.getChannel();
+        if ( channel.size() < HEADER_SIZE ) return false;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        if ( header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                || header.getInt(8) != RECORD_SIZE || header.getInt(16) != checksum(header.array(), 16) ) {
+            return false;
+        }
+
+        // 拡張の途中で停止した場合に備えて、実際のファイルサイズに収まる分だけを使う
+        long available = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+        capacity = (int)Math.min(header.getInt(12), available);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)capacity * RECORD_SIZE);
+        return true;
+    }
+
+    /**
+     * インデックスファイルを新規に作成する
+     * @throws IOException
+     */
+    private void create() throws IOException {
+        raf = new RandomAccessFile(indexFile, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        capacity = INITIAL_CAPACITY;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)capacity * RECORD_SIZE);
+        writeHeader();
+    }
+
+    /**
+     * レコードの数を2倍に拡張する
+     * @return 拡張後の、最初の空きレコードの位置
+     * @throws IOException ファイルを拡張できなかった場合、拡張前の状態のままになる
+     */
+    private int grow() throws IOException {
+
+        if ( channel == null ) {
+            throw new IOException(indexFile.getName() + " is not open.");
+        }
+
+        // 先にファイルを拡張してから、ヘッダーのレコード数を更新する
+        waitForIdle();
+        int first = capacity;
+        int next = capacity * 2;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)next * RECORD_SIZE);
+        capacity = next;
+        writeHeader();
+        freeSlots.set(first, capacity);
+        return first;
+    }
+
+    /**
+     * ヘッダーを書き込む
+     */
+    private void writeHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, RECORD_SIZE);
+        header.putInt(12, capacity);
+        header.putInt(16, checksum(header.array(), 16));
+        ByteBuffer target = buffer.duplicate();
+        target.position(0);
+        target.put(header.array());
+    }
+
+    /**
+     * 指定した位置のレコードを読み出す
+     * @param slot レコードの位置
+     * @return レコードのバイト列
+     */
+    private byte[] readSlot(int slot) {
+        byte[] bytes = new byte[RECORD_SIZE];
+        ByteBuffer source = buffer.duplicate();
+        source.position(HEADER_SIZE + slot * RECORD_SIZE);
+        source.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 指定した位置にレコードを書き込む
+     * @param slot レコードの位置
+     * @param bytes レコードのバイト列
+     */
+    private void writeSlot(int slot, byte[] bytes) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(HEADER_SIZE + slot * RECORD_SIZE);
+        target.put(bytes);
+    }
+
+    /**
+     * 指定した位置のレコードを空にする
+     * @param slot レコードの位置
+     */
+    private void clearSlot(int slot) {
+        writeSlot(slot, new byte[RECORD_SIZE]);
+    }
+
+    /**
+     * レコードをバイト列に変換する
+     * @param record レコード
+     * @param worldId ワールド番号
+     * @return バイト列
+     */
+    private static byte[] encode(LockRecord record, int worldId) {
+        ByteBuffer bytes = ByteBuffer.allocate(RECORD_SIZE);
+        bytes.putInt(0, STATE_USED | (record.entity != null ? STATE_ENTITY : 0));
+        bytes.putInt(4, worldId);
+        bytes.putLong(8, record.getBlockKey());
+        bytes.putLong(16, record.owner.getMostSignificantBits());
+        bytes.putLong(24, record.owner.getLeastSignificantBits());
+        bytes.putLong(32, record.time);
+        if ( record.entity != null ) {
+            bytes.putLong(40, record.entity.getMostSignificantBits());
+            bytes.putLong(48, record.entity.getLeastSignificantBits());
+        }
+        bytes.putInt(CHECKSUM_OFFSET, checksum(bytes.array(), CHECKSUM_OFFSET));
+        return bytes.array();
+    }
+
+    /**
+     * バイト列をレコードに変換する
+     * @param data バイト列
+     * @param names ワールド番号をインデックスとした、ワールド名
+     * @return レコード、チェックサムが合わない場合やワールド番号が不明な場合はnull
+     */
+    private static LockRecord decode(byte[] data, List<String> names) {
+
+        ByteBuffer bytes = ByteBuffer.wrap(data);
+        if ( bytes.getInt(CHECKSUM_OFFSET) != checksum(data, CHECKSUM_OFFSET) ) {
+            return null;
+        }
+        int worldId = bytes.getInt(4);
+        if ( worldId < 0 || worldId >= names.size() ) {
+            return null;
+        }
+
+        LockRecord record = new LockRecord();
+        long key = bytes.getLong(8);
+        record.world = names.get(worldId);
+        record.x = BlockPosition.getX(key);
+        record.y = BlockPosition.getY(key);
+        record.z = BlockPosition.getZ(key);
+        record.owner = new UUID(bytes.getLong(16), bytes.getLong(24));
+        record.time = bytes.getLong(32);
+        if ( (bytes.getInt(0) & STATE_ENTITY) != 0 ) {
+            record.entity = new UUID(bytes.getLong(40), bytes.getLong(48));
+        }
+        return record;
+    }
+
+    /**
+     * バイト列の先頭から指定した長さのチェックサムを返す
+     * @param data バイト列
+     * @param length 長さ
+     * @return チェックサム
+     */
+    private static int checksum(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * 予約済みの反映が全て終わるまで待つ
+     */
+    private void waitForIdle() {
+        try {
+            executor.submit(new Runnable() {
+                public void run() {
+                    // do nothing.
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * インデックスファイルを閉じる
+     */
+    private void close() {
+        if ( buffer != null ) {
+            buffer.force();
+            buffer = null;
+        }
+        if ( raf != null ) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // do nothing.
+            }
+            raf = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * 1つのチャンクにある、レコードの位置の一覧
+     */
+    private static class Slots {
+
+        int[] slots = new int[2];
+        int size;
+
+        /**
+         * 位置を追加する
+         * @param slot レコードの位置
+         */
+        void add(int slot) {
+            if ( size == slots.length ) {
+                int[] next = new int[size * 2];
+                System.arraycopy(slots, 0, next, 0, size);
+                slots = next;
+            }
+            slots[size++] = slot;
+        }
+
+        /**
+         * 位置を削除する。最後の位置を、削除した位置へ移す。
+         * @param slot レコードの位置
+         * @return 削除したかどうか
+         */
+        boolean remove(int slot) {
+            for ( int i=0; i<size; i++ ) {
+                if ( slots[i] == slot ) {
+                    slots[i] = slots[--size];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
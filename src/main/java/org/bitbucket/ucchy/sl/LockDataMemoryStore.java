@@ -0,0 +1,274 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+
+/**
+ * 全てのロックデータを、レコードとしてメモリに保持する保存先の基底クラス。
+ * ファイルへの書き込みは、サブクラスで行う。
+ * @author ucchy
+ */
+public abstract class LockDataMemoryStore implements LockStore {
+
+    /** カーソルが一度に読み出すレコードの数 */
+    private static final int CURSOR_BATCH = 1000;
+
+    /** ワールド名、ブロック座標の順にキーとしたレコード */
+    protected HashMap<String, LongObjectHashMap<LockRecord>> worlds;
+
+    /** オーナーをキーとしたレコード */
+    protected HashMap<UUID, HashSet<LockRecord>> owners;
+
+    /**
+     * コンストラクタ
+     */
+    public LockDataMemoryStore() {
+        clear();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#isChunkPaged()
+     */
+    @Override
+    public boolean isChunkPaged() {
+        return false;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#loadWorld(java.lang.String)
+     */
+    @Override
+    public List<LockRecord> loadWorld(String world) {
+        LongObjectHashMap<LockRecord> map = worlds.get(world);
+        if ( map == null ) return new ArrayList<LockRecord>();
+        return map.values();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#unloadWorld(java.lang.String)
+     */
+    @Override
+    public void unloadWorld(String world) {
+        // do nothing.
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#loadChunk(java.lang.String, int, int)
+     */
+    @Override
+    public List<LockRecord> loadChunk(String world, int chunkX, int chunkZ) {
+        return new ArrayList<LockRecord>();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#unloadChunk(java.lang.String, int, int)
+     */
+    @Override
+    public void unloadChunk(String world, int chunkX, int chunkZ) {
+        // do nothing.
+    }
+
+    /**
+     * 全てのロックデータはメモリにあるので、読み込み中のチャンクは無い
+     * @see org.bitbucket.ucchy.sl.LockStore#isChunkLoading(java.lang.String, int, int)
+     */
+    @Override
+    public boolean isChunkLoading(String world, int chunkX, int chunkZ) {
+        return false;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#add(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void add(LockRecord record) {
+        putRecord(record);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#update(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void update(LockRecord record) {
+        putRecord(record);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#remove(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void remove(LockRecord record) {
+        removeRecord(record.world, record.getBlockKey());
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#deleteWorld(java.lang.String)
+     */
+    @Override
+    public void deleteWorld(String world) {
+        LongObjectHashMap<LockRecord> map = worlds.remove(world);
+        if ( map == null ) return;
+        for ( LockRecord record : map.values() ) {
+            removeOwner(record);
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#importRecords(java.util.List)
+     */
+    @Override
+    public void importRecords(List<LockRecord> records) {
+        for ( LockRecord record : records ) {
+            add(record);
+        }
+    }
+
+    /**
+     * ワールドごとのレコードを、メインスレッドで一定数ずつコピーしながら読み出す。
+     * 全てのレコードを一度にコピーしないので、読み出し中のメモリ使用量は一定になる。
+     * @see org.bitbucket.ucchy.sl.LockStore#openCursor()
+     */
+    @Override
+    public Iterator<LockRecord> openCursor() {
+
+        final ArrayList<LongObjectHashMap<LockRecord>.ValueCursor> cursors =
+                new ArrayList<LongObjectHashMap<LockRecord>.ValueCursor>();
+        for ( LongObjectHashMap<LockRecord> map : worlds.values() ) {
+            cursors.add(map.cursor());
+        }
+
+        final Callable<List<LockRecord>> copy = new Callable<List<LockRecord>>() {
+            public List<LockRecord> call() {
+                ArrayList<LockRecord> records = new ArrayList<LockRecord>(CURSOR_BATCH);
+                while ( !cursors.isEmpty() && records.size() < CURSOR_BATCH ) {
+                    if ( !cursors.get(0).next(CURSOR_BATCH - records.size(), records) ) {
+                        cursors.remove(0);
+                    }
+                }
+                return records;
+            }
+        };
+
+        return new LockRecordCursor() {
+            private boolean finished;
+            protected List<LockRecord> nextBatch() throws Exception {
+                if ( finished ) return null;
+
+                // マップはメインスレッドで変更されるので、コピーもメインスレッドで行う
+                List<LockRecord> records = callSync(StandLock.getInstance(), copy);
+                if ( records.isEmpty() ) {
+                    finished = true;
+                    return null;
+                }
+                return records;
+            }
+        };
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#getCount(java.util.UUID)
+     */
+    @Override
+    public int getCount(UUID owner) {
+        HashSet<LockRecord> records = owners.get(owner);
+        return records == null ? 0 : records.size();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#getWorldCount(java.lang.String)
+     */
+    @Override
+    public int getWorldCount(String world) {
+        LongObjectHashMap<LockRecord> map = worlds.get(world);
+        return map == null ? 0 : map.size();
+    }
+
+    /**
+     * 全てのレコードを破棄する
+     */
+    protected void clear() {
+        worlds = new HashMap<String, LongObjectHashMap<LockRecord>>();
+        owners = new HashMap<UUID, HashSet<LockRecord>>();
+    }
+
+    /**
+     * レコードを登録する
+     * @param record レコード
+     * @return 同じ位置に登録されていたレコード、無かった場合はnull
+     */
+    protected LockRecord putRecord(LockRecord record) {
+
+        LongObjectHashMap<LockRecord> map = worlds.get(record.world);
+        if ( map == null ) {
+            map = new LongObjectHashMap<LockRecord>();
+            worlds.put(record.world, map);
+        }
+        LockRecord prev = map.put(record.getBlockKey(), record);
+        if ( prev != null ) {
+            removeOwner(prev);
+        }
+
+        HashSet<LockRecord> records = owners.get(record.owner);
+        if ( records == null ) {
+            records = new HashSet<LockRecord>();
+            owners.put(record.owner, records);
+        }
+        records.add(record);
+        return prev;
+    }
+
+    /**
+     * レコードを削除する
+     * @param world ワールド名
+     * @param key ブロック座標のlong値
+     * @return 削除したレコード、無かった場合はnull
+     */
+    protected LockRecord removeRecord(String world, long key) {
+
+        LongObjectHashMap<LockRecord> map = worlds.get(world);
+        if ( map == null ) return null;
+        LockRecord prev = map.remove(key);
+        if ( prev == null ) return null;
+        if ( map.isEmpty() ) {
+            worlds.remove(world);
+        }
+        removeOwner(prev);
+        return prev;
+    }
+
+    /**
+     * 全てのレコードを取得する
+     * @return レコード
+     */
+    protected List<LockRecord> getAllRecords() {
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        for ( LongObjectHashMap<LockRecord> map : worlds.values() ) {
+            records.addAll(map.values());
+        }
+        return records;
+    }
+
+    /**
+     * オーナーのレコードから削除する
+     * @param record レコード
+     */
+    private void removeOwner(LockRecord record) {
+        HashSet<LockRecord> records = owners.get(record.owner);
+        if ( records == null ) return;
+        records.remove(record);
+        if ( records.isEmpty() ) {
+            owners.remove(record.owner);
+        }
+    }
+}
@@ -0,0 +1,1048 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.bukkit.plugin.IllegalPluginAccessException;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * ロックデータを、ワールドごとのフォルダに、32x32チャンク単位のリージョンファイルとして保存するクラス。
+ * リージョンは、その中のチャンクがロードされている間だけメモリに置き、
+ * 全てのチャンクがアンロードされたら、次の {@link #flush()} で書き出してメモリから外す。
+ * オーナーごとのロック数は、常駐する小さなサマリーで管理する。
+ * ファイルの読み込みと書き込みは、全て専用のスレッドで順番に行う。
+ * 読み込んだリージョンはメインスレッドで登録し、ロード済みのチャンクのロックデータを
+ * {@link LockStore.ChunkCallback} へ渡す。読み込み中に行われた変更は、登録時に適用する。
+ * 読み込み中のチャンクは {@link #isChunkLoading(String, int, int)} がtrueを返し、その間はスタンドの操作を禁止する。
+ * 壊れたリージョンファイルは、読めた分で上書きする前に、別名に移動して残しておく。
+ * @author ucchy
+ */
+public class LockDataRegionStore implements LockStore {
+
+    private static final String REGION_FOLDER = "regions";
+    private static final String SUMMARY_FILE = "summary.dat";
+
+    private static final int REGION_MAGIC = 0x534C5231; // "SLR1"
+    private static final int SUMMARY_MAGIC = 0x534C5331; // "SLS1"
+    private static final int VERSION = 1;
+
+    /** 1つのリージョンの、1辺のチャンク数を表すビット数 */
+    private static final int REGION_SHIFT = 5;
+
+    /**
+     * メモリに置かれている1つのリージョン
+     */
+    private static class Region {
+
+        /** チャンク座標、ブロック座標の順にキーとしたレコード */
+        LongObjectHashMap<LongObjectHashMap<LockRecord>> chunks =
+                new LongObjectHashMap<LongObjectHashMap<LockRecord>>();
+
+        /** チャンクごとの、ロードされているかどうか */
+        boolean[] loaded = new boolean[1 << (REGION_SHIFT * 2)];
+
+        /** ロードされているチャンクの数 */
+        int loadedCount;
+
+        /** 書き出しが必要かどうか */
+        boolean dirty;
+
+        /** ファイルから読み込み中かどうか */
+        boolean loading;
+
+        /** 読み込み中に行われた変更 */
+        ArrayList<Change> changes;
+
+        /** 書き込みスレッドで読み込んだレコード（メインスレッドで登録するまで保持する） */
+        volatile List<LockRecord> fileRecords;
+
+        /** 壊れたファイルを移動したので、読めた分を書き出す必要があるかどうか */
+        volatile boolean salvaged;
+    }
+
+    /**
+     * リージョンの読み込み中に行われた変更
+     */
+    private static class Change {
+
+        /** 変更したレコード */
+        LockRecord record;
+
+        /** 削除かどうか */
+        boolean remove;
+
+        Change(LockRecord record, boolean remove) {
+            this.record = record;
+            this.remove = remove;
+        }
+    }
+
+    /** データを格納するフォルダ */
+    private File dataFolder;
+
+    /** リージョンファイルを格納するフォルダ */
+    private File folder;
+
+    /** サマリーファイル */
+    private File summaryFile;
+
+    /** メモリに置かれているリージョン。ワールド名、リージョン座標の順のマップ */
+    private HashMap<String, LongObjectHashMap<Region>> regions;
+
+    /** ロック数のサマリー */
+    private LockCounter counts;
+
+    /** サマリーの書き出しが必要かどうか */
+    private boolean summaryDirty;
+
+    /** 書き込みを行うスレッド */
+    private ExecutorService executor;
+
+    /** 書き込み待ちのリージョンファイルの内容（書き込みスレッドが完了時に削除する） */
+    private ConcurrentHashMap<File, List<LockRecord>> pendingWrites;
+
+    /** 読み込んだリージョンを、メインスレッドで登録するためのプラグイン */
+    private Plugin plugin;
+
+    /** 読み込んだチャンクのロックデータを受け取る処理 */
+    private LockStore.ChunkCallback callback;
+
+    /** 壊れていて移動もできなかったため、上書きしないリージョンファイル */
+    private Set<File> brokenFiles;
+
+    /** ロガー（loadで設定する） */
+    private volatile Logger logger;
+
+    /**
+     * コンストラクタ
+     * @param dataFolder データを格納するフォルダ
+     * @param plugin 読み込んだリージョンをメインスレッドで登録するためのプラグイン、
+     * nullの場合は次の読み込みか停止の時に登録する
+     * @param callback 読み込んだチャンクのロックデータを受け取る処理
+     */
+    public LockDataRegionStore(File dataFolder, Plugin plugin, LockStore.ChunkCallback callback) {
+        this.dataFolder = dataFolder;
+        this.plugin = plugin;
+        this.callback = callback;
+        this.folder = new File(dataFolder, REGION_FOLDER);
+        this.summaryFile = new File(folder, SUMMARY_FILE);
+        this.regions = new HashMap<String, LongObjectHashMap<Region>>();
+        this.counts = new LockCounter();
+        this.executor = Executors.newSingleThreadExecutor();
+        this.pendingWrites = new ConcurrentHashMap<File, List<LockRecord>>();
+        this.brokenFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        this.logger = Logger.getLogger(LockDataRegionStore.class.getName());
+    }
+
+    /**
+     * 全てのロックデータを、リージョンファイルとして書き出す（移行用）。
+     * 書き出しが終わるまで待つ。
+     * @param records 全てのロックデータ
+     */
+    private void importAll(List<LockRecord> records) {
+
+        HashMap<String, LongObjectHashMap<Region>> all = new HashMap<String, LongObjectHashMap<Region>>();
+        counts = new LockCounter();
+        for ( LockRecord record : records ) {
+            LongObjectHashMap<Region> map = all.get(record.world);
+            if ( map == null ) {
+                map = new LongObjectHashMap<Region>();
+                all.put(record.world, map);
+            }
+            long regionKey = getRegionKey(record.x >> 4, record.z >> 4);
+            Region region = map.get(regionKey);
+            if ( region == null ) {
+                region = new Region();
+                map.put(regionKey, region);
+            }
+            putRecord(region, record);
+            counts.add(record.world, record.owner, 1);
+        }
+
+        folder.mkdirs();
+        for ( String world : all.keySet() ) {
+            LongObjectHashMap<Region> map = all.get(world);
+            for ( long regionKey : map.keys() ) {
+                scheduleWrite(getRegionFile(world, regionKey), getRecords(map.get(regionKey)));
+            }
+        }
+        summaryDirty = true;
+        flush();
+        waitForIdle();
+    }
+
+    /**
+     * メモリ上のリージョンを全て破棄して、サマリーを読み込み直す。
+     * サマリーが無いか壊れている場合は、全てのリージョンファイルから作り直す。
+     * リージョンのフォルダがまだ無い場合は、プレイヤーファイルから一度だけ移行する。
+     * @see org.bitbucket.ucchy.sl.LockStore#load(java.util.logging.Logger)
+     */
+    @Override
+    public void load(Logger logger) {
+
+        this.logger = logger;
+
+        // 書き込み待ちのデータを、先にファイルへ反映しておく
+        finishLoading();
+        flush();
+        waitForIdle();
+        regions = new HashMap<String, LongObjectHashMap<Region>>();
+
+        if ( !folder.exists() ) {
+            List<LockRecord> records = LockDataLoader.loadRecords(dataFolder);
+            importAll(records);
+            if ( records.size() > 0 ) {
+                logger.info("Migrated " + records.size() + " lock data from yml files to the region files.");
+            }
+        }
+        folder.mkdirs();
+
+        // 書き込みの途中で停止していたら、置き換え前のファイルを元に戻す
+        recoverFiles();
+
+        if ( loadSummary(logger) ) return;
+
+        // 全てのリージョンファイルを数え直す
+        counts = new LockCounter();
+        for ( File file : listRegionFiles() ) {
+            List<LockRecord> records = readRegion(file, file.getParentFile().getName());
+            for ( LockRecord record : records ) {
+                counts.add(record.world, record.owner, 1);
+            }
+
+            // 壊れていたファイルは移動されているので、読めた分を書き出しておく
+            if ( !records.isEmpty() && !file.exists() ) {
+                scheduleWrite(file, records);
+            }
+        }
+        summaryDirty = true;
+        flush();
+        logger.info("Lock data summary was rebuilt from the region files.");
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#prepareReload(java.util.logging.Logger)
+     */
+    @Override
+    public Reload prepareReload(Logger logger) {
+        // 非同期の再読込には対応しない
+        return null;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#isChunkPaged()
+     */
+    @Override
+    public boolean isChunkPaged() {
+        return true;
+    }
+
+    /**
+     * リージョンでは、ワールド単位では返さず、チャンクのロード時に返す
+     * @see org.bitbucket.ucchy.sl.LockStore#loadWorld(java.lang.String)
+     */
+    @Override
+    public List<LockRecord> loadWorld(String world) {
+        return new ArrayList<LockRecord>();
+    }
+
+    /**
+     * チャンクがロードされたことを記録し、そのチャンクのロックデータを返す。
+     * リージョンを読み込み中の場合は、読み込み後にコールバックへ渡す。
+     * @see org.bitbucket.ucchy.sl.LockStore#loadChunk(java.lang.String, int, int)
+     */
+    @Override
+    public List<LockRecord> loadChunk(String world, int chunkX, int chunkZ) {
+
+        Region region = getRegion(world, getRegionKey(chunkX, chunkZ));
+        int slot = getSlot(chunkX, chunkZ);
+        if ( region.loaded[slot] ) {
+            return new ArrayList<LockRecord>();
+        }
+        region.loaded[slot] = true;
+        region.loadedCount++;
+        if ( region.loading ) {
+            return new ArrayList<LockRecord>();
+        }
+
+        LongObjectHashMap<LockRecord> chunk = region.chunks.get(BlockPosition.packChunk(chunkX, chunkZ));
+        if ( chunk == null ) return new ArrayList<LockRecord>();
+        return chunk.values();
+    }
+
+    /**
+     * チャンクを含むリージョンを、書き込みスレッドで読み込み中かどうかを返す
+     * @see org.bitbucket.ucchy.sl.LockStore#isChunkLoading(java.lang.String, int, int)
+     */
+    @Override
+    public boolean isChunkLoading(String world, int chunkX, int chunkZ) {
+        LongObjectHashMap<Region> map = regions.get(world);
+        if ( map == null ) return false;
+        Region region = map.get(getRegionKey(chunkX, chunkZ));
+        return region != null && region.loading;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#unloadChunk(java.lang.String, int, int)
+     */
+    @Override
+    public void unloadChunk(String world, int chunkX, int chunkZ) {
+
+        LongObjectHashMap<Region> map = regions.get(world);
+        if ( map == null ) return;
+        Region region = map.get(getRegionKey(chunkX, chunkZ));
+        if ( region == null ) return;
+
+        int slot = getSlot(chunkX, chunkZ);
+        if ( region.loaded[slot] ) {
+            region.loaded[slot] = false;
+            region.loadedCount--;
+        }
+    }
+
+    /**
+     * ワールドの全てのチャンクがアンロードされたことを記録する
+     * @see org.bitbucket.ucchy.sl.LockStore#unloadWorld(java.lang.String)
+     */
+    @Override
+    public void unloadWorld(String world) {
+
+        LongObjectHashMap<Region> map = regions.get(world);
+        if ( map == null ) return;
+        for ( Region region : map.values() ) {
+            region.loaded = new boolean[region.loaded.length];
+            region.loadedCount = 0;
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#add(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void add(LockRecord record) {
+        put(record);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#update(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void update(LockRecord record) {
+        put(record);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#remove(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void remove(LockRecord record) {
+
+        Region region = getRegion(record.world, getRegionKey(record.x >> 4, record.z >> 4));
+        if ( region.loading ) {
+            // 削除するレコードがあったかどうかは、読み込み後に調べる
+            region.changes.add(new Change(record, true));
+            return;
+        }
+
+        LockRecord prev = removeRecord(region, record);
+        if ( prev == null ) return;
+        counts.add(prev.world, prev.owner, -1);
+        region.dirty = true;
+        summaryDirty = true;
+    }
+
+    /**
+     * ロックデータを追加または更新する
+     * @param record ロックデータ
+     */
+    private void put(LockRecord record) {
+
+        Region region = getRegion(record.world, getRegionKey(record.x >> 4, record.z >> 4));
+        counts.add(record.world, record.owner, 1);
+        summaryDirty = true;
+        if ( region.loading ) {
+            // 置き換えたレコードの分は、読み込み後に数え直す
+            region.changes.add(new Change(record, false));
+            return;
+        }
+
+        LockRecord prev = putRecord(region, record);
+        if ( prev != null ) {
+            counts.add(prev.world, prev.owner, -1);
+        }
+        region.dirty = true;
+    }
+
+    /**
+     * 追加したリージョンは、書き込みを予約してメモリから外す
+     * @see org.bitbucket.ucchy.sl.LockStore#importRecords(java.util.List)
+     */
+    @Override
+    public void importRecords(List<LockRecord> records) {
+        for ( LockRecord record : records ) {
+            put(record);
+        }
+        flush();
+    }
+
+    /**
+     * リージョンファイルを、1つずつ読み出す
+     * @see org.bitbucket.ucchy.sl.LockStore#openCursor()
+     */
+    @Override
+    public Iterator<LockRecord> openCursor() {
+
+        // 書き込み待ちのデータの書き込みを予約する。
+        // ファイルの一覧と読み込みは、その後で書き込みスレッドが行うので、ここでは待たない。
+        flush();
+
+        return new LockRecordCursor() {
+            private List<File> files;
+            private int index = 0;
+            protected List<LockRecord> nextBatch() throws Exception {
+                if ( files == null ) {
+                    files = executor.submit(new Callable<List<File>>() {
+                        public List<File> call() {
+                            return listRegionFiles();
+                        }
+                    }).get();
+                }
+                if ( index >= files.size() ) return null;
+                final File file = files.get(index++);
+                return executor.submit(new Callable<List<LockRecord>>() {
+                    public List<LockRecord> call() {
+                        List<LockRecord> records = readRegion(file, file.getParentFile().getName());
+
+                        // 壊れていたファイルは移動されているので、読めた分を書き出しておく
+                        if ( !records.isEmpty() && !file.exists() ) {
+                            writeRegion(file, records);
+                        }
+                        return records;
+                    }
+                }).get();
+            }
+        };
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#getCount(java.util.UUID)
+     */
+    @Override
+    public int getCount(UUID owner) {
+        return counts.getCount(owner);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#getWorldCount(java.lang.String)
+     */
+    @Override
+    public int getWorldCount(String world) {
+        return counts.getWorldCount(world);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#deleteWorld(java.lang.String)
+     */
+    @Override
+    public void deleteWorld(final String world) {
+
+        // 読み込み中のリージョンも、ここで破棄される
+        regions.remove(world);
+        if ( counts.removeWorld(world) ) {
+            summaryDirty = true;
+        }
+
+        // 書き込み待ちの内容を、これ以降に読み込まないようにする
+        final File dir = new File(folder, world);
+        Iterator<File> it = pendingWrites.keySet().iterator();
+        while ( it.hasNext() ) {
+            if ( it.next().getParentFile().equals(dir) ) {
+                it.remove();
+            }
+        }
+        Iterator<File> broken = brokenFiles.iterator();
+        while ( broken.hasNext() ) {
+            if ( broken.next().getParentFile().equals(dir) ) {
+                broken.remove();
+            }
+        }
+
+        // 以降のリージョンの読み込みは、この削除の後に書き込みスレッドで行われる
+        executor.execute(new Runnable() {
+            public void run() {
+                File[] files = dir.listFiles();
+                if ( files != null ) {
+                    for ( File file : files ) {
+                        file.delete();
+                    }
+                }
+                dir.delete();
+            }
+        });
+    }
+
+    /**
+     * 変更されたリージョンとサマリーの書き込みを予約し、
+     * ロードされているチャンクが無くなったリージョンをメモリから外す
+     * @see org.bitbucket.ucchy.sl.LockStore#flush()
+     */
+    @Override
+    public void flush() {
+
+        for ( String world : regions.keySet() ) {
+            LongObjectHashMap<Region> map = regions.get(world);
+            for ( long regionKey : map.keys() ) {
+                Region region = map.get(regionKey);
+
+                // 読み込み中のリージョンは、読み込み後の変更の適用まで書き出さない
+                if ( region.loading ) continue;
+
+                if ( region.dirty ) {
+                    scheduleWrite(getRegionFile(world, regionKey), getRecords(region));
+                    region.dirty = false;
+                }
+                if ( region.loadedCount <= 0 ) {
+                    map.remove(regionKey);
+                }
+            }
+        }
+
+        if ( summaryDirty ) {
+            final LockCounter copy = counts.copy();
+            executor.execute(new Runnable() {
+                public void run() {
+                    writeSummary(copy);
+                }
+            });
+            summaryDirty = false;
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#saveAll()
+     */
+    @Override
+    public void saveAll() {
+        flush();
+    }
+
+    /**
+     * 予約済みの書き込みが全て終わるまで待つ
+     */
+    public void waitForIdle() {
+        try {
+            executor.submit(new Runnable() {
+                public void run() {
+                    // do nothing.
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#shutdown(int, java.util.logging.Logger)
+     */
+    @Override
+    public void shutdown(int timeout, Logger logger) {
+        finishLoading();
+        flush();
+        executor.shutdown();
+        try {
+            if ( !executor.awaitTermination(timeout, TimeUnit.SECONDS) ) {
+                logger.warning("Lock data could not be saved within " + timeout + " seconds.");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * リージョンを取得する。メモリに無い場合はファイルから読み込む。
+     * @param world ワールド名
+     * @param regionKey リージョン座標のlong値
+     * @return リージョン
+     */
+    private Region getRegion(String world, long regionKey) {
+
+        LongObjectHashMap<Region> map = regions.get(world);
+        if ( map == null ) {
+            map = new LongObjectHashMap<Region>();
+            regions.put(world, map);
+        }
+
+        Region region = map.get(regionKey);
+        if ( region != null ) return region;
+
+        region = new Region();
+        map.put(regionKey, region);
+        File file = getRegionFile(world, regionKey);
+
+        // 書き込み待ちの内容があれば、ファイルよりもそちらが新しい
+        List<LockRecord> pending = pendingWrites.get(file);
+        if ( pending != null ) {
+            for ( LockRecord record : pending ) {
+                putRecord(region, record);
+            }
+            return region;
+        }
+
+        region.loading = true;
+        region.changes = new ArrayList<Change>();
+        scheduleRead(world, regionKey, region, file);
+        return region;
+    }
+
+    /**
+     * リージョンファイルの読み込みを、書き込みスレッドへ予約する。
+     * 読み込み後に、メインスレッドでリージョンを登録する。
+     * @param world ワールド名
+     * @param regionKey リージョン座標のlong値
+     * @param region 読み込み中のリージョン
+     * @param file リージョンファイル
+     */
+    private void scheduleRead(final String world, final long regionKey, final Region region, final File file) {
+
+        executor.execute(new Runnable() {
+            public void run() {
+                List<LockRecord> records = readRegion(file, world);
+
+                // 壊れていたファイルは移動されているので、登録後に読めた分を書き出す
+                region.salvaged = !records.isEmpty() && !file.exists();
+                region.fileRecords = records;
+
+                // 停止中の場合は、shutdownで登録される
+                if ( plugin == null || !plugin.isEnabled() ) return;
+                try {
+                    new BukkitRunnable() {
+                        public void run() {
+                            LongObjectHashMap<Region> map = regions.get(world);
+                            if ( map != null && map.get(regionKey) == region ) {
+                                attach(world, region, true);
+                            }
+                        }
+                    }.runTask(plugin);
+                } catch (IllegalPluginAccessException e) {
+                    // 停止中の場合は、shutdownで登録される
+                }
+            }
+        });
+    }
+
+    /**
+     * 書き込みスレッドで読み込んだリージョンの内容を登録し、読み込み中に行われた変更を適用する
+     * @param world ワールド名
+     * @param region 読み込み中のリージョン
+     * @param notify ロード済みのチャンクのロックデータを、コールバックへ渡すかどうか
+     */
+    private void attach(String world, Region region, boolean notify) {
+
+        List<LockRecord> records = region.fileRecords;
+        if ( !region.loading || records == null ) return;
+
+        region.loading = false;
+        region.fileRecords = null;
+        for ( LockRecord record : records ) {
+            putRecord(region, record);
+        }
+        if ( region.salvaged ) {
+            region.dirty = true;
+        }
+
+        // 変更の時点では分からなかった、置き換え・削除したレコードの分を数え直す
+        for ( Change change : region.changes ) {
+            LockRecord prev = change.remove
+                    ? removeRecord(region, change.record) : putRecord(region, change.record);
+            if ( prev != null ) {
+                counts.add(prev.world, prev.owner, -1);
+                summaryDirty = true;
+            }
+            region.dirty = true;
+        }
+        region.changes = null;
+
+        if ( !notify ) return;
+
+        // 変更で置き換わっていない、ロード済みのチャンクのレコードだけを渡す
+        ArrayList<LockRecord> loaded = new ArrayList<LockRecord>();
+        for ( LockRecord record : records ) {
+            if ( !region.loaded[getSlot(record.x >> 4, record.z >> 4)] ) continue;
+            LongObjectHashMap<LockRecord> chunk = region.chunks.get(BlockPosition.toChunk(record.getBlockKey()));
+            if ( chunk != null && chunk.get(record.getBlockKey()) == record ) {
+                loaded.add(record);
+            }
+        }
+        if ( !loaded.isEmpty() ) {
+            callback.loaded(world, loaded);
+        }
+    }
+
+    /**
+     * 読み込み中のリージョンの読み込みを待ち、読み込んだ内容と変更を適用する。
+     * ロックデータはコールバックへ渡さない。
+     */
+    private void finishLoading() {
+        waitForIdle();
+        for ( String world : regions.keySet() ) {
+            for ( Region region : regions.get(world).values() ) {
+                attach(world, region, false);
+            }
+        }
+    }
+
+    /**
+     * リージョンの書き込みを予約する
+     * @param file リージョンファイル
+     * @param records 書き込む内容
+     */
+    private void scheduleWrite(final File file, final List<LockRecord> records) {
+        pendingWrites.put(file, records);
+        executor.execute(new Runnable() {
+            public void run() {
+                if ( brokenFiles.contains(file) ) {
+                    logger.warning("Lock data region " + file.getParentFile().getName() + "/"
+                            + file.getName() + " was not saved, because the broken file could not be moved.");
+                } else {
+                    writeRegion(file, records);
+                }
+                pendingWrites.remove(file, records);
+            }
+        });
+    }
+
+    /**
+     * サマリーファイルを読み込む
+     * @param logger ロガー
+     * @return 読み込めたかどうか
+     */
+    private boolean loadSummary(Logger logger) {
+
+        if ( !summaryFile.exists() ) return false;
+
+        LockCounter result = new LockCounter();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(summaryFile)));
+            if ( in.readInt() != SUMMARY_MAGIC || in.readInt() != VERSION ) {
+                throw new IOException("Invalid summary header.");
+            }
+            int worlds = in.readInt();
+            for ( int i=0; i<worlds; i++ ) {
+                String world = in.readUTF();
+                int num = in.readInt();
+                for ( int j=0; j<num; j++ ) {
+                    result.add(world, new UUID(in.readLong(), in.readLong()), in.readInt());
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Lock data summary " + summaryFile.getName() + " is broken.");
+            return false;
+        } finally {
+            close(in);
+        }
+
+        counts = result;
+        summaryDirty = false;
+        return true;
+    }
+
+    /**
+     * サマリーファイルを書き出す。書き込みスレッドから呼び出すこと。
+     * @param copy 書き出す内容
+     */
+    private void writeSummary(LockCounter copy) {
+
+        File temp = new File(folder, SUMMARY_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(SUMMARY_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(copy.getWorlds().size());
+            for ( String world : copy.getWorlds() ) {
+                out.writeUTF(world);
+                out.writeInt(copy.getOwners(world).size());
+                for ( UUID owner : copy.getOwners(world) ) {
+                    out.writeLong(owner.getMostSignificantBits());
+                    out.writeLong(owner.getLeastSignificantBits());
+                    out.writeInt(copy.getCount(world, owner));
+                }
+            }
+            out.close();
+            out = null;
+            Utility.replaceFile(temp, summaryFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * リージョンファイルを読み込む。壊れている場合は、読めた分だけを返して、ファイルを別名に移動する。
+     * 移動できなかった場合は、そのファイルを以降は上書きしない。
+     * @param file リージョンファイル
+     * @param world ワールド名
+     * @return 読み込んだレコード
+     */
+    private List<LockRecord> readRegion(File file, String world) {
+
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        if ( !file.exists() ) return records;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if ( in.readInt() != REGION_MAGIC || in.readInt() != VERSION ) {
+                throw new IOException("Invalid region header.");
+            }
+            int count = in.readInt();
+            for ( int i=0; i<count; i++ ) {
+                LockRecord record = new LockRecord();
+                record.owner = new UUID(in.readLong(), in.readLong());
+                record.world = world;
+                record.x = in.readInt();
+                record.y = in.readInt();
+                record.z = in.readInt();
+                record.time = in.readLong();
+                if ( in.readBoolean() ) {
+                    record.entity = new UUID(in.readLong(), in.readLong());
+                }
+                records.add(record);
+            }
+        } catch (IOException e) {
+            // 読めた分だけで書き直すと残りが失われるので、壊れたファイルは移動して残しておく
+            logger.warning("Lock data region " + world + "/" + file.getName() + " is broken.");
+            e.printStackTrace();
+            close(in);
+            in = null;
+            File dest = Utility.quarantineFile(file);
+            if ( dest != null ) {
+                logger.warning("The broken file was moved to " + dest.getName() + ".");
+            } else {
+                logger.severe("Could not move the broken file " + file.getName()
+                        + ". Changes in this region are not saved until it is repaired.");
+                brokenFiles.add(file);
+            }
+        } finally {
+            close(in);
+        }
+        return records;
+    }
+
+    /**
+     * リージョンファイルを書き出す。書き込みスレッドから呼び出すこと。
+     * レコードが無い場合は、ファイルを削除する。
+     * @param file リージョンファイル
+     * @param records 書き出すレコード
+     */
+    private static void writeRegion(File file, List<LockRecord> records) {
+
+        if ( records.isEmpty() ) {
+            if ( file.exists() ) {
+                file.delete();
+            }
+            return;
+        }
+
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(REGION_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+            for ( LockRecord record : records ) {
+                out.writeLong(record.owner.getMostSignificantBits());
+                out.writeLong(record.owner.getLeastSignificantBits());
+                out.writeInt(record.x);
+                out.writeInt(record.y);
+                out.writeInt(record.z);
+                out.writeLong(record.time);
+                out.writeBoolean(record.entity != null);
+                if ( record.entity != null ) {
+                    out.writeLong(record.entity.getMostSignificantBits());
+                    out.writeLong(record.entity.getLeastSignificantBits());
+                }
+            }
+            out.close();
+            out = null;
+            Utility.replaceFile(temp, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * リージョンにレコードを登録する
+     * @param region リージョン
+     * @param record レコード
+     * @return 以前に登録されていたレコード、無かった場合はnull
+     */
+    private static LockRecord putRecord(Region region, LockRecord record) {
+        long key = record.getBlockKey();
+        long chunkKey = BlockPosition.toChunk(key);
+        LongObjectHashMap<LockRecord> chunk = region.chunks.get(chunkKey);
+        if ( chunk == null ) {
+            chunk = new LongObjectHashMap<LockRecord>();
+            region.chunks.put(chunkKey, chunk);
+        }
+        return chunk.put(key, record);
+    }
+
+    /**
+     * リージョンからレコードを削除する
+     * @param region リージョン
+     * @param record 削除する位置のレコード
+     * @return 削除したレコード、無かった場合はnull
+     */
+    private static LockRecord removeRecord(Region region, LockRecord record) {
+        long key = record.getBlockKey();
+        long chunkKey = BlockPosition.toChunk(key);
+        LongObjectHashMap<LockRecord> chunk = region.chunks.get(chunkKey);
+        if ( chunk == null ) return null;
+        LockRecord prev = chunk.remove(key);
+        if ( chunk.isEmpty() ) {
+            region.chunks.remove(chunkKey);
+        }
+        return prev;
+    }
+
+    /**
+     * 全てのリージョンファイルを取得する
+     * @return リージョンファイル
+     */
+    private List<File> listRegionFiles() {
+        ArrayList<File> files = new ArrayList<File>();
+        File[] worlds = folder.listFiles();
+        if ( worlds == null ) return files;
+        for ( File world : worlds ) {
+            if ( !world.isDirectory() ) continue;
+            File[] list = world.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith("r.") && name.endsWith(".dat");
+                }
+            });
+            if ( list != null ) {
+                files.addAll(Arrays.asList(list));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * 書き込みの途中で停止した時に残った、一時ファイルと退避ファイルを片付ける
+     */
+    private void recoverFiles() {
+        Utility.recoverFile(summaryFile);
+        File[] worlds = folder.listFiles();
+        if ( worlds == null ) return;
+        for ( File world : worlds ) {
+            if ( !world.isDirectory() ) continue;
+            File[] list = world.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith("r.") && (name.endsWith(".dat.tmp") || name.endsWith(".dat.bak"));
+                }
+            });
+            if ( list == null ) continue;
+            for ( File file : list ) {
+                String name = file.getName();
+                Utility.recoverFile(new File(world, name.substring(0, name.length() - 4)));
+            }
+        }
+    }
+
+    /**
+     * リージョンの全てのレコードを取得する
+     * @param region リージョン
+     * @return レコード
+     */
+    private static List<LockRecord> getRecords(Region region) {
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        for ( LongObjectHashMap<LockRecord> chunk : region.chunks.values() ) {
+            records.addAll(chunk.values());
+        }
+        return records;
+    }
+
+    /**
+     * リージョンファイルを取得する
+     * @param world ワールド名
+     * @param regionKey リージョン座標のlong値
+     * @return リージョンファイル
+     */
+    private File getRegionFile(String world, long regionKey) {
+        return new File(new File(folder, world),
+                "r." + (int)(regionKey >> 32) + "." + (int)regionKey + ".dat");
+    }
+
+    /**
+     * チャンク座標から、リージョン座標のlong値を返す
+     * @param chunkX チャンクのX座標
+     * @param chunkZ チャンクのZ座標
+     * @return リージョン座標のlong値
+     */
+    private static long getRegionKey(int chunkX, int chunkZ) {
+        return BlockPosition.packChunk(chunkX >> REGION_SHIFT, chunkZ >> REGION_SHIFT);
+    }
+
+    /**
+     * チャンク座標から、リージョン内でのチャンクの番号を返す
+     * @param chunkX チャンクのX座標
+     * @param chunkZ チャンクのZ座標
+     * @return リージョン内でのチャンクの番号
+     */
+    private static int getSlot(int chunkX, int chunkZ) {
+        int mask = (1 << REGION_SHIFT) - 1;
+        return ((chunkX & mask) << REGION_SHIFT) | (chunkZ & mask);
+    }
+
+    /**
+     * ストリームを閉じる
+     * @param stream ストリーム
+     */
+    private static void close(Closeable stream) {
+        if ( stream != null ) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // do nothing.
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * 停止時のロックデータを1つのファイル（data/index.snapshot）にまとめて保存し、次回の起動時に使うクラス。
+ * プレイヤーファイルごとに更新日時とサイズを記録しておき、一致したファイルは解析せずにスナップショットの内容を使う。
+ * スナップショットは読み込んだら削除するため、正常に停止した直後の起動でだけ使われる。
+ * @author ucchy
+ */
+public class LockDataSnapshot {
+
+    private static final String FILE_NAME = "index.snapshot";
+
+    private static final int MAGIC = 0x534C5331;
+    private static final int VERSION = 2;
+
+    /**
+     * 1つのプレイヤーファイルの記録
+     */
+    private static class Entry {
+
+        /** 更新日時 */
+        long modified;
+
+        /** サイズ */
+        long length;
+
+        /** プレイヤーファイルに記録されているオーナーの名前、無い場合はnull */
+        String name;
+
+        /** ロックデータ */
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+    }
+
+    /** プレイヤーファイルの記録。オーナーのUUIDがキー */
+    private HashMap<UUID, Entry> entries;
+
+    /**
+     * コンストラクタ
+     */
+    private LockDataSnapshot() {
+        entries = new HashMap<UUID, Entry>();
+    }
+
+    /**
+     * プレイヤーファイルが、スナップショットを作成した時から変更されていないかどうかを返す
+     * @param file プレイヤーファイル
+     * @param uuid オーナーのUUID
+     * @return 変更されていないかどうか
+     */
+    public boolean matches(File file, UUID uuid) {
+        Entry entry = entries.get(uuid);
+        return entry != null
+                && entry.modified == file.lastModified()
+                && entry.length == file.length();
+    }
+
+    /**
+     * スナップショットに記録されているロックデータを返す
+     * @param uuid オーナーのUUID
+     * @return ロックデータ
+     */
+    public ArrayList<LockRecord> getRecords(UUID uuid) {
+        Entry entry = entries.get(uuid);
+        if ( entry == null ) return new ArrayList<LockRecord>();
+        return new ArrayList<LockRecord>(entry.records);
+    }
+
+    /**
+     * スナップショットに記録されているオーナーの名前を返す
+     * @param uuid オーナーのUUID
+     * @return 名前、無い場合はnull
+     */
+    public String getName(UUID uuid) {
+        Entry entry = entries.get(uuid);
+        if ( entry == null ) return null;
+        return entry.name;
+    }
+
+    /**
+     * 現在のプレイヤーファイルの更新日時とサイズで、スナップショットを作成する。ファイルには書き出さない。
+     * 全てのプレイヤーファイルを書き終えた後に呼び出すこと。
+     * @param layout プレイヤーファイルの配置
+     * @param owners オーナーごとのロックデータ
+     * @param names オーナー名のキャッシュ
+     * @return スナップショット
+     */
+    public static LockDataSnapshot capture(OwnerFileLayout layout,
+            Map<UUID, ? extends Collection<LockRecord>> owners, OwnerNameCache names) {
+
+        LockDataSnapshot snapshot = new LockDataSnapshot();
+        for ( UUID uuid : owners.keySet() ) {
+            File yml = layout.getFile(uuid);
+            if ( !yml.exists() ) continue;
+            Entry entry = new Entry();
+            entry.modified = yml.lastModified();
+            entry.length = yml.length();
+            entry.name = names.getName(uuid);
+            entry.records.addAll(owners.get(uuid));
+            snapshot.entries.put(uuid, entry);
+        }
+        return snapshot;
+    }
+
+    /**
+     * スナップショットを書き出す。全てのプレイヤーファイルを書き終えた後に呼び出すこと。
+     * @param layout プレイヤーファイルの配置
+     * @param owners オーナーごとのロックデータ
+     * @param names オーナー名のキャッシュ
+     */
+    public static void write(OwnerFileLayout layout,
+            Map<UUID, ? extends Collection<LockRecord>> owners, OwnerNameCache names) {
+
+        File dataFolder = layout.getDataFolder();
+        File file = new File(dataFolder, FILE_NAME);
+        File temp = new File(dataFolder, FILE_NAME + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            // ファイルの無いオーナーは、次回の起動時に照合できないので記録しない
+            ArrayList<UUID> uuids = new ArrayList<UUID>();
+            for ( UUID uuid : owners.keySet() ) {
+                if ( layout.getFile(uuid).exists() ) {
+                    uuids.add(uuid);
+                }
+            }
+
+            out.writeInt(uuids.size());
+            for ( UUID uuid : uuids ) {
+                File yml = layout.getFile(uuid);
+                Collection<LockRecord> records = owners.get(uuid);
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+                out.writeLong(yml.lastModified());
+                out.writeLong(yml.length());
+                String name = names.getName(uuid);
+                out.writeBoolean(name != null);
+                if ( name != null ) {
+                    out.writeUTF(name);
+                }
+                out.writeInt(records.size());
+                for ( LockRecord record : records ) {
+                    record.write(out);
+                }
+            }
+            out.close();
+            out = null;
+            Utility.replaceFile(temp, file);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if ( out != null ) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // do nothing.
+                }
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * スナップショットを読み込んで、ファイルを削除する
+     * @param dataFolder データフォルダ
+     * @param logger ロガー
+     * @return スナップショット、無い場合や壊れている場合はnull
+     */
+    public static LockDataSnapshot read(File dataFolder, Logger logger) {
+
+        File file = new File(dataFolder, FILE_NAME);
+        Utility.recoverFile(file);
+        if ( !file.exists() ) return null;
+
+        LockDataSnapshot snapshot = new LockDataSnapshot();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                throw new IOException("Unknown format.");
+            }
+            int size = in.readInt();
+            for ( int i = 0; i < size; i++ ) {
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                Entry entry = new Entry();
+                entry.modified = in.readLong();
+                entry.length = in.readLong();
+                if ( in.readBoolean() ) {
+                    entry.name = in.readUTF();
+                }
+                int count = in.readInt();
+                for ( int j = 0; j < count; j++ ) {
+                    entry.records.add(LockRecord.read(in));
+                }
+                snapshot.entries.put(uuid, entry);
+            }
+        } catch (IOException e) {
+            logger.warning("Lock data snapshot " + file.getName() + " could not be read. It was ignored.");
+            snapshot = null;
+        } finally {
+            if ( in != null ) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // do nothing.
+                }
+            }
+            file.delete();
+        }
+        return snapshot;
+    }
+}
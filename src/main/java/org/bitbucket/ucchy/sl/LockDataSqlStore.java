@@ -0,0 +1,731 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.bukkit.plugin.IllegalPluginAccessException;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * ロックデータを、SQLiteのデータベースファイル（data/locks.db）に保存するクラス。
+ * 変更はメモリに溜めておき、{@link #flush()} で1つのトランザクションにまとめて書き込む。
+ * 書き込みに失敗した変更は破棄せず、次の書き込みの前にやり直す。
+ * データベースへのアクセスは、全て専用のスレッドで順番に行い、ワールドのロード時の読み込みや取り込みでも、
+ * メインスレッドは結果を待たない。
+ * メモリに常駐するのは、ワールドごと・オーナーごとのロック数だけである。
+ * @author ucchy
+ */
+public class LockDataSqlStore implements LockStore {
+
+    private static final String DATABASE_FILE = "locks.db";
+
+    private static final int CURSOR_PAGE_SIZE = 1000;
+
+    /** プレイヤーファイルからの移行が完了したことを記録する、metaテーブルの名前 */
+    private static final String META_MIGRATED = "migrated";
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_DELETE_WORLD = 3;
+
+    /**
+     * 書き込み待ちの1件の変更
+     */
+    private static class Change {
+
+        /** 変更の種類 */
+        byte op;
+
+        /** 追加・削除するレコード、またはワールド名だけを持つレコード */
+        LockRecord record;
+
+        Change(byte op, LockRecord record) {
+            this.op = op;
+            this.record = record;
+        }
+    }
+
+    /** データを格納するフォルダ */
+    private File dataFolder;
+
+    /** 読み込んだワールドのロックデータを、メインスレッドで渡すためのプラグイン */
+    private Plugin plugin;
+
+    /** 読み込んだワールドのロックデータを受け取る処理 */
+    private LockStore.ChunkCallback callback;
+
+    /** ロガー（loadで設定する） */
+    private volatile Logger logger;
+
+    /** データベースへの接続（書き込みスレッドからのみ使用する） */
+    private Connection connection;
+
+    /** データベースにアクセスするスレッド */
+    private ExecutorService executor;
+
+    /** 書き込み待ちの変更 */
+    private ArrayList<Change> changes;
+
+    /** 書き込みに失敗して、次の書き込みでやり直す変更（書き込みスレッドからのみ使用する） */
+    private ArrayList<Change> failedChanges;
+
+    /** やり直す変更があるかどうか */
+    private volatile boolean retryPending;
+
+    /** ロック数 */
+    private LockCounter counts;
+
+    /** 取り込みで置き換えられた、ロック数から引くレコード（書き込みスレッドで追加し、メインスレッドで適用する） */
+    private ConcurrentLinkedQueue<LockRecord> replaced;
+
+    /** 読み込み中のワールドと、その読み込みを識別するオブジェクト */
+    private HashMap<String, Object> loadingWorlds;
+
+    /** プレイヤーファイルからの移行が完了しているかどうか */
+    private boolean migrated;
+
+    /**
+     * コンストラクタ。データベースに接続し、テーブルが無ければ作成する。
+     * @param dataFolder データを格納するフォルダ
+     * @param plugin 読み込んだワールドのロックデータを、メインスレッドで渡すためのプラグイン、
+     * nullの場合はワールドのロード時にその場で読み込む
+     * @param callback 読み込んだワールドのロックデータを受け取る処理
+     * @throws Exception SQLiteのドライバが無い場合や、接続に失敗した場合
+     */
+    public LockDataSqlStore(File dataFolder, Plugin plugin, LockStore.ChunkCallback callback) throws Exception {
+
+        this.dataFolder = dataFolder;
+        this.plugin = plugin;
+        this.callback = callback;
+        this.logger = Logger.getLogger(LockDataSqlStore.class.getName());
+        this.executor = Executors.newSingleThreadExecutor();
+        this.changes = new ArrayList<Change>();
+        this.failedChanges = new ArrayList<Change>();
+        this.counts = new LockCounter();
+        this.replaced = new ConcurrentLinkedQueue<LockRecord>();
+        this.loadingWorlds = new HashMap<String, Object>();
+
+        final File file = new File(dataFolder, DATABASE_FILE);
+
+        try {
+            call(new Callable<Void>() {
+                public Void call() throws Exception {
+                    Class.forName("org.sqlite.JDBC");
+                    connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+                    Statement statement = connection.createStatement();
+                    try {
+                        statement.executeUpdate("CREATE TABLE IF NOT EXISTS locks ("
+                                + "world TEXT NOT NULL, x INTEGER NOT NULL, y INTEGER NOT NULL, "
+                                + "z INTEGER NOT NULL, chunk_x INTEGER NOT NULL, chunk_z INTEGER NOT NULL, "
+                                + "owner TEXT NOT NULL, time INTEGER NOT NULL, entity TEXT, "
+                                + "PRIMARY KEY (world, x, y, z))");
+                        statement.executeUpdate("CREATE INDEX IF NOT EXISTS locks_chunk "
+                                + "ON locks (world, chunk_x, chunk_z)");
+                        statement.executeUpdate("CREATE INDEX IF NOT EXISTS locks_owner ON locks (owner)");
+                        statement.executeUpdate("CREATE INDEX IF NOT EXISTS locks_time ON locks (time)");
+                        statement.executeUpdate("CREATE TABLE IF NOT EXISTS meta ("
+                                + "name TEXT PRIMARY KEY, value TEXT)");
+                        ResultSet rs = statement.executeQuery(
+                                "SELECT value FROM meta WHERE name = '" + META_MIGRATED + "'");
+                        migrated = rs.next();
+                        rs.close();
+                    } finally {
+                        statement.close();
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            executor.shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * ロック数を読み込み直す。
+     * プレイヤーファイルからの移行が完了していない場合は、移行する。
+     * 移行の完了は、移行したデータと同じトランザクションで記録するので、失敗した場合は次回の読み込みでやり直す。
+     * @see org.bitbucket.ucchy.sl.LockStore#load(java.util.logging.Logger)
+     */
+    @Override
+    public void load(Logger logger) {
+
+        this.logger = logger;
+
+        // 読み込み中のワールドは、呼び出し元がロードし直すので、結果を渡さない
+        loadingWorlds.clear();
+        flush();
+
+        if ( !migrated ) {
+            List<LockRecord> records = LockDataLoader.loadRecords(dataFolder);
+            final ArrayList<Change> batch = new ArrayList<Change>();
+            for ( LockRecord record : records ) {
+                batch.add(new Change(OP_ADD, record));
+            }
+            try {
+                call(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        writeChanges(batch, true);
+                        return null;
+                    }
+                });
+                migrated = true;
+                if ( records.size() > 0 ) {
+                    logger.info("Migrated " + records.size() + " lock data from yml files to the database.");
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                logger.warning("Could not migrate lock data from yml files to the database. "
+                        + "It will be retried on the next load.");
+            }
+        }
+
+        LockCounter result = callSafely(new Callable<LockCounter>() {
+            public LockCounter call() throws Exception {
+                LockCounter result = new LockCounter();
+                Statement statement = connection.createStatement();
+                try {
+                    ResultSet rs = statement.executeQuery(
+                            "SELECT world, owner, COUNT(*) FROM locks GROUP BY world, owner");
+                    while ( rs.next() ) {
+                        result.add(rs.getString(1), UUID.fromString(rs.getString(2)), rs.getInt(3));
+                    }
+                } finally {
+                    statement.close();
+                }
+                return result;
+            }
+        });
+        if ( result != null ) {
+            // 取り込みで置き換えられた分は、数え直した結果に含まれている
+            counts = result;
+            replaced.clear();
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#prepareReload(java.util.logging.Logger)
+     */
+    @Override
+    public Reload prepareReload(Logger logger) {
+        // 非同期の再読込には対応しない
+        return null;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#isChunkPaged()
+     */
+    @Override
+    public boolean isChunkPaged() {
+        return false;
+    }
+
+    /**
+     * ワールドのロックデータを書き込みスレッドで読み込み、メインスレッドで {@link LockStore.ChunkCallback} へ渡す。
+     * 読み込みが終わるまでは、そのワールドの全てのチャンクが読み込み中になる。
+     * 読み込みに失敗した場合は、次の読み込み直しまで、読み込み中のままにしておく。
+     * @see org.bitbucket.ucchy.sl.LockStore#loadWorld(java.lang.String)
+     */
+    @Override
+    public List<LockRecord> loadWorld(final String world) {
+
+        // 書き込み待ちの変更を反映してから検索する
+        flush();
+
+        if ( plugin == null ) {
+            List<LockRecord> result = callSafely(new Callable<List<LockRecord>>() {
+                public List<LockRecord> call() throws Exception {
+                    return selectWorld(world);
+                }
+            });
+            return result != null ? result : new ArrayList<LockRecord>();
+        }
+
+        final Object token = new Object();
+        loadingWorlds.put(world, token);
+        executor.execute(new Runnable() {
+            public void run() {
+                final List<LockRecord> records;
+                try {
+                    records = selectWorld(world);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    logger.severe("Could not read lock data of " + world + " from the database. "
+                            + "Armor stands in the world are protected until it is reloaded.");
+                    return;
+                }
+
+                if ( !plugin.isEnabled() ) return;
+                try {
+                    new BukkitRunnable() {
+                        public void run() {
+                            // アンロード・削除・読み込み直しがあった場合は渡さない
+                            if ( loadingWorlds.get(world) != token ) return;
+                            loadingWorlds.remove(world);
+                            callback.loaded(world, records);
+                        }
+                    }.runTask(plugin);
+                } catch (IllegalPluginAccessException e) {
+                    // 停止中の場合は、渡さない
+                }
+            }
+        });
+        return new ArrayList<LockRecord>();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#unloadWorld(java.lang.String)
+     */
+    @Override
+    public void unloadWorld(String world) {
+        loadingWorlds.remove(world);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#loadChunk(java.lang.String, int, int)
+     */
+    @Override
+    public List<LockRecord> loadChunk(String world, int chunkX, int chunkZ) {
+        return new ArrayList<LockRecord>();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#unloadChunk(java.lang.String, int, int)
+     */
+    @Override
+    public void unloadChunk(String world, int chunkX, int chunkZ) {
+        // do nothing.
+    }
+
+    /**
+     * ワールドのロックデータを読み込み中の間は、そのワールドの全てのチャンクが読み込み中になる
+     * @see org.bitbucket.ucchy.sl.LockStore#isChunkLoading(java.lang.String, int, int)
+     */
+    @Override
+    public boolean isChunkLoading(String world, int chunkX, int chunkZ) {
+        return loadingWorlds.containsKey(world);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#add(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void add(LockRecord record) {
+        changes.add(new Change(OP_ADD, record));
+        counts.add(record.world, record.owner, 1);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#update(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void update(LockRecord record) {
+        changes.add(new Change(OP_ADD, record));
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#remove(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void remove(LockRecord record) {
+        changes.add(new Change(OP_REMOVE, record));
+        counts.add(record.world, record.owner, -1);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#deleteWorld(java.lang.String)
+     */
+    @Override
+    public void deleteWorld(String world) {
+        LockRecord record = new LockRecord();
+        record.world = world;
+        changes.add(new Change(OP_DELETE_WORLD, record));
+        counts.removeWorld(world);
+        loadingWorlds.remove(world);
+    }
+
+    /**
+     * 置き換えられるレコードの検索と書き込みは、書き込みスレッドで行い、メインスレッドは待たない。
+     * 置き換えられたレコードの分のロック数は、検索の後で、ロック数を参照する時に合わせる。
+     * @see org.bitbucket.ucchy.sl.LockStore#importRecords(java.util.List)
+     */
+    @Override
+    public void importRecords(final List<LockRecord> records) {
+
+        // 書き込み待ちの変更は、取り込みより先に書き込まれる
+        flush();
+
+        for ( LockRecord record : records ) {
+            counts.add(record.world, record.owner, 1);
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    replaced.addAll(selectOwners(records));
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                ArrayList<Change> batch = new ArrayList<Change>();
+                for ( LockRecord record : records ) {
+                    batch.add(new Change(OP_ADD, record));
+                }
+                writePending(batch);
+            }
+        });
+    }
+
+    /**
+     * rowidの順に、一定数の行ずつ読み出す
+     * @see org.bitbucket.ucchy.sl.LockStore#openCursor()
+     */
+    @Override
+    public Iterator<LockRecord> openCursor() {
+
+        // 書き込み待ちの変更は、読み出しより先に書き込まれる
+        flush();
+
+        return new LockRecordCursor() {
+            private long lastRowId = Long.MIN_VALUE;
+            protected List<LockRecord> nextBatch() throws Exception {
+                List<LockRecord> records = call(new Callable<List<LockRecord>>() {
+                    public List<LockRecord> call() throws Exception {
+                        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+                        PreparedStatement statement = connection.prepareStatement(
+                                "SELECT rowid, world, x, y, z, owner, time, entity FROM locks "
+                                + "WHERE rowid > ? ORDER BY rowid LIMIT " + CURSOR_PAGE_SIZE);
+                        try {
+                            statement.setLong(1, lastRowId);
+                            ResultSet rs = statement.executeQuery();
+                            while ( rs.next() ) {
+                                lastRowId = rs.getLong(1);
+                                LockRecord record = new LockRecord();
+                                record.world = rs.getString(2);
+                                record.x = rs.getInt(3);
+                                record.y = rs.getInt(4);
+                                record.z = rs.getInt(5);
+                                record.owner = UUID.fromString(rs.getString(6));
+                                record.time = rs.getLong(7);
+                                String entity = rs.getString(8);
+                                if ( entity != null ) {
+                                    record.entity = UUID.fromString(entity);
+                                }
+                                records.add(record);
+                            }
+                        } finally {
+                            statement.close();
+                        }
+                        return records;
+                    }
+                });
+                return records.isEmpty() ? null : records;
+            }
+        };
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#getCount(java.util.UUID)
+     */
+    @Override
+    public int getCount(UUID owner) {
+        applyReplaced();
+        return counts.getCount(owner);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#getWorldCount(java.lang.String)
+     */
+    @Override
+    public int getWorldCount(String world) {
+        applyReplaced();
+        return counts.getWorldCount(world);
+    }
+
+    /**
+     * 書き込み待ちの変更を、前回失敗した変更に続けて、1つのトランザクションで書き込むよう予約する
+     * @see org.bitbucket.ucchy.sl.LockStore#flush()
+     */
+    @Override
+    public void flush() {
+
+        if ( changes.isEmpty() && !retryPending ) return;
+
+        final ArrayList<Change> batch = changes;
+        changes = new ArrayList<Change>();
+        executor.execute(new Runnable() {
+            public void run() {
+                writePending(batch);
+            }
+        });
+    }
+
+    /**
+     * データベースには常に全てのデータがあるので、書き込み待ちの変更だけを書き込む
+     * @see org.bitbucket.ucchy.sl.LockStore#saveAll()
+     */
+    @Override
+    public void saveAll() {
+        flush();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#shutdown(int, java.util.logging.Logger)
+     */
+    @Override
+    public void shutdown(int timeout, Logger logger) {
+        flush();
+        executor.execute(new Runnable() {
+            public void run() {
+                if ( !failedChanges.isEmpty() ) {
+                    logger.severe(failedChanges.size()
+                            + " lock data changes could not be written to the database.");
+                }
+                try {
+                    if ( connection != null ) {
+                        connection.close();
+                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        executor.shutdown();
+        try {
+            if ( !executor.awaitTermination(timeout, TimeUnit.SECONDS) ) {
+                logger.warning("Lock data could not be saved within " + timeout + " seconds.");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 前回失敗した変更に続けて、変更を書き込む。書き込みスレッドから呼び出すこと。
+     * 失敗した場合は、次の書き込みでやり直すために、全ての変更を残しておく。
+     * @param batch 変更
+     */
+    private void writePending(List<Change> batch) {
+
+        ArrayList<Change> all = failedChanges;
+        all.addAll(batch);
+        if ( all.isEmpty() ) return;
+
+        try {
+            writeChanges(all, false);
+            failedChanges = new ArrayList<Change>();
+            retryPending = false;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            logger.warning("Could not write " + all.size()
+                    + " lock data changes to the database. They will be retried.");
+            retryPending = true;
+        }
+    }
+
+    /**
+     * 変更を順番に、1つのトランザクションで書き込む。書き込みスレッドから呼び出すこと。
+     * 同じ種類の変更が続く間は、まとめてバッチで実行する。
+     * @param batch 変更
+     * @param migration プレイヤーファイルからの移行の完了を、同じトランザクションで記録するかどうか
+     * @throws SQLException
+     */
+    private void writeChanges(List<Change> batch, boolean migration) throws SQLException {
+
+        PreparedStatement insert = connection.prepareStatement(
+                "INSERT OR REPLACE INTO locks (world, x, y, z, chunk_x, chunk_z, owner, time, entity) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement delete = connection.prepareStatement(
+                "DELETE FROM locks WHERE world = ? AND x = ? AND y = ? AND z = ?");
+        PreparedStatement deleteWorld = connection.prepareStatement(
+                "DELETE FROM locks WHERE world = ?");
+
+        connection.setAutoCommit(false);
+        try {
+            PreparedStatement pending = null;
+            for ( Change change : batch ) {
+                LockRecord record = change.record;
+                PreparedStatement statement;
+                if ( change.op == OP_ADD ) {
+                    statement = insert;
+                    statement.setString(1, record.world);
+                    statement.setInt(2, record.x);
+                    statement.setInt(3, record.y);
+                    statement.setInt(4, record.z);
+                    statement.setInt(5, record.x >> 4);
+                    statement.setInt(6, record.z >> 4);
+                    statement.setString(7, record.owner.toString());
+                    statement.setLong(8, record.time);
+                    statement.setString(9, record.entity == null ? null : record.entity.toString());
+                } else if ( change.op == OP_REMOVE ) {
+                    statement = delete;
+                    statement.setString(1, record.world);
+                    statement.setInt(2, record.x);
+                    statement.setInt(3, record.y);
+                    statement.setInt(4, record.z);
+                } else {
+                    statement = deleteWorld;
+                    statement.setString(1, record.world);
+                }
+
+                // 種類が変わる前に、溜まっている分を実行して順番を保つ
+                if ( pending != null && pending != statement ) {
+                    pending.executeBatch();
+                }
+                statement.addBatch();
+                pending = statement;
+            }
+            if ( pending != null ) {
+                pending.executeBatch();
+            }
+            if ( migration ) {
+                Statement statement = connection.createStatement();
+                try {
+                    statement.executeUpdate("INSERT OR REPLACE INTO meta (name, value) "
+                            + "VALUES ('" + META_MIGRATED + "', '1')");
+                } finally {
+                    statement.close();
+                }
+            }
+            connection.commit();
+
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+            insert.close();
+            delete.close();
+            deleteWorld.close();
+        }
+    }
+
+    /**
+     * ワールドの全てのレコードを検索する。書き込みスレッドから呼び出すこと。
+     * @param world ワールド名
+     * @return レコード
+     * @throws SQLException
+     */
+    private List<LockRecord> selectWorld(String world) throws SQLException {
+
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        PreparedStatement statement = connection.prepareStatement(
+                "SELECT x, y, z, owner, time, entity FROM locks WHERE world = ?");
+        try {
+            statement.setString(1, world);
+            ResultSet rs = statement.executeQuery();
+            while ( rs.next() ) {
+                LockRecord record = new LockRecord();
+                record.world = world;
+                record.x = rs.getInt(1);
+                record.y = rs.getInt(2);
+                record.z = rs.getInt(3);
+                record.owner = UUID.fromString(rs.getString(4));
+                record.time = rs.getLong(5);
+                String entity = rs.getString(6);
+                if ( entity != null ) {
+                    record.entity = UUID.fromString(entity);
+                }
+                records.add(record);
+            }
+        } finally {
+            statement.close();
+        }
+        return records;
+    }
+
+    /**
+     * 指定したレコードと同じ位置にある、既存のレコードのオーナーを検索する。書き込みスレッドから呼び出すこと。
+     * @param records レコード
+     * @return 既存のレコード（ワールド名とオーナーだけを持つ）
+     * @throws SQLException
+     */
+    private List<LockRecord> selectOwners(List<LockRecord> records) throws SQLException {
+
+        ArrayList<LockRecord> prevs = new ArrayList<LockRecord>();
+        PreparedStatement statement = connection.prepareStatement(
+                "SELECT owner FROM locks WHERE world = ? AND x = ? AND y = ? AND z = ?");
+        try {
+            for ( LockRecord record : records ) {
+                statement.setString(1, record.world);
+                statement.setInt(2, record.x);
+                statement.setInt(3, record.y);
+                statement.setInt(4, record.z);
+                ResultSet rs = statement.executeQuery();
+                if ( rs.next() ) {
+                    LockRecord prev = new LockRecord();
+                    prev.world = record.world;
+                    prev.owner = UUID.fromString(rs.getString(1));
+                    prevs.add(prev);
+                }
+                rs.close();
+            }
+        } finally {
+            statement.close();
+        }
+        return prevs;
+    }
+
+    /**
+     * 取り込みで置き換えられたレコードの分を、ロック数から引く
+     */
+    private void applyReplaced() {
+        LockRecord prev;
+        while ( (prev = replaced.poll()) != null ) {
+            counts.add(prev.world, prev.owner, -1);
+        }
+    }
+
+    /**
+     * 書き込みスレッドで処理を実行し、結果を待つ
+     * @param task 処理
+     * @return 結果
+     * @throws Exception 処理で発生した例外
+     */
+    private <T> T call(Callable<T> task) throws Exception {
+        try {
+            return executor.submit(task).get();
+        } catch (ExecutionException e) {
+            if ( e.getCause() instanceof Exception ) {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 書き込みスレッドで処理を実行し、結果を待つ。失敗した場合はnullを返す。
+     * @param task 処理
+     * @return 結果
+     */
+    private <T> T callSafely(Callable<T> task) {
+        try {
+            return call(task);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
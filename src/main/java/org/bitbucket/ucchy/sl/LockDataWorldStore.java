@@ -0,0 +1,699 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * ロックデータを、ワールドごとのファイル（data/worlds/&lt;ワールド名&gt;.dat）に保存するクラス。
+ * オーナーごとのロック数は、別のファイル（data/worlds/counts.dat）に保存する。
+ * ワールドのロックデータの削除は、そのワールドのファイルを1つ削除するだけで済む。
+ * ロードされているワールドのロックデータだけをメモリに置く。
+ * @author ucchy
+ */
+public class LockDataWorldStore implements LockStore {
+
+    private static final String WORLD_FOLDER = "worlds";
+    private static final String COUNTS_FILE = "counts.dat";
+    private static final String EXTENSION = ".dat";
+
+    private static final int WORLD_MAGIC = 0x534C5731; // "SLW1"
+    private static final int COUNTS_MAGIC = 0x534C4331; // "SLC1"
+    private static final int VERSION = 1;
+
+    /**
+     * メモリに置かれている1つのワールドのロックデータ
+     */
+    private static class Partition {
+
+        /** ブロック座標をキーとしたレコード */
+        LongObjectHashMap<LockRecord> records = new LongObjectHashMap<LockRecord>();
+
+        /** ワールドがロードされているかどうか */
+        boolean loaded;
+
+        /** 書き出しが必要かどうか */
+        boolean dirty;
+    }
+
+    /** データを格納するフォルダ */
+    private File dataFolder;
+
+    /** ワールドのファイルを格納するフォルダ */
+    private File folder;
+
+    /** ロック数のファイル */
+    private File countsFile;
+
+    /** メモリに置かれているワールドのロックデータ。ワールド名がキー */
+    private HashMap<String, Partition> partitions;
+
+    /** ロック数 */
+    private LockCounter counts;
+
+    /** ロック数の書き出しが必要かどうか */
+    private boolean countsDirty;
+
+    /** 書き込みを行うスレッド */
+    private ExecutorService executor;
+
+    /** 書き込み待ちのワールドのファイルの内容（書き込みスレッドが完了時に削除する） */
+    private ConcurrentHashMap<File, List<LockRecord>> pendingWrites;
+
+    /** ロガー（loadで設定する） */
+    private volatile Logger logger;
+
+    /**
+     * コンストラクタ
+     * @param dataFolder データを格納するフォルダ
+     */
+    public LockDataWorldStore(File dataFolder) {
+        this.dataFolder = dataFolder;
+        this.folder = new File(dataFolder, WORLD_FOLDER);
+        this.countsFile = new File(folder, COUNTS_FILE);
+        this.partitions = new HashMap<String, Partition>();
+        this.counts = new LockCounter();
+        this.executor = Executors.newSingleThreadExecutor();
+        this.pendingWrites = new ConcurrentHashMap<File, List<LockRecord>>();
+        this.logger = Logger.getLogger(LockDataWorldStore.class.getName());
+    }
+
+    /**
+     * メモリ上のワールドを全て破棄して、ロック数を読み込み直す。
+     * ロック数のファイルが無いか壊れている場合は、全てのワールドのファイルから数え直す。
+     * フォルダがまだ無い場合は、プレイヤーファイルから一度だけ移行する。
+     * @see org.bitbucket.ucchy.sl.LockStore#load(java.util.logging.Logger)
+     */
+    @Override
+    public void load(Logger logger) {
+
+        this.logger = logger;
+
+        // 書き込み待ちのデータを、先にファイルへ反映しておく
+        flush();
+        waitForIdle();
+        partitions = new HashMap<String, Partition>();
+
+        if ( !folder.exists() ) {
+            folder.mkdirs();
+            counts = new LockCounter();
+            List<LockRecord> records = LockDataLoader.loadRecords(dataFolder);
+            importRecords(records);
+            if ( records.size() > 0 ) {
+                logger.info("Migrated " + records.size() + " lock data from yml files to the world files.");
+            }
+            return;
+        }
+
+        // 書き込みの途中で停止していたら、置き換え前のファイルを元に戻す
+        recoverFiles();
+
+        if ( loadCounts(logger) ) return;
+
+        // 全てのワールドのファイルを数え直す
+        counts = new LockCounter();
+        for ( File file : listWorldFiles() ) {
+            for ( LockRecord record : readWorld(file, getWorldName(file), logger) ) {
+                counts.add(record.world, record.owner, 1);
+            }
+        }
+        countsDirty = true;
+        flush();
+        logger.info("Lock data counts were rebuilt from the world files.");
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#prepareReload(java.util.logging.Logger)
+     */
+    @Override
+    public Reload prepareReload(Logger logger) {
+        // 非同期の再読込には対応しない
+        return null;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#isChunkPaged()
+     */
+    @Override
+    public boolean isChunkPaged() {
+        return false;
+    }
+
+    /**
+     * ワールドのファイルを読み込んで、ロードされている間はメモリに置く
+     * @see org.bitbucket.ucchy.sl.LockStore#loadWorld(java.lang.String)
+     */
+    @Override
+    public List<LockRecord> loadWorld(String world) {
+        Partition partition = getPartition(world);
+        partition.loaded = true;
+        return partition.records.values();
+    }
+
+    /**
+     * 次の {@link #flush()} で書き出してから、メモリから外す
+     * @see org.bitbucket.ucchy.sl.LockStore#unloadWorld(java.lang.String)
+     */
+    @Override
+    public void unloadWorld(String world) {
+        Partition partition = partitions.get(world);
+        if ( partition != null ) {
+            partition.loaded = false;
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#loadChunk(java.lang.String, int, int)
+     */
+    @Override
+    public List<LockRecord> loadChunk(String world, int chunkX, int chunkZ) {
+        return new ArrayList<LockRecord>();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#unloadChunk(java.lang.String, int, int)
+     */
+    @Override
+    public void unloadChunk(String world, int chunkX, int chunkZ) {
+        // do nothing.
+    }
+
+    /**
+     * ワールドのロックデータは、ロード時にその場で読み込むので、読み込み中のチャンクは無い
+     * @see org.bitbucket.ucchy.sl.LockStore#isChunkLoading(java.lang.String, int, int)
+     */
+    @Override
+    public boolean isChunkLoading(String world, int chunkX, int chunkZ) {
+        return false;
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#add(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void add(LockRecord record) {
+        put(record);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#update(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void update(LockRecord record) {
+        put(record);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#remove(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void remove(LockRecord record) {
+
+        Partition partition = getPartition(record.world);
+        LockRecord prev = partition.records.remove(record.getBlockKey());
+        if ( prev == null ) return;
+        counts.add(prev.world, prev.owner, -1);
+        partition.dirty = true;
+        countsDirty = true;
+    }
+
+    /**
+     * ワールドのファイルの削除を予約する。レコードは1件ずつ調べない。
+     * @see org.bitbucket.ucchy.sl.LockStore#deleteWorld(java.lang.String)
+     */
+    @Override
+    public void deleteWorld(String world) {
+
+        // ロードされているワールドは、空のロックデータで置き換える
+        Partition prev = partitions.remove(world);
+        if ( prev != null && prev.loaded ) {
+            Partition partition = new Partition();
+            partition.loaded = true;
+            partitions.put(world, partition);
+        }
+        scheduleWrite(getWorldFile(world), new ArrayList<LockRecord>());
+        if ( counts.removeWorld(world) ) {
+            countsDirty = true;
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#importRecords(java.util.List)
+     */
+    @Override
+    public void importRecords(List<LockRecord> records) {
+        for ( LockRecord record : records ) {
+            put(record);
+        }
+        flush();
+    }
+
+    /**
+     * ワールドのファイルを、1つずつ読み出す
+     * @see org.bitbucket.ucchy.sl.LockStore#openCursor()
+     */
+    @Override
+    public Iterator<LockRecord> openCursor() {
+
+        // 書き込み待ちのデータの書き込みを予約する。
+        // ファイルの一覧と読み込みは、その後で書き込みスレッドが行うので、ここでは待たない。
+        flush();
+
+        return new LockRecordCursor() {
+            private List<File> files;
+            private int index = 0;
+            protected List<LockRecord> nextBatch() throws Exception {
+                if ( files == null ) {
+                    files = executor.submit(new Callable<List<File>>() {
+                        public List<File> call() {
+                            return listWorldFiles();
+                        }
+                    }).get();
+                }
+                if ( index >= files.size() ) return null;
+                final File file = files.get(index++);
+
+                // 置き換え中のファイルを読まないように、書き込みスレッドで読み込む
+                return executor.submit(new Callable<List<LockRecord>>() {
+                    public List<LockRecord> call() {
+                        List<LockRecord> records = readWorld(file, getWorldName(file), logger);
+
+                        // 壊れていたファイルは移動されているので、読めた分を書き出しておく
+                        if ( !records.isEmpty() && !file.exists() ) {
+                            writeWorld(file, records);
+                        }
+                        return records;
+                    }
+                }).get();
+            }
+        };
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#getCount(java.util.UUID)
+     */
+    @Override
+    public int getCount(UUID owner) {
+        return counts.getCount(owner);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#getWorldCount(java.lang.String)
+     */
+    @Override
+    public int getWorldCount(String world) {
+        return counts.getWorldCount(world);
+    }
+
+    /**
+     * 変更されたワールドとロック数の書き込みを予約し、
+     * ロードされていないワールドをメモリから外す
+     * @see org.bitbucket.ucchy.sl.LockStore#flush()
+     */
+    @Override
+    public void flush() {
+
+        Iterator<String> it = partitions.keySet().iterator();
+        while ( it.hasNext() ) {
+            String world = it.next();
+            Partition partition = partitions.get(world);
+            if ( partition.dirty ) {
+                scheduleWrite(getWorldFile(world), partition.records.values());
+                partition.dirty = false;
+            }
+            if ( !partition.loaded ) {
+                it.remove();
+            }
+        }
+
+        if ( countsDirty ) {
+            final LockCounter copy = counts.copy();
+            executor.execute(new Runnable() {
+                public void run() {
+                    writeCounts(copy);
+                }
+            });
+            countsDirty = false;
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#saveAll()
+     */
+    @Override
+    public void saveAll() {
+        for ( Partition partition : partitions.values() ) {
+            partition.dirty = true;
+        }
+        countsDirty = true;
+        flush();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#shutdown(int, java.util.logging.Logger)
+     */
+    @Override
+    public void shutdown(int timeout, Logger logger) {
+        flush();
+        executor.shutdown();
+        try {
+            if ( !executor.awaitTermination(timeout, TimeUnit.SECONDS) ) {
+                logger.warning("Lock data could not be saved within " + timeout + " seconds.");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * ロックデータを追加または更新する
+     * @param record ロックデータ
+     */
+    private void put(LockRecord record) {
+
+        Partition partition = getPartition(record.world);
+        LockRecord prev = partition.records.put(record.getBlockKey(), record);
+        if ( prev != null ) {
+            counts.add(prev.world, prev.owner, -1);
+        }
+        counts.add(record.world, record.owner, 1);
+        partition.dirty = true;
+        countsDirty = true;
+    }
+
+    /**
+     * ワールドのロックデータを取得する。メモリに無い場合はファイルから読み込む。
+     * @param world ワールド名
+     * @return ワールドのロックデータ
+     */
+    private Partition getPartition(String world) {
+
+        Partition partition = partitions.get(world);
+        if ( partition != null ) return partition;
+
+        partition = new Partition();
+        File file = getWorldFile(world);
+
+        // 書き込み待ちの内容があれば、ファイルよりもそちらが新しい
+        List<LockRecord> pending = pendingWrites.get(file);
+        List<LockRecord> records = pending != null ? pending
+                : readWorld(file, world, logger);
+        for ( LockRecord record : records ) {
+            partition.records.put(record.getBlockKey(), record);
+        }
+
+        // 壊れていたファイルは移動されているので、読めた分を書き出しておく
+        if ( pending == null && !records.isEmpty() && !file.exists() ) {
+            partition.dirty = true;
+        }
+        partitions.put(world, partition);
+        return partition;
+    }
+
+    /**
+     * 予約済みの書き込みが全て終わるまで待つ
+     */
+    private void waitForIdle() {
+        try {
+            executor.submit(new Runnable() {
+                public void run() {
+                    // do nothing.
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * ワールドのファイルの書き込みを予約する
+     * @param file ワールドのファイル
+     * @param records 書き込む内容
+     */
+    private void scheduleWrite(final File file, final List<LockRecord> records) {
+        pendingWrites.put(file, records);
+        executor.execute(new Runnable() {
+            public void run() {
+                writeWorld(file, records);
+                pendingWrites.remove(file, records);
+            }
+        });
+    }
+
+    /**
+     * 全てのワールドのファイルを取得する
+     * @return ワールドのファイル
+     */
+    private List<File> listWorldFiles() {
+        ArrayList<File> result = new ArrayList<File>();
+        File[] files = folder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(EXTENSION) && !name.equals(COUNTS_FILE);
+            }
+        });
+        if ( files != null ) {
+            for ( File file : files ) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 書き込みの途中で停止した時に残った、一時ファイルと退避ファイルを片付ける
+     */
+    private void recoverFiles() {
+        File[] files = folder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(EXTENSION + ".tmp") || name.endsWith(EXTENSION + ".bak");
+            }
+        });
+        if ( files == null ) return;
+        for ( File file : files ) {
+            String name = file.getName();
+            Utility.recoverFile(new File(folder, name.substring(0, name.length() - 4)));
+        }
+    }
+
+    /**
+     * ワールドのファイルを取得する
+     * @param world ワールド名
+     * @return ワールドのファイル
+     */
+    private File getWorldFile(String world) {
+        return new File(folder, world + EXTENSION);
+    }
+
+    /**
+     * ワールドのファイルから、ワールド名を取得する
+     * @param file ワールドのファイル
+     * @return ワールド名
+     */
+    private static String getWorldName(File file) {
+        return file.getName().substring(0, file.getName().length() - EXTENSION.length());
+    }
+
+    /**
+     * ロック数のファイルを読み込む
+     * @param logger ロガー
+     * @return 読み込めたかどうか
+     */
+    private boolean loadCounts(Logger logger) {
+
+        if ( !countsFile.exists() ) return false;
+
+        LockCounter result = new LockCounter();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(countsFile)));
+            if ( in.readInt() != COUNTS_MAGIC || in.readInt() != VERSION ) {
+                throw new IOException("Invalid counts header.");
+            }
+            int worlds = in.readInt();
+            for ( int i=0; i<worlds; i++ ) {
+                String world = in.readUTF();
+                int num = in.readInt();
+                for ( int j=0; j<num; j++ ) {
+                    result.add(world, new UUID(in.readLong(), in.readLong()), in.readInt());
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Lock data counts " + countsFile.getName() + " is broken.");
+            return false;
+        } finally {
+            close(in);
+        }
+
+        counts = result;
+        countsDirty = false;
+        return true;
+    }
+
+    /**
+     * ロック数のファイルを書き出す。書き込みスレッドから呼び出すこと。
+     * @param copy 書き出す内容
+     */
+    private void writeCounts(LockCounter copy) {
+
+        File temp = new File(folder, COUNTS_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            folder.mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(COUNTS_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(copy.getWorlds().size());
+            for ( String world : copy.getWorlds() ) {
+                out.writeUTF(world);
+                out.writeInt(copy.getOwners(world).size());
+                for ( UUID owner : copy.getOwners(world) ) {
+                    out.writeLong(owner.getMostSignificantBits());
+                    out.writeLong(owner.getLeastSignificantBits());
+                    out.writeInt(copy.getCount(world, owner));
+                }
+            }
+            out.close();
+            out = null;
+            Utility.replaceFile(temp, countsFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * ワールドのファイルを読み込む。壊れている場合は、読めた分だけを返して、ファイルを別名に移動する。
+     * @param file ワールドのファイル
+     * @param world ワールド名
+     * @param logger ロガー
+     * @return 読み込んだレコード
+     */
+    private static List<LockRecord> readWorld(File file, String world, Logger logger) {
+
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        if ( !file.exists() ) return records;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if ( in.readInt() != WORLD_MAGIC || in.readInt() != VERSION ) {
+                throw new IOException("Invalid world file header.");
+            }
+            int count = in.readInt();
+            for ( int i=0; i<count; i++ ) {
+                LockRecord record = new LockRecord();
+                record.owner = new UUID(in.readLong(), in.readLong());
+                record.world = world;
+                record.x = in.readInt();
+                record.y = in.readInt();
+                record.z = in.readInt();
+                record.time = in.readLong();
+                if ( in.readBoolean() ) {
+                    record.entity = new UUID(in.readLong(), in.readLong());
+                }
+                records.add(record);
+            }
+        } catch (IOException e) {
+            // 読めた分だけで書き直すと残りが失われるので、壊れたファイルは移動して残しておく
+            logger.warning("Lock data world file " + file.getName() + " is broken.");
+            e.printStackTrace();
+            close(in);
+            in = null;
+            File dest = Utility.quarantineFile(file);
+            if ( dest != null ) {
+                logger.warning("The broken file was moved to " + dest.getName() + ".");
+            } else {
+                logger.severe("Could not move the broken file " + file.getName() + ".");
+            }
+        } finally {
+            close(in);
+        }
+        return records;
+    }
+
+    /**
+     * ワールドのファイルを書き出す。書き込みスレッドから呼び出すこと。
+     * レコードが無い場合は、ファイルを削除する。
+     * @param file ワールドのファイル
+     * @param records 書き出すレコード
+     */
+    private static void writeWorld(File file, List<LockRecord> records) {
+
+        if ( records.isEmpty() ) {
+            if ( file.exists() ) {
+                file.delete();
+            }
+            return;
+        }
+
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(WORLD_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+            for ( LockRecord record : records ) {
+                out.writeLong(record.owner.getMostSignificantBits());
+                out.writeLong(record.owner.getLeastSignificantBits());
+                out.writeInt(record.x);
+                out.writeInt(record.y);
+                out.writeInt(record.z);
+                out.writeLong(record.time);
+                out.writeBoolean(record.entity != null);
+                if ( record.entity != null ) {
+                    out.writeLong(record.entity.getMostSignificantBits());
+                    out.writeLong(record.entity.getLeastSignificantBits());
+                }
+            }
+            out.close();
+            out = null;
+            Utility.replaceFile(temp, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * ストリームを閉じる
+     * @param stream ストリーム
+     */
+    private static void close(Closeable stream) {
+        if ( stream != null ) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // do nothing.
+            }
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * プレイヤーファイルの書き込みを、メインスレッドとは別の専用スレッドで行うクラス。
+ * 書き込みは1本のスレッドで順番に処理されるため、同じファイルへの書き込みが前後することは無い。
+ * <br/>
+ * ロックデータの追加・削除は、呼び出し元のスレッドで先行書き込みログ（data/locks-&lt;番号&gt;.wal）へ追記してから戻る。
+ * ログのfsyncは書き込みスレッドで行い、続けて追記されたものをまとめて1回だけ同期する（グループコミット）。
+ * ログは {@link #checkpoint()} の時点で次の番号のファイルに切り替え、それまでのファイルは、
+ * 予約済みのプレイヤーファイルを書き終えてから削除する。
+ * 書き込みに失敗したプレイヤーファイルがある間は、ログを削除せずに残し、次回の起動時に適用し直す。
+ * プレイヤーファイルは一時ファイルに書いてから置き換えるため、書き込み途中で停止しても壊れない。
+ * @author ucchy
+ */
+public class LockDataWriter {
+
+    private static final String LOG_PREFIX = "locks-";
+    private static final String LOG_EXTENSION = ".wal";
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /** プレイヤーファイルの配置 */
+    private OwnerFileLayout layout;
+
+    /** 書き込みを行うスレッド */
+    private ExecutorService executor;
+
+    /** ログの操作に使うロック */
+    private final Object logLock = new Object();
+
+    /** 追記中のログの番号（logLockで保護する） */
+    private long logNumber;
+
+    /** ログの出力先（logLockで保護する） */
+    private FileOutputStream logStream;
+
+    /** ログの出力（logLockで保護する） */
+    private DataOutputStream logOut;
+
+    /** fsyncが予約済みかどうか（logLockで保護する） */
+    private boolean syncScheduled;
+
+    /** 書き込みに失敗して、まだ書き直せていないオーナープレイヤー（書き込みスレッドからのみ使用する） */
+    private HashSet<UUID> failedOwners;
+
+    /**
+     * コンストラクタ
+     * @param layout プレイヤーファイルの配置
+     */
+    public LockDataWriter(OwnerFileLayout layout) {
+        this.layout = layout;
+        this.executor = Executors.newSingleThreadExecutor();
+        this.failedOwners = new HashSet<UUID>();
+    }
+
+    /**
+     * ロックデータの追加・更新を、ログへ追記する
+     * @param record ロックデータ
+     */
+    public void logAdd(LockRecord record) {
+        synchronized (logLock) {
+            try {
+                openLog();
+                logOut.writeByte(OP_ADD);
+                record.write(logOut);
+                logOut.flush();
+                scheduleSync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * ロックデータの削除を、ログへ追記する
+     * @param record 削除したロックデータ
+     */
+    public void logRemove(LockRecord record) {
+        synchronized (logLock) {
+            try {
+                openLog();
+                logOut.writeByte(OP_REMOVE);
+                logOut.writeUTF(record.world);
+                logOut.writeInt(record.x);
+                logOut.writeInt(record.y);
+                logOut.writeInt(record.z);
+                logOut.flush();
+                scheduleSync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 以降の追記を次の番号のログに切り替え、ここまでに予約したプレイヤーファイルの書き込みが終わった後で、
+     * それまでのログを削除するよう予約する。
+     * 書き込みに失敗したプレイヤーファイルが残っている場合は、ログを削除しない。
+     */
+    public void checkpoint() {
+
+        final FileOutputStream stream;
+        final long last;
+        synchronized (logLock) {
+            stream = logStream;
+            last = logNumber;
+            logStream = null;
+            logOut = null;
+            logNumber++;
+            syncScheduled = false;
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                if ( stream != null ) {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                // 失敗した書き込みの変更は、ログにしか残っていない
+                if ( !failedOwners.isEmpty() ) return;
+                for ( LogFile log : listLogs() ) {
+                    if ( log.number <= last ) {
+                        log.file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * ログに残っている変更を、番号の順に読み込んだロックデータへ適用する。
+     * 書き込みスレッドが停止している状態（起動時や再読込時）で呼び出すこと。
+     * @param store 適用先
+     * @param logger ロガー
+     * @return 適用した変更の数
+     */
+    public int replay(LockDataYamlStore store, Logger logger) {
+
+        int count = 0;
+        for ( LogFile log : listLogs() ) {
+            count += replay(log.file, store, logger);
+            synchronized (logLock) {
+                if ( logNumber <= log.number ) {
+                    // 残っているログには追記せず、次の番号から使う
+                    logNumber = log.number + 1;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * プレイヤーファイルの書き込みを予約する
+     * @param uuid オーナープレイヤー
+     * @param name オーナープレイヤーの名前
+     * @param records 書き込むロックデータ（呼び出し元で作成したもの）
+     */
+    public void write(final UUID uuid, final String name, final List<LockRecord> records) {
+        executor.execute(new Runnable() {
+            public void run() {
+                // 同じオーナーの書き込みは、全てのロックデータを含むので、成功すれば以前の失敗を上書きする
+                if ( writeFile(layout.getFile(uuid), name, records) ) {
+                    failedOwners.remove(uuid);
+                } else {
+                    failedOwners.add(uuid);
+                }
+            }
+        });
+    }
+
+    /**
+     * 予約済みの書き込みが全て終わるまで待つ
+     */
+    public void waitForIdle() {
+        try {
+            executor.submit(new Runnable() {
+                public void run() {
+                    // do nothing.
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 予約済みの書き込みを処理してから、スレッドを終了する
+     * @param timeout 待機する最大時間（秒）
+     * @param logger 待機がタイムアウトした時に警告を出力するロガー
+     * @return 全ての書き込みが終わったかどうか
+     */
+    public boolean shutdown(int timeout, Logger logger) {
+        executor.execute(new Runnable() {
+            public void run() {
+                closeLog();
+            }
+        });
+        executor.shutdown();
+        try {
+            if ( !executor.awaitTermination(timeout, TimeUnit.SECONDS) ) {
+                logger.warning("Lock data could not be saved within " + timeout + " seconds.");
+                return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * プレイヤーファイルを書き込む
+     * @param file プレイヤーファイル
+     * @param name オーナープレイヤーの名前
+     * @param records 書き込むロックデータ
+     * @return 書き込めたかどうか
+     */
+    private static boolean writeFile(File file, String name, List<LockRecord> records) {
+
+        YamlConfiguration config = new YamlConfiguration();
+
+        config.set("name", name);
+
+        for ( LockRecord record : records ) {
+            String desc = record.getDescription();
+            if ( record.entity == null ) {
+                config.set(desc, record.time);
+            } else {
+                ConfigurationSection section = config.createSection(desc);
+                section.set("time", record.time);
+                section.set("entity", record.entity.toString());
+            }
+        }
+
+        // 一時ファイルに書いてから置き換える
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            if ( !file.getParentFile().exists() ) {
+                file.getParentFile().mkdirs();
+            }
+            config.save(temp);
+            Utility.replaceFile(temp, file);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 1つのログファイルの変更を、読み込んだロックデータへ適用する
+     * @param file ログファイル
+     * @param store 適用先
+     * @param logger ロガー
+     * @return 適用した変更の数
+     */
+    private static int replay(File file, LockDataYamlStore store, Logger logger) {
+
+        int count = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while ( true ) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if ( op == OP_ADD ) {
+                    store.replayAdd(LockRecord.read(in));
+                } else if ( op == OP_REMOVE ) {
+                    LockRecord record = new LockRecord();
+                    record.world = in.readUTF();
+                    record.x = in.readInt();
+                    record.y = in.readInt();
+                    record.z = in.readInt();
+                    store.replayRemove(record);
+                } else {
+                    throw new IOException("Unknown log record type " + op + ".");
+                }
+                count++;
+            }
+        } catch (IOException e) {
+            // fsyncの前に停止した場合など。最後の不完全なレコードは捨てる。
+            logger.warning("Lock data log " + file.getName() + " has a broken record. It was ignored.");
+        } finally {
+            if ( in != null ) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // do nothing.
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * データフォルダにあるログファイルを、番号の順に取得する
+     * @return ログファイル
+     */
+    private List<LogFile> listLogs() {
+
+        ArrayList<LogFile> logs = new ArrayList<LogFile>();
+        File[] files = layout.getDataFolder().listFiles();
+        if ( files == null ) return logs;
+
+        for ( File file : files ) {
+            String name = file.getName();
+            if ( !name.startsWith(LOG_PREFIX) || !name.endsWith(LOG_EXTENSION) ) continue;
+            try {
+                long number = Long.parseLong(
+                        name.substring(LOG_PREFIX.length(), name.length() - LOG_EXTENSION.length()));
+                logs.add(new LogFile(number, file));
+            } catch (NumberFormatException e) {
+                // do nothing.
+            }
+        }
+        Collections.sort(logs);
+        return logs;
+    }
+
+    /**
+     * ログの出力を開く。logLockを取得した状態で呼び出すこと。
+     * @throws IOException
+     */
+    private void openLog() throws IOException {
+        if ( logOut == null ) {
+            File file = new File(layout.getDataFolder(), LOG_PREFIX + logNumber + LOG_EXTENSION);
+            if ( !file.getParentFile().exists() ) {
+                file.getParentFile().mkdirs();
+            }
+            logStream = new FileOutputStream(file, true);
+            logOut = new DataOutputStream(new BufferedOutputStream(logStream));
+        }
+    }
+
+    /**
+     * 追記中のログのfsyncを予約する。logLockを取得した状態で呼び出すこと。
+     * 既に予約済みの場合は、その時にまとめて同期される。
+     * 書き込みスレッドが終了している場合は、その場で同期する。
+     * @throws IOException
+     */
+    private void scheduleSync() throws IOException {
+
+        if ( syncScheduled ) return;
+
+        if ( executor.isShutdown() ) {
+            logStream.getFD().sync();
+            return;
+        }
+
+        // 切り替え前のログは、checkpointの予約で閉じられるまで開いたままなので、同期できる
+        final FileOutputStream stream = logStream;
+        syncScheduled = true;
+        executor.execute(new Runnable() {
+            public void run() {
+                synchronized (logLock) {
+                    if ( stream == logStream ) {
+                        syncScheduled = false;
+                    }
+                }
+                try {
+                    stream.getFD().sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * ログの出力を閉じる
+     */
+    private void closeLog() {
+        synchronized (logLock) {
+            if ( logOut != null ) {
+                try {
+                    logOut.flush();
+                    logStream.getFD().sync();
+                    logOut.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                logOut = null;
+                logStream = null;
+            }
+        }
+    }
+
+    /**
+     * 番号付きのログファイル
+     */
+    private static class LogFile implements Comparable<LogFile> {
+
+        private long number;
+        private File file;
+
+        private LogFile(long number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+
+        @Override
+        public int compareTo(LogFile other) {
+            return number < other.number ? -1 : (number == other.number ? 0 : 1);
+        }
+    }
+}
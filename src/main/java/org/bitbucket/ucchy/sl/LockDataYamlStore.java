@@ -0,0 +1,309 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * ロックデータを、プレイヤーごとのymlファイル（data/&lt;UUID&gt;.yml）に保存するクラス。
+ * 変更されたプレイヤーを記録しておき、{@link #flush()} でまとめて書き込みスレッドへ渡す。
+ * 変更はその都度ログにも追記されるため、書き込み前に停止しても次回のロード時に復元される。
+ * @author ucchy
+ */
+public class LockDataYamlStore extends LockDataMemoryStore {
+
+    /** フラットデータファイルを格納するフォルダ */
+    private File dataFolder;
+
+    /** プレイヤーファイルの配置 */
+    private OwnerFileLayout layout;
+
+    /** プレイヤーファイルの書き込みを行うクラス */
+    private LockDataWriter writer;
+
+    /** 保存が予約されているオーナープレイヤー */
+    private HashSet<UUID> dirtyOwners;
+
+    /** オーナー名のキャッシュ */
+    private OwnerNameCache names;
+
+    /**
+     * コンストラクタ
+     * @param dataFolder フラットデータファイルを格納するフォルダ
+     * @param names オーナー名のキャッシュ
+     * @param sharded プレイヤーファイルを分割配置するかどうか
+     */
+    public LockDataYamlStore(File dataFolder, OwnerNameCache names, boolean sharded) {
+        this.dataFolder = dataFolder;
+        this.names = names;
+        this.layout = new OwnerFileLayout(dataFolder, sharded);
+        this.writer = new LockDataWriter(layout);
+        this.dirtyOwners = new HashSet<UUID>();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#load(java.util.logging.Logger)
+     */
+    @Override
+    public void load(Logger logger) {
+
+        // 書き込み待ちのデータを、先にファイルへ反映しておく
+        flush();
+        writer.waitForIdle();
+
+        // 書き込みの途中で停止していたら、置き換え前のファイルを元に戻す
+        layout.recover(logger);
+
+        // 配置の設定が変わっていたら、ファイルを移動しておく
+        layout.migrate(logger);
+
+        // 前回正常に停止していれば、変更の無いファイルはスナップショットから読み込む
+        LockDataSnapshot snapshot = LockDataSnapshot.read(dataFolder, logger);
+
+        clear();
+        for ( LockDataLoader.OwnerData owner : LockDataLoader.loadFolder(dataFolder, snapshot) ) {
+
+            for ( LockRecord record : owner.records ) {
+                putRecord(record);
+            }
+            names.putOwner(owner.uuid, owner.name);
+
+            // 読み飛ばしたデータがある場合だけ、ファイルを書き直す
+            if ( owner.dirty ) {
+                dirtyOwners.add(owner.uuid);
+            }
+        }
+
+        // 前回の停止時にプレイヤーファイルへ書き込まれなかった変更を、ログから復元する
+        int count = writer.replay(this, logger);
+        if ( count > 0 ) {
+            logger.info("Recovered " + count + " lock data changes from the log.");
+            flush();
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#prepareReload(java.util.logging.Logger)
+     */
+    @Override
+    public Reload prepareReload(Logger logger) {
+
+        // 書き込み待ちのデータを書き込みスレッドへ渡し、現在の内容を控えておく
+        flush();
+        HashMap<UUID, ArrayList<LockRecord>> current = new HashMap<UUID, ArrayList<LockRecord>>();
+        for ( UUID uuid : owners.keySet() ) {
+            current.put(uuid, new ArrayList<LockRecord>(owners.get(uuid)));
+        }
+        return new YamlReload(current);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockDataMemoryStore#add(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void add(LockRecord record) {
+        replayAdd(record);
+        writer.logAdd(record);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockDataMemoryStore#update(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void update(LockRecord record) {
+        replayAdd(record);
+        writer.logAdd(record);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockDataMemoryStore#remove(org.bitbucket.ucchy.sl.LockRecord)
+     */
+    @Override
+    public void remove(LockRecord record) {
+        LockRecord prev = replayRemove(record);
+        if ( prev != null ) {
+            writer.logRemove(prev);
+        }
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockDataMemoryStore#deleteWorld(java.lang.String)
+     */
+    @Override
+    public void deleteWorld(String world) {
+        for ( LockRecord record : loadWorld(world) ) {
+            dirtyOwners.add(record.owner);
+            writer.logRemove(record);
+        }
+        super.deleteWorld(world);
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#flush()
+     */
+    @Override
+    public void flush() {
+
+        if ( dirtyOwners.isEmpty() ) return;
+
+        for ( UUID uuid : dirtyOwners ) {
+            HashSet<LockRecord> records = owners.get(uuid);
+            writer.write(uuid, names.getOwnerName(uuid),
+                    records == null ? new ArrayList<LockRecord>() : new ArrayList<LockRecord>(records));
+        }
+        dirtyOwners.clear();
+
+        // プレイヤーファイルを書き終えたら、ログは不要になる
+        writer.checkpoint();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#saveAll()
+     */
+    @Override
+    public void saveAll() {
+        dirtyOwners.addAll(owners.keySet());
+        flush();
+    }
+
+    /**
+     * @see org.bitbucket.ucchy.sl.LockStore#shutdown(int, java.util.logging.Logger)
+     */
+    @Override
+    public void shutdown(int timeout, Logger logger) {
+        flush();
+        if ( writer.shutdown(timeout, logger) ) {
+            // 全てのファイルを書き終えた状態を、次回の起動用に保存する
+            LockDataSnapshot.write(layout, owners, names);
+        }
+    }
+
+    /**
+     * レコードを登録して、オーナーの保存を予約する。ログには追記しない。
+     * @param record レコード
+     */
+    protected void replayAdd(LockRecord record) {
+        LockRecord prev = putRecord(record);
+        if ( prev != null ) {
+            dirtyOwners.add(prev.owner);
+        }
+        dirtyOwners.add(record.owner);
+    }
+
+    /**
+     * レコードを削除して、オーナーの保存を予約する。ログには追記しない。
+     * @param record 削除する位置のレコード
+     * @return 削除したレコード、無かった場合はnull
+     */
+    protected LockRecord replayRemove(LockRecord record) {
+        LockRecord prev = removeRecord(record.world, record.getBlockKey());
+        if ( prev != null ) {
+            dirtyOwners.add(prev.owner);
+        }
+        return prev;
+    }
+
+    /**
+     * 更新日時かサイズが変わったプレイヤーファイルだけを読み直す、再読込の内容
+     */
+    private class YamlReload implements Reload {
+
+        /** 再読込を開始した時点のロックデータ */
+        private HashMap<UUID, ArrayList<LockRecord>> current;
+
+        /** 読み込んだロックデータ */
+        private Records loaded;
+
+        /** 読み込み後に、ファイルの書き直しが必要なオーナー */
+        private HashSet<UUID> dirty;
+
+        /**
+         * コンストラクタ
+         * @param current 再読込を開始した時点のロックデータ
+         */
+        private YamlReload(HashMap<UUID, ArrayList<LockRecord>> current) {
+            this.current = current;
+            this.loaded = new Records();
+            this.dirty = new HashSet<UUID>();
+        }
+
+        /**
+         * @see org.bitbucket.ucchy.sl.LockStore.Reload#read()
+         */
+        @Override
+        public void read() {
+
+            // 開始時点の内容が書き終わってから、ファイルの状態を控える
+            writer.waitForIdle();
+            LockDataSnapshot snapshot = LockDataSnapshot.capture(layout, current, names);
+
+            for ( LockDataLoader.OwnerData owner : LockDataLoader.loadFolder(dataFolder, snapshot) ) {
+                for ( LockRecord record : owner.records ) {
+                    loaded.putRecord(record);
+                }
+                names.putOwner(owner.uuid, owner.name);
+                if ( owner.dirty ) {
+                    dirty.add(owner.uuid);
+                }
+            }
+        }
+
+        /**
+         * @see org.bitbucket.ucchy.sl.LockStore.Reload#loadWorld(java.lang.String)
+         */
+        @Override
+        public List<LockRecord> loadWorld(String world) {
+            return loaded.loadWorld(world);
+        }
+
+        /**
+         * @see org.bitbucket.ucchy.sl.LockStore.Reload#apply()
+         */
+        @Override
+        public void apply() {
+            worlds = loaded.worlds;
+            owners = loaded.owners;
+            dirtyOwners.addAll(dirty);
+        }
+    }
+
+    /**
+     * 再読込で読み込んだレコードを、反映するまで保持するクラス
+     */
+    private static class Records extends LockDataMemoryStore {
+
+        @Override
+        public void load(Logger logger) {
+            // do nothing.
+        }
+
+        @Override
+        public Reload prepareReload(Logger logger) {
+            return null;
+        }
+
+        @Override
+        public void flush() {
+            // do nothing.
+        }
+
+        @Override
+        public void saveAll() {
+            // do nothing.
+        }
+
+        @Override
+        public void shutdown(int timeout, Logger logger) {
+            // do nothing.
+        }
+    }
+}
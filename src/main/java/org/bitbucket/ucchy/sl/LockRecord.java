@@ -0,0 +1,126 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+/**
+ * ファイルから読み込んだ直後の、ワールドを解決する前のロックデータ。
+ * Bukkitのオブジェクトを持たないため、メインスレッド以外で作成してよい。
+ * @author ucchy
+ */
+public class LockRecord {
+
+    /** ロック所有者のUUID */
+    UUID owner;
+
+    /** ワールド名 */
+    String world;
+
+    /** X座標 */
+    int x;
+
+    /** Y座標 */
+    int y;
+
+    /** Z座標 */
+    int z;
+
+    /** ロック日時 */
+    long time;
+
+    /** ロック対象のArmorStandのUUID、不明な場合はnull */
+    UUID entity;
+
+    /**
+     * ブロック座標のlong値を返す
+     * @return ブロック座標のlong値
+     */
+    public long getBlockKey() {
+        return BlockPosition.pack(x, y, z);
+    }
+
+    /**
+     * 位置情報の文字列（world_x_y_z）を返す
+     * @return 位置情報の文字列
+     */
+    public String getDescription() {
+        return String.format("%s_%d_%d_%d", world, x, y, z);
+    }
+
+    /**
+     * ロックデータに変換する
+     * @param w ワールド（worldに対応するもの）
+     * @return ロックデータ
+     */
+    public LockData toLockData(World w) {
+        return new LockData(owner, new Location(w, x, y, z), time, entity);
+    }
+
+    /**
+     * バイナリ形式で書き出す
+     * @param out 出力
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(owner.getMostSignificantBits());
+        out.writeLong(owner.getLeastSignificantBits());
+        out.writeUTF(world);
+        out.writeInt(x);
+        out.writeInt(y);
+        out.writeInt(z);
+        out.writeLong(time);
+        out.writeBoolean(entity != null);
+        if ( entity != null ) {
+            out.writeLong(entity.getMostSignificantBits());
+            out.writeLong(entity.getLeastSignificantBits());
+        }
+    }
+
+    /**
+     * バイナリ形式から読み込む
+     * @param in 入力
+     * @return レコード
+     * @throws IOException
+     */
+    public static LockRecord read(DataInput in) throws IOException {
+        LockRecord record = new LockRecord();
+        record.owner = new UUID(in.readLong(), in.readLong());
+        record.world = in.readUTF();
+        record.x = in.readInt();
+        record.y = in.readInt();
+        record.z = in.readInt();
+        record.time = in.readLong();
+        if ( in.readBoolean() ) {
+            record.entity = new UUID(in.readLong(), in.readLong());
+        }
+        return record;
+    }
+
+    /**
+     * ロックデータから作成する
+     * @param data ロックデータ
+     * @return 作成したレコード
+     */
+    public static LockRecord fromLockData(LockData data) {
+        LockRecord record = new LockRecord();
+        Location location = data.getLocation();
+        record.owner = data.getOwnerUuid();
+        record.world = location.getWorld().getName();
+        record.x = location.getBlockX();
+        record.y = location.getBlockY();
+        record.z = location.getBlockZ();
+        record.time = data.getDate();
+        record.entity = data.getEntityUuid();
+        return record;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * 保存先のロックデータを、少しずつ読み出しながら1件ずつ返すイテレータ。
+ * サブクラスは、次のまとまり（リージョン1つ、データベースの1ページなど）を読み出す処理だけを実装する。
+ * 読み出しに失敗した場合は、最後まで読み出したことにはせず、{@link ReadException} を投げる。
+ * @author ucchy
+ */
+public abstract class LockRecordCursor implements Iterator<LockRecord> {
+
+    /** メインスレッドでの読み出しを待つ最大時間（秒） */
+    private static final int SYNC_TIMEOUT = 60;
+
+    /** 読み出し済みのまとまり */
+    private Iterator<LockRecord> batch;
+
+    /** 最後まで読み出したかどうか */
+    private boolean finished;
+
+    /**
+     * 次のまとまりを読み出す
+     * @return ロックデータ、もう無い場合はnull
+     * @throws Exception 読み出しに失敗した場合
+     */
+    protected abstract List<LockRecord> nextBatch() throws Exception;
+
+    /**
+     * @see java.util.Iterator#hasNext()
+     * @throws ReadException 読み出しに失敗した場合
+     */
+    @Override
+    public boolean hasNext() {
+        while ( !finished && (batch == null || !batch.hasNext()) ) {
+            List<LockRecord> records;
+            try {
+                records = nextBatch();
+            } catch (Exception e) {
+                finished = true;
+                throw new ReadException(e);
+            }
+            if ( records == null ) {
+                finished = true;
+            } else {
+                batch = records.iterator();
+            }
+        }
+        return !finished;
+    }
+
+    /**
+     * @see java.util.Iterator#next()
+     */
+    @Override
+    public LockRecord next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException();
+        }
+        return batch.next();
+    }
+
+    /**
+     * @see java.util.Iterator#remove()
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * メインスレッドで処理を実行し、結果を待つ。メインスレッドから呼び出した場合は、その場で実行する。
+     * プラグインが停止している場合や、一定時間内に実行されなかった場合は失敗する。
+     * @param plugin プラグイン
+     * @param task 処理
+     * @return 結果
+     * @throws Exception 処理で発生した例外、または実行できなかった場合
+     */
+    protected static <T> T callSync(Plugin plugin, Callable<T> task) throws Exception {
+        if ( Bukkit.isPrimaryThread() ) {
+            return task.call();
+        }
+        if ( !plugin.isEnabled() ) {
+            throw new IllegalStateException(plugin.getName() + " is disabled.");
+        }
+        return Bukkit.getScheduler().callSyncMethod(plugin, task).get(SYNC_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * ロックデータの読み出しに失敗したことを示す例外
+     */
+    public static class ReadException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * コンストラクタ
+         * @param cause 読み出しに失敗した原因
+         */
+        public ReadException(Throwable cause) {
+            super(cause);
+        }
+    }
+}
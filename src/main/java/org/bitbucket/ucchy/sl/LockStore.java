@@ -0,0 +1,189 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * ロックデータの保存先のインターフェイス。
+ * {@link Reload} の一部を除き、全てのメソッドは、メインスレッドから呼び出される。
+ * @author ucchy
+ */
+public interface LockStore {
+
+    /**
+     * メインスレッド以外で読み込む、反映前の再読込の内容
+     */
+    public interface Reload {
+
+        /**
+         * 保存先から読み込む。メインスレッド以外から呼び出される。
+         */
+        public void read();
+
+        /**
+         * 読み込んだ内容から、ワールドのロックデータを取得する。
+         * メインスレッド以外から呼び出される。
+         * @param world ワールド名
+         * @return ロックデータ
+         */
+        public List<LockRecord> loadWorld(String world);
+
+        /**
+         * 読み込んだ内容を保存先へ反映する。メインスレッドから呼び出される。
+         */
+        public void apply();
+    }
+
+    /**
+     * メインスレッド以外で読み込んだ、チャンクまたはワールドのロックデータを受け取る処理
+     */
+    public interface ChunkCallback {
+
+        /**
+         * 読み込みが終わったロックデータを受け取る。メインスレッドから呼び出される。
+         * チャンク単位の保存先では、ロード済みのチャンクのロックデータだけが渡される。
+         * @param world ワールド名
+         * @param records ロックデータ
+         */
+        public void loaded(String world, List<LockRecord> records);
+    }
+
+    /**
+     * 保存先から読み込み直す。
+     * 保存先がまだ無い場合は、プレイヤーファイル（yml）の内容を移行する。
+     * @param logger ロガー
+     */
+    public void load(Logger logger);
+
+    /**
+     * 保存先の再読込を準備する。
+     * 戻り値の {@link Reload#read()} と {@link Reload#loadWorld(String)} は、メインスレッド以外から呼び出される。
+     * @param logger ロガー
+     * @return 再読込の内容、非同期の再読込に対応しない場合はnull
+     */
+    public Reload prepareReload(Logger logger);
+
+    /**
+     * チャンク単位でロックデータをロード・アンロードするかどうかを返す。
+     * trueの場合、ロックデータは {@link #loadChunk(String, int, int)} からだけ返される。
+     * @return チャンク単位かどうか
+     */
+    public boolean isChunkPaged();
+
+    /**
+     * ワールドがロードされた時に、そのワールドのロックデータを取得する。
+     * メインスレッド以外で読み込んでから {@link ChunkCallback} へ渡してもよい。
+     * @param world ワールド名
+     * @return ロックデータ
+     */
+    public List<LockRecord> loadWorld(String world);
+
+    /**
+     * ワールドがアンロードされたことを通知する
+     * @param world ワールド名
+     */
+    public void unloadWorld(String world);
+
+    /**
+     * チャンクがロードされた時に、そのチャンクのロックデータを取得する。
+     * メモリに無いロックデータは、メインスレッド以外で読み込んでから {@link ChunkCallback} へ渡してもよい。
+     * @param world ワールド名
+     * @param chunkX チャンクのX座標
+     * @param chunkZ チャンクのZ座標
+     * @return ロックデータ、既にロード済みの場合は空のリスト
+     */
+    public List<LockRecord> loadChunk(String world, int chunkX, int chunkZ);
+
+    /**
+     * チャンクがアンロードされたことを通知する
+     * @param world ワールド名
+     * @param chunkX チャンクのX座標
+     * @param chunkZ チャンクのZ座標
+     */
+    public void unloadChunk(String world, int chunkX, int chunkZ);
+
+    /**
+     * チャンクのロックデータを、まだメインスレッド以外で読み込み中かどうかを返す。
+     * 読み込み中のチャンクは、ロックデータがインデックスに無いので、保護を判断できない。
+     * @param world ワールド名
+     * @param chunkX チャンクのX座標
+     * @param chunkZ チャンクのZ座標
+     * @return 読み込み中かどうか
+     */
+    public boolean isChunkLoading(String world, int chunkX, int chunkZ);
+
+    /**
+     * ロックデータを追加する。追加する位置には、ロックデータが無いこと。
+     * @param record ロックデータ
+     */
+    public void add(LockRecord record);
+
+    /**
+     * 同じ位置、同じオーナーのロックデータを更新する
+     * @param record ロックデータ
+     */
+    public void update(LockRecord record);
+
+    /**
+     * ロックデータを削除する
+     * @param record ロックデータ
+     */
+    public void remove(LockRecord record);
+
+    /**
+     * 指定したワールドのロックデータを、全て削除する
+     * @param world ワールド名
+     */
+    public void deleteWorld(String world);
+
+    /**
+     * ロックデータをまとめて追加する。同じ位置にロックデータがある場合は、置き換える。
+     * @param records ロックデータ
+     */
+    public void importRecords(List<LockRecord> records);
+
+    /**
+     * 全てのロックデータを、少しずつ読み出すカーソルを作成する。
+     * 戻り値のイテレータは、メインスレッド以外で使われる。
+     * @return カーソル
+     */
+    public Iterator<LockRecord> openCursor();
+
+    /**
+     * 指定したオーナーの、全ワールドのロック数を返す
+     * @param owner オーナー
+     * @return ロック数
+     */
+    public int getCount(UUID owner);
+
+    /**
+     * 指定したワールドのロック数を返す
+     * @param world ワールド名
+     * @return ロック数
+     */
+    public int getWorldCount(String world);
+
+    /**
+     * 変更の書き込みを予約する
+     */
+    public void flush();
+
+    /**
+     * 全てのロックデータの書き込みを予約する
+     */
+    public void saveAll();
+
+    /**
+     * 変更を全て書き込んでから、書き込みスレッドを終了する
+     * @param timeout 待機する最大時間（秒）
+     * @param logger 待機がタイムアウトした時に警告を出力するロガー
+     */
+    public void shutdown(int timeout, Logger logger);
+}
@@ -0,0 +1,320 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * longをキーとするハッシュマップ。
+ * キーのボクシングが発生しないように、オープンアドレス法で実装している。
+ * nullの値は格納できない。
+ * @author ucchy
+ * @param <V> 値の型
+ */
+public class LongObjectHashMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    private int threshold;
+
+    /**
+     * コンストラクタ
+     */
+    public LongObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * コンストラクタ
+     * @param expected 格納予定の要素数
+     */
+    public LongObjectHashMap(int expected) {
+        int capacity = DEFAULT_CAPACITY;
+        while ( capacity * LOAD_FACTOR < expected ) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * 指定したキーの値を取得する
+     * @param key キー
+     * @return 値、無い場合はnull
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = hash(key) & mask;
+        Object value;
+        while ( (value = values[index]) != null ) {
+            if ( keys[index] == key ) {
+                return (V)value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * 指定したキーが含まれているかどうかを返す
+     * @param key キー
+     * @return 含まれているかどうか
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * 値を格納する
+     * @param key キー
+     * @param value 値（nullは不可）
+     * @return 以前に格納されていた値、無かった場合はnull
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+
+        if ( value == null ) {
+            throw new IllegalArgumentException("value must not be null.");
+        }
+
+        int index = hash(key) & mask;
+        Object old;
+        while ( (old = values[index]) != null ) {
+            if ( keys[index] == key ) {
+                values[index] = value;
+                return (V)old;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        if ( ++size > threshold ) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * 指定したキーの値を削除する
+     * @param key キー
+     * @return 削除された値、無かった場合はnull
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+
+        int index = hash(key) & mask;
+        Object value;
+        while ( (value = values[index]) != null ) {
+            if ( keys[index] == key ) {
+                values[index] = null;
+                size--;
+                shiftKeys(index);
+                return (V)value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * 格納されている要素数を返す
+     * @return 要素数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 空かどうかを返す
+     * @return 空かどうか
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 全ての要素を削除する
+     */
+    public void clear() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 全てのキーを配列にコピーして返す
+     * @return キーの配列
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int count = 0;
+        for ( int i=0; i<values.length; i++ ) {
+            if ( values[i] != null ) {
+                result[count++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 全ての値をリストにコピーして返す
+     * @return 値のリスト
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        ArrayList<V> result = new ArrayList<V>(size);
+        for ( int i=0; i<values.length; i++ ) {
+            if ( values[i] != null ) {
+                result.add((V)values[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 値を少しずつ読み出すカーソルを作成する。
+     * 読み出しの合間にマップを変更してもよいが、その間に追加・削除された要素は読み出されないことがある。
+     * また、配列が再確保された場合などは最初から読み直すため、同じ値を2回読み出すことがある。
+     * @return カーソル
+     */
+    public ValueCursor cursor() {
+        return new ValueCursor();
+    }
+
+    /**
+     * 値を少しずつ読み出すカーソル。
+     * 空いている位置から逆順に読み出すため、削除による詰め直しで、まだ読んでいない値が読み済みの位置へ移ることは無い。
+     */
+    public class ValueCursor {
+
+        /** 読み出しを始めた時点の配列 */
+        private Object[] table;
+
+        /** 読み出しを始めた、空いている位置 */
+        private int start;
+
+        /** 最後に読んだ位置 */
+        private int index;
+
+        /** まだ読んでいない位置の数 */
+        private int remaining;
+
+        /**
+         * コンストラクタ
+         */
+        private ValueCursor() {
+            restart();
+        }
+
+        /**
+         * 次の値をコピーする
+         * @param max コピーする最大数
+         * @param out コピー先
+         * @return まだ読んでいない値があるかどうか
+         */
+        @SuppressWarnings("unchecked")
+        public boolean next(int max, List<V> out) {
+
+            // 配列が再確保されたか、始めた位置が埋まった場合は、読み飛ばしが起きないように最初から読み直す
+            if ( table != values || values[start] != null ) {
+                restart();
+            }
+
+            int count = 0;
+            while ( remaining > 0 && count < max ) {
+                index = (index - 1) & mask;
+                remaining--;
+                if ( values[index] != null ) {
+                    out.add((V)values[index]);
+                    count++;
+                }
+            }
+            return remaining > 0;
+        }
+
+        /**
+         * 空いている位置を探して、最初から読み直す
+         */
+        private void restart() {
+            table = values;
+            start = 0;
+            while ( values[start] != null ) {
+                start++;
+            }
+            index = start;
+            remaining = values.length - 1;
+        }
+    }
+
+    /**
+     * 削除した位置以降の要素を詰め直す（線形探査の連鎖を維持するため）
+     * @param index 削除した位置
+     */
+    private void shiftKeys(int index) {
+
+        int last = index;
+        int slot = (index + 1) & mask;
+        while ( values[slot] != null ) {
+            int ideal = hash(keys[slot]) & mask;
+            // idealがlastからslotまでの巡回区間外なら、lastへ移動できる
+            if ( last <= slot ? (ideal <= last || ideal > slot) : (ideal <= last && ideal > slot) ) {
+                keys[last] = keys[slot];
+                values[last] = values[slot];
+                values[slot] = null;
+                last = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * 容量を変更して再配置する
+     * @param capacity 新しい容量
+     */
+    private void rehash(int capacity) {
+
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+
+        for ( int i=0; i<oldValues.length; i++ ) {
+            if ( oldValues[i] == null ) continue;
+            int index = hash(oldKeys[i]) & mask;
+            while ( values[index] != null ) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+            size++;
+        }
+    }
+
+    /**
+     * 配列を確保する
+     * @param capacity 容量（2のべき乗）
+     */
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        size = 0;
+        mask = capacity - 1;
+        threshold = (int)(capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * キーのハッシュ値を計算する
+     * @param key キー
+     * @return ハッシュ値
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * プレイヤーファイル（&lt;UUID&gt;.yml）の配置を扱うクラス。
+ * 分割配置の場合は、UUIDの先頭2文字のフォルダ（data/ab/abxxxxxx-....yml）に置き、
+ * 1つのフォルダのファイル数が多くなり過ぎないようにする。
+ * 一覧の取得は、どちらの配置のファイルも対象にする。
+ * @author ucchy
+ */
+public class OwnerFileLayout {
+
+    private static final String EXTENSION = ".yml";
+
+    /** 一時ファイルと退避ファイルの拡張子（.tmp と .bak）の長さ */
+    private static final int LEFTOVER_LENGTH = 4;
+
+    /** データフォルダ */
+    private File dataFolder;
+
+    /** 分割配置かどうか */
+    private boolean sharded;
+
+    /**
+     * コンストラクタ
+     * @param dataFolder データフォルダ
+     * @param sharded 分割配置かどうか
+     */
+    public OwnerFileLayout(File dataFolder, boolean sharded) {
+        this.dataFolder = dataFolder;
+        this.sharded = sharded;
+    }
+
+    /**
+     * データフォルダを返す
+     * @return データフォルダ
+     */
+    public File getDataFolder() {
+        return dataFolder;
+    }
+
+    /**
+     * プレイヤーファイルを返す
+     * @param uuid オーナープレイヤーのUUID
+     * @return プレイヤーファイル
+     */
+    public File getFile(UUID uuid) {
+        String name = uuid.toString();
+        if ( sharded ) {
+            return new File(new File(dataFolder, name.substring(0, 2)), name + EXTENSION);
+        }
+        return new File(dataFolder, name + EXTENSION);
+    }
+
+    /**
+     * 全てのプレイヤーファイルを、設定された配置へ移動する
+     * @param logger ロガー
+     */
+    public void migrate(Logger logger) {
+
+        int count = 0;
+        for ( File file : listFiles(dataFolder) ) {
+            String key = file.getName().substring(0, file.getName().length() - EXTENSION.length());
+            File dest = getFile(UUID.fromString(key));
+            if ( dest.getParentFile().equals(file.getParentFile()) ) continue;
+
+            dest.getParentFile().mkdirs();
+            if ( dest.exists() || !file.renameTo(dest) ) {
+                logger.warning("Could not move " + file.getPath() + " to " + dest.getPath() + ".");
+                continue;
+            }
+            count++;
+        }
+
+        // 空になった分割フォルダを削除する
+        if ( !sharded ) {
+            File[] dirs = dataFolder.listFiles(new ShardFilter());
+            if ( dirs != null ) {
+                for ( File dir : dirs ) {
+                    dir.delete();
+                }
+            }
+        }
+
+        if ( count > 0 ) {
+            logger.info("Moved " + count + " owner files to the " + (sharded ? "sharded" : "flat") + " layout.");
+        }
+    }
+
+    /**
+     * 書き込みの途中で停止した時に残った、プレイヤーファイルの一時ファイルと退避ファイルを片付ける。
+     * 書き込みスレッドが停止している状態（起動時や再読込時）で呼び出すこと。
+     * @param logger ロガー
+     */
+    public void recover(Logger logger) {
+
+        ArrayList<File> dirs = new ArrayList<File>();
+        dirs.add(dataFolder);
+        File[] shards = dataFolder.listFiles(new ShardFilter());
+        if ( shards != null ) {
+            dirs.addAll(Arrays.asList(shards));
+        }
+
+        int count = 0;
+        for ( File dir : dirs ) {
+            File[] files = dir.listFiles(new LeftoverFileFilter());
+            if ( files == null ) continue;
+            for ( File file : files ) {
+                String name = file.getName();
+                File target = new File(dir, name.substring(0, name.length() - LEFTOVER_LENGTH));
+                if ( Utility.recoverFile(target) ) {
+                    count++;
+                }
+            }
+        }
+
+        if ( count > 0 ) {
+            logger.info("Restored " + count + " owner files left by an interrupted write.");
+        }
+    }
+
+    /**
+     * データフォルダのプレイヤーファイルを、両方の配置から取得する。
+     * 分割フォルダの一覧は、複数のスレッドで並列に取得する。
+     * @param dataFolder データフォルダ
+     * @return プレイヤーファイル
+     */
+    public static List<File> listFiles(File dataFolder) {
+
+        ArrayList<File> result = new ArrayList<File>();
+        File[] files = dataFolder.listFiles(new OwnerFileFilter());
+        if ( files != null ) {
+            result.addAll(Arrays.asList(files));
+        }
+
+        File[] dirs = dataFolder.listFiles(new ShardFilter());
+        if ( dirs == null || dirs.length == 0 ) return result;
+
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), dirs.length);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        ArrayList<Future<File[]>> futures = new ArrayList<Future<File[]>>();
+
+        try {
+            for ( final File dir : dirs ) {
+                futures.add(executor.submit(new Callable<File[]>() {
+                    public File[] call() {
+                        return dir.listFiles(new OwnerFileFilter());
+                    }
+                }));
+            }
+
+            for ( Future<File[]> future : futures ) {
+                try {
+                    File[] shard = future.get();
+                    if ( shard != null ) {
+                        result.addAll(Arrays.asList(shard));
+                    }
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdown();
+        }
+
+        return result;
+    }
+
+    /**
+     * ファイル名が &lt;UUID&gt;.yml のファイルを選ぶフィルタ
+     */
+    private static class OwnerFileFilter implements FileFilter {
+
+        @Override
+        public boolean accept(File file) {
+            String name = file.getName();
+            return name.length() == 36 + EXTENSION.length()
+                    && name.endsWith(EXTENSION)
+                    && LockDataLoader.isUUID(name.substring(0, 36))
+                    && file.isFile();
+        }
+    }
+
+    /**
+     * ファイル名が &lt;UUID&gt;.yml.tmp か &lt;UUID&gt;.yml.bak のファイルを選ぶフィルタ
+     */
+    private static class LeftoverFileFilter implements FileFilter {
+
+        @Override
+        public boolean accept(File file) {
+            String name = file.getName();
+            return name.length() == 36 + EXTENSION.length() + LEFTOVER_LENGTH
+                    && (name.endsWith(EXTENSION + ".tmp") || name.endsWith(EXTENSION + ".bak"))
+                    && LockDataLoader.isUUID(name.substring(0, 36))
+                    && file.isFile();
+        }
+    }
+
+    /**
+     * 分割フォルダ（16進数2文字）を選ぶフィルタ
+     */
+    private static class ShardFilter implements FileFilter {
+
+        @Override
+        public boolean accept(File file) {
+            String name = file.getName();
+            return name.length() == 2
+                    && Character.digit(name.charAt(0), 16) >= 0
+                    && Character.digit(name.charAt(1), 16) >= 0
+                    && file.isDirectory();
+        }
+    }
+}
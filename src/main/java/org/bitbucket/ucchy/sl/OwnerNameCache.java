@@ -0,0 +1,163 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * オーナープレイヤーのUUIDから名前を引くための、上限付きのキャッシュ。
+ * プレイヤーの参加・退出と、プレイヤーファイルに記録された名前で更新し、data/names.yml に保存する。
+ * プレイヤーファイルへ書き戻す必要がある、ロックデータのオーナーの名前は、上限を超えても追い出さずに保持する。
+ * Bukkit.getOfflinePlayer と違い、プロファイルの解決やディスクの読み込みを待つことが無い。
+ * ロックデータの読み込みスレッドからも使われるため、全てのメソッドは同期化されている。
+ * @author ucchy
+ */
+public class OwnerNameCache implements Listener {
+
+    private static final String FILE_NAME = "names.yml";
+
+    /** 保存先のファイル */
+    private File file;
+
+    /** UUIDと名前のマップ。最近使われた順に並ぶ */
+    private LinkedHashMap<UUID, String> names;
+
+    /** ロックデータのオーナーのUUIDと名前のマップ。上限で追い出さない */
+    private HashMap<UUID, String> owners;
+
+    /**
+     * コンストラクタ
+     * @param dataFolder データフォルダ
+     * @param maxSize 保持する名前の最大数
+     */
+    public OwnerNameCache(File dataFolder, final int maxSize) {
+        this.file = new File(dataFolder, FILE_NAME);
+        this.names = new LinkedHashMap<UUID, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.owners = new HashMap<UUID, String>();
+    }
+
+    /**
+     * 名前を返す
+     * @param uuid プレイヤーのUUID
+     * @return 名前、分からない場合はnull
+     */
+    public synchronized String getName(UUID uuid) {
+        String name = names.get(uuid);
+        if ( name == null ) {
+            name = owners.get(uuid);
+        }
+        return name;
+    }
+
+    /**
+     * ロックデータのオーナーの名前を返す。
+     * 見つかった名前は、プレイヤーファイルへ書き戻せるように、上限で追い出さずに保持する。
+     * @param uuid オーナーのUUID
+     * @return 名前、分からない場合はnull
+     */
+    public synchronized String getOwnerName(UUID uuid) {
+        String name = getName(uuid);
+        if ( name != null ) {
+            owners.put(uuid, name);
+        }
+        return name;
+    }
+
+    /**
+     * 名前を登録する
+     * @param uuid プレイヤーのUUID
+     * @param name 名前
+     */
+    public synchronized void put(UUID uuid, String name) {
+        if ( name == null ) return;
+        names.put(uuid, name);
+        if ( owners.containsKey(uuid) ) {
+            owners.put(uuid, name);
+        }
+    }
+
+    /**
+     * プレイヤーファイルに記録されていた、ロックデータのオーナーの名前を登録する。
+     * 古いかもしれない名前なので、既に新しい名前が分かっている場合は、そちらを使う。
+     * @param uuid オーナーのUUID
+     * @param name 名前
+     */
+    public synchronized void putOwner(UUID uuid, String name) {
+        if ( name == null ) return;
+        String current = names.get(uuid);
+        owners.put(uuid, current != null ? current : name);
+    }
+
+    /**
+     * ファイルから読み込む
+     */
+    public synchronized void load() {
+
+        if ( file.exists() ) {
+            YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+            for ( String key : config.getKeys(false) ) {
+                if ( LockDataLoader.isUUID(key) ) {
+                    names.put(UUID.fromString(key), config.getString(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * ファイルへ保存する
+     */
+    public void save() {
+
+        YamlConfiguration config = new YamlConfiguration();
+        synchronized (this) {
+            for ( Map.Entry<UUID, String> entry : new ArrayList<Map.Entry<UUID, String>>(names.entrySet()) ) {
+                config.set(entry.getKey().toString(), entry.getValue());
+            }
+        }
+        try {
+            config.save(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * プレイヤーがサーバーに参加した時に呼び出されるメソッド
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        put(event.getPlayer().getUniqueId(), event.getPlayer().getName());
+    }
+
+    /**
+     * プレイヤーがサーバーから退出した時に呼び出されるメソッド
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        put(event.getPlayer().getUniqueId(), event.getPlayer().getName());
+    }
+}
@@ -28,6 +28,8 @@ public class StandLock extends JavaPlugin {
     private static final String DATA_FOLDER = "data";
 
     private LockDataManager lockManager;
+    private ArmorStandCache standCache;
+    private OwnerNameCache nameCache;
     private StandLockConfig config;
     private StandLockCommand command;
 
@@ -47,13 +49,22 @@ public class StandLock extends JavaPlugin {
             return;
         }
 
-        // マネージャを生成し、データをロードする
-        lockManager = new LockDataManager(
-                new File(getDataFolder(), DATA_FOLDER));
-
         // コンフィグをロードする
         config = new StandLockConfig(this);
 
+        // オーナー名のキャッシュを作成する
+        File dataFolder = new File(getDataFolder(), DATA_FOLDER);
+        if ( !dataFolder.exists() ) {
+            dataFolder.mkdirs();
+        }
+        nameCache = new OwnerNameCache(dataFolder, config.getOwnerNameCacheSize());
+        nameCache.load();
+        getServer().getPluginManager().registerEvents(nameCache, this);
+
+        // マネージャを生成し、データをロードする
+        lockManager = new LockDataManager(dataFolder, config, nameCache);
+        lockManager.startSaveTask(this, config.getSaveInterval());
+
         // メッセージをロードする
         Messages.initialize(getFile(), getDataFolder());
         Messages.reload(config.getLang());
@@ -73,6 +84,14 @@ public class StandLock extends JavaPlugin {
         }
         */
 
+        // スタンドのキャッシュを作成し、リスナーとセルフチェックタスクを登録する
+        standCache = new ArmorStandCache();
+        standCache.rebuild(getServer().getWorlds());
+        getServer().getPluginManager().registerEvents(standCache, this);
+        if ( config.getStandCacheCheckInterval() > 0 ) {
+            standCache.startSelfCheckTask(this, config.getStandCacheCheckInterval());
+        }
+
         // リスナークラスを登録する
         getServer().getPluginManager().registerEvents(
                 new StandLockListener(this), this);
@@ -82,8 +101,26 @@ public class StandLock extends JavaPlugin {
 
         // クリーンアップタスクを登録する
         if ( config.getCleanupTaskDelay() >= 0 ) {
-            LockDataCleanupTask task = new LockDataCleanupTask();
-            task.runTaskLater(this, config.getCleanupTaskDelay() * 60 * 20);
+            LockDataCleanupTask task = new LockDataCleanupTask(
+                    config.getCleanupTaskInterval(), config.getCleanupTaskBudget(),
+                    config.isCleanupTaskFullSweep(), config.isCleanupTaskDryRun());
+            task.runTaskTimer(this, config.getCleanupTaskDelay() * 60 * 20, 1);
+        }
+    }
+
+    /**
+     * プラグインが無効化されたときに呼び出されるメソッド
+     * @see org.bukkit.plugin.java.JavaPlugin#onDisable()
+     */
+    @Override
+    public void onDisable() {
+
+        // 書き込み待ちのロックデータを保存する
+        if ( lockManager != null ) {
+            lockManager.shutdown(config.getSaveShutdownTimeout(), getLogger());
+        }
+        if ( nameCache != null ) {
+            nameCache.save();
         }
     }
 
@@ -111,6 +148,22 @@ public class StandLock extends JavaPlugin {
         return lockManager;
     }
 
+    /**
+     * オーナー名のキャッシュを返す
+     * @return オーナー名のキャッシュ
+     */
+    public OwnerNameCache getOwnerNameCache() {
+        return nameCache;
+    }
+
+    /**
+     * スタンドのキャッシュを返す
+     * @return スタンドのキャッシュ
+     */
+    public ArmorStandCache getArmorStandCache() {
+        return standCache;
+    }
+
     /**
      * コンフィグデータを返す
      * @return
@@ -1,7 +1,11 @@
 package org.bitbucket.ucchy.sl;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
@@ -9,6 +13,7 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabExecutor;
 import org.bukkit.entity.Player;
 import org.bukkit.metadata.FixedMetadataValue;
+import org.bukkit.scheduler.BukkitRunnable;
 
 /**
  * StandLockのコマンドクラス
@@ -16,6 +21,9 @@ import org.bukkit.metadata.FixedMetadataValue;
  */
 public class StandLockCommand implements TabExecutor {
 
+    private static final String DEFAULT_DUMP_FILE = "locks.dump";
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
     protected static final String META_INFO_COMMAND = "standlockinfo";
     protected static final String META_PRIVATE_COMMAND = "standlockprivate";
     protected static final String META_REMOVE_COMMAND = "standlockremove";
@@ -77,6 +85,10 @@ public class StandLockCommand implements TabExecutor {
             return doCleanup(sender, command, label, args);
         } else if ( args[0].equalsIgnoreCase("reload") ) {
             return doReload(sender, command, label, args);
+        } else if ( args[0].equalsIgnoreCase("export") ) {
+            return doExport(sender, command, label, args);
+        } else if ( args[0].equalsIgnoreCase("import") ) {
+            return doImport(sender, command, label, args);
         }
 
         return false;
@@ -93,7 +105,7 @@ public class StandLockCommand implements TabExecutor {
             if ( args.length == 1 ) {
                 String pre = args[0].toLowerCase();
                 ArrayList<String> kandidates = new ArrayList<String>();
-                for ( String com : new String[]{"info", "limits", "private", "remove", "reload"} ) {
+                for ( String com : new String[]{"info", "limits", "private", "remove", "reload", "export", "import"} ) {
                     if ( com.startsWith(pre) && sender.hasPermission(StandLock.PERMISSION_COMMAND + "." + com) ) {
                         kandidates.add(com);
                     }
@@ -321,7 +333,7 @@ public class StandLockCommand implements TabExecutor {
      * @param args 引数
      * @return コマンド実行が成功したかどうか（falseを返すとusageを表示する）
      */
-    private boolean doCleanup(CommandSender sender, Command command, String label, String[] args) {
+    private boolean doCleanup(final CommandSender sender, Command command, String label, String[] args) {
 
         if  ( !sender.hasPermission(StandLock.PERMISSION_COMMAND + ".cleanup") ) {
             sender.sendMessage(Messages.get("PermissionDeniedCommand"));
@@ -345,6 +357,27 @@ public class StandLockCommand implements TabExecutor {
             return true;
         }
 
+        // ドライランの場合は、削除せずにレポートファイルへ書き出す
+        if ( args.length >= 3 && args[2].equalsIgnoreCase("dryrun") ) {
+            final String world = worldName;
+            final CleanupReport report = new CleanupReport(parent.getDataFolder(),
+                    "StandLock cleanup " + worldName + " (dry run)", parent.getOwnerNameCache());
+            sender.sendMessage(Messages.getMessageWithKeywords("InformationCleanupReportStart",
+                    new String[]{"%file"}, new String[]{report.getFile().getName()}));
+
+            // カーソルはメインスレッドで作成し、読み出しと書き出しはレポートのスレッドで行う
+            report.addAll(lockManager.openCursor(), worldName);
+            report.close(new CleanupReport.Callback() {
+                public void done(int count) {
+                    sendMessageLater(sender, count < 0 ? Messages.get("DumpFailed")
+                            : Messages.getMessageWithKeywords("InformationCleanupReport",
+                                    new String[]{"%world", "%num", "%file"},
+                                    new String[]{world, count + "", report.getFile().getName()}));
+                }
+            });
+            return true;
+        }
+
         // データをクリーンアップする
         lockManager.cleanupWorldLockData(worldName);
         sender.sendMessage(Messages.getMessageWithKeywords("InformationCleanup",
@@ -360,21 +393,148 @@ public class StandLockCommand implements TabExecutor {
      * @param args 引数
      * @return コマンド実行が成功したかどうか（falseを返すとusageを表示する）
      */
-    private boolean doReload(CommandSender sender, Command command, String label, String[] args) {
+    private boolean doReload(final CommandSender sender, Command command, String label, String[] args) {
 
         if  ( !sender.hasPermission(StandLock.PERMISSION_COMMAND + ".reload") ) {
             sender.sendMessage(Messages.get("PermissionDeniedCommand"));
             return true;
         }
 
-        // データをリロードする
-        lockManager.reloadData();
+        // データをリロードする。ロックデータは別スレッドで読み込み、完了したら通知する。
         config.reloadConfig();
         Messages.reload(config.getLang());
-        sender.sendMessage(Messages.get("InformationReload"));
+        lockManager.reloadDataAsync(parent, new Runnable() {
+            public void run() {
+                sender.sendMessage(Messages.get("InformationReload"));
+            }
+        });
+        return true;
+    }
+
+    /**
+     * exportコマンドを実行する
+     * @param sender 実行者
+     * @param command コマンド
+     * @param label ラベル
+     * @param args 引数
+     * @return コマンド実行が成功したかどうか（falseを返すとusageを表示する）
+     */
+    private boolean doExport(final CommandSender sender, Command command, String label, String[] args) {
+
+        if  ( !sender.hasPermission(StandLock.PERMISSION_COMMAND + ".export") ) {
+            sender.sendMessage(Messages.get("PermissionDeniedCommand"));
+            return true;
+        }
+
+        final File file = getDumpFile(args);
+        sender.sendMessage(Messages.getMessageWithKeywords("InformationExportStart",
+                new String[]{"%file"}, new String[]{file.getName()}));
+
+        // カーソルはメインスレッドで作成し、読み出しと書き出しは別スレッドで行う
+        final Iterator<LockRecord> cursor = lockManager.openCursor();
+        new BukkitRunnable() {
+            public void run() {
+                int num = -1;
+                try {
+                    num = LockDataDump.export(cursor, file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                sendMessageLater(sender, num < 0 ? Messages.get("DumpFailed")
+                        : Messages.getMessageWithKeywords("InformationExport",
+                                new String[]{"%file", "%num"}, new String[]{file.getName(), num + ""}));
+            }
+        }.runTaskAsynchronously(parent);
+        return true;
+    }
+
+    /**
+     * importコマンドを実行する
+     * @param sender 実行者
+     * @param command コマンド
+     * @param label ラベル
+     * @param args 引数
+     * @return コマンド実行が成功したかどうか（falseを返すとusageを表示する）
+     */
+    private boolean doImport(final CommandSender sender, Command command, String label, String[] args) {
+
+        if  ( !sender.hasPermission(StandLock.PERMISSION_COMMAND + ".import") ) {
+            sender.sendMessage(Messages.get("PermissionDeniedCommand"));
+            return true;
+        }
+
+        final File file = getDumpFile(args);
+        if ( !file.exists() ) {
+            sender.sendMessage(Messages.get("DumpFileNotFound"));
+            return true;
+        }
+        sender.sendMessage(Messages.getMessageWithKeywords("InformationImportStart",
+                new String[]{"%file"}, new String[]{file.getName()}));
+
+        // ファイルは別スレッドで読み込み、一定数ずつメインスレッドで反映する
+        new BukkitRunnable() {
+            public void run() {
+                int num = 0;
+                LockDataDump.Reader reader = null;
+                try {
+                    reader = new LockDataDump.Reader(file);
+                    while ( true ) {
+                        final List<LockRecord> records = reader.read(IMPORT_BATCH_SIZE);
+                        if ( records.isEmpty() ) break;
+                        Bukkit.getScheduler().callSyncMethod(parent, new Callable<Void>() {
+                            public Void call() {
+                                lockManager.importRecords(records);
+                                return null;
+                            }
+                        }).get();
+                        num += records.size();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    num = -1;
+                } finally {
+                    if ( reader != null ) {
+                        try {
+                            reader.close();
+                        } catch (IOException e) {
+                            // do nothing.
+                        }
+                    }
+                }
+                sendMessageLater(sender, num < 0 ? Messages.get("DumpFailed")
+                        : Messages.getMessageWithKeywords("InformationImport",
+                                new String[]{"%file", "%num"}, new String[]{file.getName(), num + ""}));
+            }
+        }.runTaskAsynchronously(parent);
         return true;
     }
 
+    /**
+     * コマンドの引数から、ダンプファイルを取得する。ファイルはプラグインのフォルダに置く。
+     * @param args 引数
+     * @return ダンプファイル
+     */
+    private File getDumpFile(String[] args) {
+        String name = DEFAULT_DUMP_FILE;
+        if ( args.length >= 2 ) {
+            name = new File(args[1]).getName();
+        }
+        return new File(parent.getDataFolder(), name);
+    }
+
+    /**
+     * メインスレッドで、メッセージを送信する
+     * @param sender 送信先
+     * @param message メッセージ
+     */
+    private void sendMessageLater(final CommandSender sender, final String message) {
+        new BukkitRunnable() {
+            public void run() {
+                sender.sendMessage(message);
+            }
+        }.runTask(parent);
+    }
+
     /**
      * StandLockのメタデータを削除する
      * @param player
@@ -22,6 +22,18 @@ public class StandLockConfig {
     private boolean autoLock;
     private int cleanupTaskDelay;
     private boolean cleanupTaskLog;
+    private int cleanupTaskInterval;
+    private int cleanupTaskBudget;
+    private boolean verifyOnChunkLoad;
+    private boolean cleanupTaskFullSweep;
+    private boolean cleanupTaskDryRun;
+    private int standCacheCheckInterval;
+    private int saveInterval;
+    private int saveShutdownTimeout;
+    private String storageType;
+    private int journalCompactThreshold;
+    private boolean shardedDataFolder;
+    private int ownerNameCacheSize;
     private boolean cooperateWithArmorStandEditor;
 
     /**
@@ -58,6 +70,22 @@ public class StandLockConfig {
 
         cleanupTaskDelay = conf.getInt("cleanupTaskDelay", -1);
         cleanupTaskLog = conf.getBoolean("cleanupTaskLog", true);
+        cleanupTaskInterval = conf.getInt("cleanupTaskInterval", 0);
+        cleanupTaskBudget = conf.getInt("cleanupTaskBudget", 5);
+        verifyOnChunkLoad = conf.getBoolean("verifyOnChunkLoad", false);
+        cleanupTaskFullSweep = conf.getBoolean("cleanupTaskFullSweep", false);
+        cleanupTaskDryRun = conf.getBoolean("cleanupTaskDryRun", false);
+
+        standCacheCheckInterval = conf.getInt("standCacheCheckInterval", 60);
+
+        saveInterval = conf.getInt("saveInterval", 5);
+        saveShutdownTimeout = conf.getInt("saveShutdownTimeout", 30);
+
+        storageType = conf.getString("storageType", "yaml");
+        journalCompactThreshold = conf.getInt("journalCompactThreshold", 10000);
+        shardedDataFolder = conf.getBoolean("shardedDataFolder", false);
+
+        ownerNameCacheSize = conf.getInt("ownerNameCacheSize", 10000);
 
         cooperateWithArmorStandEditor =
                 conf.getBoolean("cooperateWithArmorStandEditor", true);
@@ -89,6 +117,90 @@ public class StandLockConfig {
         return cleanupTaskLog;
     }
 
+    /**
+     * @return cleanupTaskInterval
+     */
+    public int getCleanupTaskInterval() {
+        return cleanupTaskInterval;
+    }
+
+    /**
+     * @return cleanupTaskBudget
+     */
+    public int getCleanupTaskBudget() {
+        return cleanupTaskBudget;
+    }
+
+    /**
+     * @return verifyOnChunkLoad
+     */
+    public boolean isVerifyOnChunkLoad() {
+        return verifyOnChunkLoad;
+    }
+
+    /**
+     * @return cleanupTaskFullSweep
+     */
+    public boolean isCleanupTaskFullSweep() {
+        return cleanupTaskFullSweep;
+    }
+
+    /**
+     * @return cleanupTaskDryRun
+     */
+    public boolean isCleanupTaskDryRun() {
+        return cleanupTaskDryRun;
+    }
+
+    /**
+     * @return standCacheCheckInterval
+     */
+    public int getStandCacheCheckInterval() {
+        return standCacheCheckInterval;
+    }
+
+    /**
+     * @return saveInterval
+     */
+    public int getSaveInterval() {
+        return saveInterval;
+    }
+
+    /**
+     * @return saveShutdownTimeout
+     */
+    public int getSaveShutdownTimeout() {
+        return saveShutdownTimeout;
+    }
+
+    /**
+     * @return storageType
+     */
+    public String getStorageType() {
+        return storageType;
+    }
+
+    /**
+     * @return journalCompactThreshold
+     */
+    public int getJournalCompactThreshold() {
+        return journalCompactThreshold;
+    }
+
+    /**
+     * @return shardedDataFolder
+     */
+    public boolean isShardedDataFolder() {
+        return shardedDataFolder;
+    }
+
+    /**
+     * @return ownerNameCacheSize
+     */
+    public int getOwnerNameCacheSize() {
+        return ownerNameCacheSize;
+    }
+
     public boolean isCooperateWithArmorStandEditor() {
         return cooperateWithArmorStandEditor;
     }
@@ -7,10 +7,12 @@ package org.bitbucket.ucchy.sl;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
 import org.bukkit.entity.ArmorStand;
 import org.bukkit.entity.EntityType;
 import org.bukkit.entity.Player;
@@ -24,6 +26,10 @@ import org.bukkit.event.block.BlockPistonRetractEvent;
 import org.bukkit.event.entity.EntityDamageByEntityEvent;
 import org.bukkit.event.player.PlayerArmorStandManipulateEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.scheduler.BukkitRunnable;
 
@@ -35,6 +41,7 @@ public class StandLockListener implements Listener {
 
     private StandLock parent;
     private LockDataManager lockManager;
+    private ArmorStandCache standCache;
     private StandLockConfig config;
 
     private SimpleDateFormat format;
@@ -46,6 +53,7 @@ public class StandLockListener implements Listener {
     public StandLockListener(StandLock parent) {
         this.parent = parent;
         this.lockManager = parent.getLockDataManager();
+        this.standCache = parent.getArmorStandCache();
         this.config = parent.getStandLockConfig();
 
         this.format = new SimpleDateFormat(Messages.get("DateTimeFormat"));
@@ -77,7 +85,7 @@ public class StandLockListener implements Listener {
         // 同じLocationを持つスタンドが既にあるなら、イベントをキャンセルする。
         final Location location =
                 event.getClickedBlock().getRelative(event.getBlockFace()).getLocation();
-        if ( StandUtility.getArmorstandFromLocation(location) != null ) {
+        if ( standCache.hasArmorStand(location) ) {
             event.setCancelled(true);
             return;
         }
@@ -93,6 +101,7 @@ public class StandLockListener implements Listener {
                 if ( stand == null ) {
                     return;
                 }
+                standCache.put(stand);
 
                 // 権限がなければ、操作を禁止する
                 if ( !player.hasPermission(StandLock.PERMISSION_ENTITY + ".place") ) {
@@ -138,19 +147,14 @@ public class StandLockListener implements Listener {
 
         // ピストンが伸びた先にスタンドがあるなら、イベントをキャンセルする。
         Location extLoc = event.getBlock().getRelative(event.getDirection()).getLocation();
-        if (  StandUtility.getArmorstandFromLocation(extLoc) != null ) {
+        if ( standCache.hasArmorStand(extLoc) ) {
             event.setCancelled(true);
             return;
         }
 
-        // 動いたブロックのところにスタンドがあるなら、イベントをキャンセルする。
-        for ( Block block : event.getBlocks() ) {
-            Location location = block.getRelative(event.getDirection()).getLocation();
-            ArmorStand stand = StandUtility.getArmorstandFromLocation(location);
-            if ( stand != null && lockManager.getLockDataByArmorStand(stand) != null ) {
-                event.setCancelled(true);
-                return;
-            }
+        // 動いたブロックのところにロックされたスタンドがあるなら、イベントをキャンセルする。
+        if ( hasLockedArmorStand(event.getBlocks(), event.getDirection()) ) {
+            event.setCancelled(true);
         }
     }
 
@@ -161,17 +165,77 @@ public class StandLockListener implements Listener {
     @EventHandler
     public void onBlockPistonRetract(BlockPistonRetractEvent event) {
 
-        // 動いたブロックのところにスタンドがあるなら、イベントをキャンセルする。
-        for ( Block block : event.getBlocks() ) {
-            Location location = block.getRelative(event.getDirection()).getLocation();
-            ArmorStand stand = StandUtility.getArmorstandFromLocation(location);
-            if ( stand != null && lockManager.getLockDataByArmorStand(stand) != null ) {
-                event.setCancelled(true);
-                return;
+        // 動いたブロックのところにロックされたスタンドがあるなら、イベントをキャンセルする。
+        if ( hasLockedArmorStand(event.getBlocks(), event.getDirection()) ) {
+            event.setCancelled(true);
+        }
+    }
+
+    /**
+     * ピストンで動いたブロックの移動先に、ロックされたスタンドがあるかどうかを確認する
+     * @param blocks 動いたブロック
+     * @param direction 動いた方向
+     * @return ロックされたスタンドがあるかどうか
+     */
+    private boolean hasLockedArmorStand(List<Block> blocks, BlockFace direction) {
+
+        if ( blocks.isEmpty() ) return false;
+
+        long[] positions = new long[blocks.size()];
+        for ( int i=0; i<positions.length; i++ ) {
+            Block block = blocks.get(i);
+            positions[i] = BlockPosition.pack(block.getX() + direction.getModX(),
+                    block.getY() + direction.getModY(), block.getZ() + direction.getModZ());
+        }
+        return lockManager.hasLockedArmorStand(blocks.get(0).getWorld(), positions, standCache);
+    }
+
+    /**
+     * ワールドがロードされた時のイベント
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onWorldLoad(WorldLoadEvent event) {
+        lockManager.loadWorld(event.getWorld());
+    }
+
+    /**
+     * ワールドがアンロードされた時のイベント
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        lockManager.unloadWorld(event.getWorld().getName());
+    }
+
+    /**
+     * チャンクがロードされた時のイベント
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        lockManager.loadChunk(event.getChunk());
+
+        // ロードされたチャンクのロックデータを、実際のスタンドと照合する
+        if ( config.isVerifyOnChunkLoad() && !event.isNewChunk() ) {
+            for ( LockData data : lockManager.verifyChunk(event.getChunk(), standCache) ) {
+                if ( config.isCleanupTaskLog() ) {
+                    parent.getLogger().info("LockDataManager cleanup "
+                            + LockDataCleanupTask.getDescription(data) + ".");
+                }
             }
         }
     }
 
+    /**
+     * チャンクがアンロードされた時のイベント
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        lockManager.unloadChunk(event.getChunk());
+    }
+
     /**
      * プレイヤーがスタンドを操作した時のイベント
      * @param event
@@ -179,9 +243,15 @@ public class StandLockListener implements Listener {
     @EventHandler(priority=EventPriority.HIGHEST)
     public void onPlayerArmorStandManipulate(PlayerArmorStandManipulateEvent event) {
 
-        // ロックデータ取得
+        // ロックデータを読み込み中の場合は、ロックされているかどうか分からないので、操作をキャンセルする。
         ArmorStand stand = event.getRightClicked();
-        LockData ld = lockManager.getLockDataByArmorStand(stand);
+        if ( lockManager.isLockDataLoading(stand.getLocation()) ) {
+            event.setCancelled(true);
+            return;
+        }
+
+        // ロックデータ取得
+        LockData ld = trackArmorStand(stand);
 
         // ロック情報が無い場合は、権限を確認して、権限が無ければメッセージを表示して操作をキャンセルする。
         if ( ld == null && !event.getPlayer().hasPermission(StandLock.PERMISSION_ENTITY + ".interact") ) {
@@ -213,6 +283,15 @@ public class StandLockListener implements Listener {
 
         final ArmorStand stand = (ArmorStand)event.getEntity();
 
+        // ロックデータを読み込み中の場合は、ロックされているかどうか分からないので、操作をキャンセルする。
+        if ( lockManager.isLockDataLoading(stand.getLocation()) ) {
+            event.setCancelled(true);
+            if ( event.getDamager() instanceof Projectile ) {
+                event.getDamager().remove();
+            }
+            return;
+        }
+
         // 事前コマンドが実行されている場合の処理
         if ( event.getDamager() instanceof Player ) {
             Player damager = (Player)event.getDamager();
@@ -225,7 +304,7 @@ public class StandLockListener implements Listener {
         // ==== 以下、スタンドに対する攻撃の保護処理 ====
 
         // ロックデータ取得
-        LockData ld = lockManager.getLockDataByArmorStand(stand);
+        LockData ld = trackArmorStand(stand);
 
         // 攻撃者取得
         Player damager = null;
@@ -285,6 +364,16 @@ public class StandLockListener implements Listener {
         }.runTaskLater(StandLock.getInstance(), 1);
     }
 
+    /**
+     * スタンドのロックデータを取得し、スタンドの今の位置を、キャッシュとロックデータへ反映する
+     * @param stand スタンド
+     * @return ロックデータ
+     */
+    private LockData trackArmorStand(ArmorStand stand) {
+        standCache.put(stand);
+        return lockManager.trackArmorStand(stand);
+    }
+
     /**
      * 事前実行されたコマンドを処理する
      * @param player 実行したプレイヤー
@@ -300,17 +389,16 @@ public class StandLockListener implements Listener {
             }
 
             // ロックデータ取得
-            LockData ld = lockManager.getLockDataByArmorStand(stand);
+            LockData ld = trackArmorStand(stand);
 
             if ( ld == null ) {
                 player.sendMessage(Messages.get("ArmorStandUnlocked"));
                 return true;
             } else {
-                String owner;
-                if ( ld.getOwner() == null ) {
+                // 名前はキャッシュから引き、プロファイルの解決を待たない
+                String owner = parent.getOwnerNameCache().getName(ld.getOwnerUuid());
+                if ( owner == null ) {
                     owner = Messages.get("UnknownUUID");
-                } else {
-                    owner = ld.getOwner().getName();
                 }
                 player.sendMessage(Messages.getMessageWithKeywords(
                         "InformationOwner",
@@ -334,7 +422,7 @@ public class StandLockListener implements Listener {
             }
 
             // ロックデータ取得
-            LockData ld = lockManager.getLockDataByArmorStand(stand);
+            LockData ld = trackArmorStand(stand);
 
             if ( ld == null ) {
 
@@ -368,7 +456,7 @@ public class StandLockListener implements Listener {
             }
 
             // ロックデータ取得
-            LockData ld = lockManager.getLockDataByArmorStand(stand);
+            LockData ld = trackArmorStand(stand);
 
             if ( ld == null ) {
                 player.sendMessage(Messages.get("ArmorStandUnlocked"));
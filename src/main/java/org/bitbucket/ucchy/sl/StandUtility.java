@@ -5,9 +5,15 @@
  */
 package org.bitbucket.ucchy.sl;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.ArmorStand;
+import org.bukkit.entity.Entity;
 
 /**
  * スタンドを扱うユーティリティクラス
@@ -22,15 +28,61 @@ public class StandUtility {
      */
     public static ArmorStand getArmorstandFromLocation(Location location) {
 
+        // スタンドの位置は、そのブロックを含むチャンクにしか存在し得ないので、
+        // 該当チャンクのエンティティだけを調べる。
         World world = location.getWorld();
-        for ( ArmorStand stand : world.getEntitiesByClass(ArmorStand.class) ) {
-            if ( isSameLocation(location, stand.getLocation()) ) {
-                return stand;
+        int chunkX = location.getBlockX() >> 4;
+        int chunkZ = location.getBlockZ() >> 4;
+        if ( !world.isChunkLoaded(chunkX, chunkZ) ) {
+            return null;
+        }
+
+        Chunk chunk = world.getChunkAt(chunkX, chunkZ);
+        for ( Entity entity : chunk.getEntities() ) {
+            if ( entity instanceof ArmorStand
+                    && isSameLocation(location, entity.getLocation()) ) {
+                return (ArmorStand)entity;
             }
         }
         return null;
     }
 
+    /**
+     * 指定された複数のブロック位置にあるArmorStandを、まとめて取得する。
+     * 位置を含むチャンクごとに、エンティティを1回だけ調べる。
+     * @param world ワールド
+     * @param positions ブロック座標のlong値の配列
+     * @return ArmorStandのリスト
+     */
+    public static List<ArmorStand> getArmorstandsFromPositions(World world, long[] positions) {
+
+        HashSet<Long> targets = new HashSet<Long>();
+        HashSet<Long> chunks = new HashSet<Long>();
+        for ( long key : positions ) {
+            targets.add(key);
+            chunks.add(BlockPosition.toChunk(key));
+        }
+
+        ArrayList<ArmorStand> result = new ArrayList<ArmorStand>();
+        for ( long key : positions ) {
+
+            // 同じチャンクは1回だけ調べる
+            if ( !chunks.remove(BlockPosition.toChunk(key)) ) continue;
+
+            int chunkX = BlockPosition.getX(key) >> 4;
+            int chunkZ = BlockPosition.getZ(key) >> 4;
+            if ( !world.isChunkLoaded(chunkX, chunkZ) ) continue;
+
+            for ( Entity entity : world.getChunkAt(chunkX, chunkZ).getEntities() ) {
+                if ( entity instanceof ArmorStand
+                        && targets.contains(BlockPosition.pack(entity.getLocation())) ) {
+                    result.add((ArmorStand)entity);
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * 2つのLocationが同じブロックかどうかを確認する
      * @param loc1
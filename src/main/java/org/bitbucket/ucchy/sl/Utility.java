@@ -14,6 +14,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
@@ -118,6 +119,83 @@ public class Utility {
         }
     }
 
+    /**
+     * 書き終えた一時ファイルをディスクへ同期してから、ファイルを置き換える。
+     * 置き換えは上書きのリネームで行うため、POSIXでは途中で停止しても、古いファイルか新しいファイルのどちらかが残る。
+     * 上書きのリネームができない環境（Windows）では、古いファイルを &lt;ファイル名&gt;.bak へ退避してから置き換える。
+     * 途中で停止した場合は、{@link #recoverFile(File)} で元に戻す。
+     * @param temp 書き終えた一時ファイル
+     * @param file 置き換えるファイル
+     * @throws IOException
+     */
+    public static void replaceFile(File temp, File file) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+
+        if ( temp.renameTo(file) ) return;
+        if ( !file.exists() ) {
+            throw new IOException("Could not rename " + temp.getName() + ".");
+        }
+
+        File backup = new File(file.getParentFile(), file.getName() + ".bak");
+        if ( backup.exists() && !backup.delete() ) {
+            throw new IOException("Could not delete " + backup.getName() + ".");
+        }
+        if ( !file.renameTo(backup) ) {
+            throw new IOException("Could not rename " + file.getName() + ".");
+        }
+        if ( !temp.renameTo(file) ) {
+            backup.renameTo(file);
+            throw new IOException("Could not rename " + temp.getName() + ".");
+        }
+        backup.delete();
+    }
+
+    /**
+     * {@link #replaceFile(File, File)} の途中で停止した場合に残ったファイルを片付ける。
+     * 退避したファイルしか残っていない場合は元に戻し、一時ファイルは書き込み途中の可能性があるので削除する。
+     * @param file 置き換えていたファイル
+     * @return 退避したファイルを元に戻したかどうか
+     */
+    public static boolean recoverFile(File file) {
+
+        boolean recovered = false;
+        File backup = new File(file.getParentFile(), file.getName() + ".bak");
+        if ( backup.exists() ) {
+            if ( !file.exists() ) {
+                recovered = backup.renameTo(file);
+            } else {
+                backup.delete();
+            }
+        }
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        if ( temp.exists() ) {
+            temp.delete();
+        }
+        return recovered;
+    }
+
+    /**
+     * 壊れたファイルを、上書きされないように &lt;ファイル名&gt;.broken へ移動する。
+     * 既に同じ名前のファイルがある場合は、末尾に現在時刻を付ける。
+     * @param file 壊れたファイル
+     * @return 移動先のファイル、移動できなかった場合はnull
+     */
+    public static File quarantineFile(File file) {
+        File dest = new File(file.getParentFile(), file.getName() + ".broken");
+        if ( dest.exists() ) {
+            dest = new File(file.getParentFile(),
+                    file.getName() + ".broken-" + System.currentTimeMillis());
+        }
+        return file.renameTo(dest) ? dest : null;
+    }
+
     /**
      * 現在動作中のCraftBukkitが、v1.8 以上かどうかを確認する
      * @return v1.8以上ならtrue、そうでないならfalse
@@ -0,0 +1,124 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1つのワールドのロックデータを、チャンク単位とブロック単位で引けるようにしたインデックス
+ * @author ucchy
+ */
+public class WorldLockIndex {
+
+    /** ブロック座標をキーとしたマップ */
+    private LongObjectHashMap<LockData> blocks;
+
+    /** チャンク座標をキーとし、そのチャンク内のロックデータを値としたマップ */
+    private LongObjectHashMap<LongObjectHashMap<LockData>> chunks;
+
+    /**
+     * コンストラクタ
+     */
+    public WorldLockIndex() {
+        blocks = new LongObjectHashMap<LockData>();
+        chunks = new LongObjectHashMap<LongObjectHashMap<LockData>>();
+    }
+
+    /**
+     * 指定したブロック座標のロックデータを取得する
+     * @param key ブロック座標のlong値
+     * @return ロックデータ、無い場合はnull
+     */
+    public LockData get(long key) {
+        return blocks.get(key);
+    }
+
+    /**
+     * ロックデータを登録する
+     * @param key ブロック座標のlong値
+     * @param data ロックデータ
+     * @return 以前に登録されていたロックデータ、無かった場合はnull
+     */
+    public LockData put(long key, LockData data) {
+
+        long chunkKey = BlockPosition.toChunk(key);
+        LongObjectHashMap<LockData> chunk = chunks.get(chunkKey);
+        if ( chunk == null ) {
+            chunk = new LongObjectHashMap<LockData>();
+            chunks.put(chunkKey, chunk);
+        }
+        chunk.put(key, data);
+        return blocks.put(key, data);
+    }
+
+    /**
+     * ロックデータを削除する
+     * @param key ブロック座標のlong値
+     * @return 削除したロックデータ、無かった場合はnull
+     */
+    public LockData remove(long key) {
+
+        LockData data = blocks.remove(key);
+        if ( data == null ) return null;
+
+        long chunkKey = BlockPosition.toChunk(key);
+        LongObjectHashMap<LockData> chunk = chunks.get(chunkKey);
+        if ( chunk != null ) {
+            chunk.remove(key);
+            if ( chunk.isEmpty() ) {
+                chunks.remove(chunkKey);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 指定したチャンクにロックデータがあるかどうかを返す
+     * @param chunkX チャンクのX座標
+     * @param chunkZ チャンクのZ座標
+     * @return ロックデータがあるかどうか
+     */
+    public boolean hasChunk(int chunkX, int chunkZ) {
+        return chunks.containsKey(BlockPosition.packChunk(chunkX, chunkZ));
+    }
+
+    /**
+     * 指定したチャンクにあるロックデータを取得する
+     * @param chunkX チャンクのX座標
+     * @param chunkZ チャンクのZ座標
+     * @return ロックデータのリスト
+     */
+    public List<LockData> getChunk(int chunkX, int chunkZ) {
+        LongObjectHashMap<LockData> chunk = chunks.get(BlockPosition.packChunk(chunkX, chunkZ));
+        if ( chunk == null ) return new ArrayList<LockData>();
+        return chunk.values();
+    }
+
+    /**
+     * 全てのロックデータを取得する
+     * @return ロックデータのリスト
+     */
+    public List<LockData> values() {
+        return blocks.values();
+    }
+
+    /**
+     * ロックデータの個数を返す
+     * @return 個数
+     */
+    public int size() {
+        return blocks.size();
+    }
+
+    /**
+     * 空かどうかを返す
+     * @return 空かどうか
+     */
+    public boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+}
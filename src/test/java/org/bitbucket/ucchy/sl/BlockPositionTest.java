@@ -0,0 +1,68 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+/**
+ * BlockPosition のテスト
+ * @author ucchy
+ */
+public class BlockPositionTest {
+
+    /**
+     * 負の座標を含めて、変換した値から元の座標を取り出せること
+     */
+    @Test
+    public void testPackAndUnpack() {
+        assertRoundTrip(0, 0, 0);
+        assertRoundTrip(-1, -1, -1);
+        assertRoundTrip(-1, 64, 1);
+        assertRoundTrip(1, 64, -1);
+        assertRoundTrip(-30000000, 0, 30000000);
+        assertRoundTrip(30000000, 255, -30000000);
+        assertRoundTrip(-(1 << 25), -(1 << 11), -(1 << 25));
+        assertRoundTrip((1 << 25) - 1, (1 << 11) - 1, (1 << 25) - 1);
+    }
+
+    /**
+     * 符号だけが違う座標が、別の値に変換されること
+     */
+    @Test
+    public void testNegativeIsDistinct() {
+        assertFalse(BlockPosition.pack(1, 64, 1) == BlockPosition.pack(-1, 64, 1));
+        assertFalse(BlockPosition.pack(1, 64, 1) == BlockPosition.pack(1, 64, -1));
+        assertFalse(BlockPosition.pack(-1, 64, 0) == BlockPosition.pack(0, 64, -1));
+    }
+
+    /**
+     * 負の座標のブロックが、正しいチャンクに属すること
+     */
+    @Test
+    public void testToChunk() {
+        assertEquals(BlockPosition.packChunk(0, 0), BlockPosition.toChunk(BlockPosition.pack(15, 64, 0)));
+        assertEquals(BlockPosition.packChunk(-1, -1), BlockPosition.toChunk(BlockPosition.pack(-1, 64, -16)));
+        assertEquals(BlockPosition.packChunk(-2, 1), BlockPosition.toChunk(BlockPosition.pack(-17, 64, 16)));
+        assertEquals(BlockPosition.packChunk(-1875000, 1874999),
+                BlockPosition.toChunk(BlockPosition.pack(-30000000, 0, 29999999)));
+    }
+
+    /**
+     * 変換した値から、元の座標が取り出せることを確認する
+     * @param x X座標
+     * @param y Y座標
+     * @param z Z座標
+     */
+    private static void assertRoundTrip(int x, int y, int z) {
+        long key = BlockPosition.pack(x, y, z);
+        assertEquals(x, BlockPosition.getX(key));
+        assertEquals(y, BlockPosition.getY(key));
+        assertEquals(z, BlockPosition.getZ(key));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * CleanupReport のテスト
+ * @author ucchy
+ */
+public class CleanupReportTest {
+
+    private static final UUID OWNER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+
+    private File folder;
+    private OwnerNameCache names;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = TestUtility.createTempFolder();
+        names = new OwnerNameCache(folder, 10);
+        names.put(OWNER, "owner");
+    }
+
+    @After
+    public void tearDown() {
+        TestUtility.deleteFolder(folder);
+    }
+
+    /**
+     * 追加したロックデータと、カーソルのうち指定したワールドのものが、1行ずつ書き出されること
+     */
+    @Test
+    public void testWrite() throws Exception {
+
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        records.add(TestUtility.createRecord(OWNER, "world", 1, 64, 1));
+        records.add(TestUtility.createRecord(OWNER, "world_nether", 2, 64, 2));
+        records.add(TestUtility.createRecord(OWNER, "world", 3, 64, 3));
+
+        CleanupReport report = createReport();
+        report.add(TestUtility.createRecord(OWNER, "world", -5, 70, -5));
+        report.addAll(records.iterator(), "world");
+        assertEquals(3, close(report));
+
+        List<String> lines = readLines(report.getFile());
+        String date = new SimpleDateFormat("yyyy-MM-dd").format(new Date(1500000000000L));
+        assertEquals(6, lines.size());
+        assertEquals("# test", lines.get(0));
+        assertEquals("world,-5,70,-5," + OWNER + ",owner," + date, lines.get(2));
+        assertEquals("world,1,64,1," + OWNER + ",owner," + date, lines.get(3));
+        assertEquals("world,3,64,3," + OWNER + ",owner," + date, lines.get(4));
+        assertEquals("# total: 3", lines.get(5));
+    }
+
+    /**
+     * カーソルの読み出しに失敗した場合は、レポートの作成に失敗すること
+     */
+    @Test
+    public void testCursorFailure() throws Exception {
+
+        CleanupReport report = createReport();
+        report.addAll(new LockRecordCursor() {
+            protected List<LockRecord> nextBatch() throws Exception {
+                throw new IOException("Broken.");
+            }
+        }, "world");
+        assertEquals(-1, close(report));
+    }
+
+    /**
+     * レポートを作成する
+     * @return レポート
+     */
+    private CleanupReport createReport() {
+        return new CleanupReport(folder, "test", names, "yyyy-MM-dd");
+    }
+
+    /**
+     * レポートを閉じて、書き出しが終わるのを待つ
+     * @param report レポート
+     * @return 書き出したロックデータの数
+     * @throws InterruptedException
+     */
+    private static int close(CleanupReport report) throws InterruptedException {
+        final int[] result = new int[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        report.close(new CleanupReport.Callback() {
+            public void done(int count) {
+                result[0] = count;
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    /**
+     * ファイルを1行ずつ読み込む
+     * @param file ファイル
+     * @return 行
+     * @throws IOException
+     */
+    private static List<String> readLines(File file) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ( (line = reader.readLine()) != null ) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * LockDataDump の書き出しと読み込みのテスト
+ * @author ucchy
+ */
+public class LockDataDumpTest {
+
+    private static final UUID OWNER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = TestUtility.createTempFolder();
+    }
+
+    @After
+    public void tearDown() {
+        TestUtility.deleteFolder(folder);
+    }
+
+    /**
+     * 書き出したレコードが、同じ順番で、指定した数ずつ読み込めること
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        for ( int i=0; i<25; i++ ) {
+            LockRecord record = TestUtility.createRecord(OWNER, i % 2 == 0 ? "world" : "world_the_end",
+                    -i * 1000, i, i * 1000);
+            if ( i % 3 == 0 ) {
+                record.entity = new UUID(i, i);
+            }
+            records.add(record);
+        }
+
+        File file = new File(folder, "locks.dump");
+        assertEquals(25, LockDataDump.export(records.iterator(), file));
+        assertFalse(new File(folder, "locks.dump.tmp").exists());
+
+        ArrayList<LockRecord> loaded = new ArrayList<LockRecord>();
+        LockDataDump.Reader reader = new LockDataDump.Reader(file);
+        try {
+            List<LockRecord> batch;
+            while ( !(batch = reader.read(10)).isEmpty() ) {
+                assertTrue(batch.size() <= 10);
+                loaded.addAll(batch);
+            }
+        } finally {
+            reader.close();
+        }
+
+        assertEquals(records.size(), loaded.size());
+        for ( int i=0; i<records.size(); i++ ) {
+            TestUtility.assertRecordEquals(records.get(i), loaded.get(i));
+        }
+    }
+
+    /**
+     * レコードが無くても、書き出して読み込めること
+     */
+    @Test
+    public void testEmpty() throws IOException {
+
+        File file = new File(folder, "locks.dump");
+        assertEquals(0, LockDataDump.export(new ArrayList<LockRecord>().iterator(), file));
+
+        LockDataDump.Reader reader = new LockDataDump.Reader(file);
+        try {
+            assertTrue(reader.read(10).isEmpty());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * カーソルの読み出しに失敗した場合は、書き出しに失敗して、書き出し途中のファイルが残らないこと
+     */
+    @Test
+    public void testCursorFailure() throws IOException {
+
+        File file = new File(folder, "locks.dump");
+        assertEquals(1, LockDataDump.export(createCursor(1, false), file));
+        long length = file.length();
+
+        try {
+            LockDataDump.export(createCursor(3, true), file);
+            fail();
+        } catch (IOException e) {
+            // expected.
+        }
+        assertFalse(new File(folder, "locks.dump.tmp").exists());
+        assertEquals(length, file.length());
+    }
+
+    /**
+     * 形式の違うファイルは読み込まないこと
+     */
+    @Test
+    public void testUnknownFormat() throws IOException {
+
+        File file = new File(folder, "locks.dump");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 0, 0, 0, 0, 0, 0, 0, 1 });
+        } finally {
+            out.close();
+        }
+
+        try {
+            new LockDataDump.Reader(file);
+            fail();
+        } catch (IOException e) {
+            // expected.
+        }
+    }
+
+    /**
+     * 1件ずつのまとまりを返すカーソルを作成する
+     * @param count 返すレコードの数
+     * @param fail 返し終わった後に、読み出しに失敗するかどうか
+     * @return カーソル
+     */
+    private static Iterator<LockRecord> createCursor(final int count, final boolean fail) {
+        return new LockRecordCursor() {
+            private int index = 0;
+            protected List<LockRecord> nextBatch() throws Exception {
+                if ( index >= count ) {
+                    if ( fail ) throw new IOException("Broken.");
+                    return null;
+                }
+                ArrayList<LockRecord> batch = new ArrayList<LockRecord>();
+                batch.add(TestUtility.createRecord(OWNER, "world", index++, 64, 0));
+                return batch;
+            }
+        };
+    }
+}
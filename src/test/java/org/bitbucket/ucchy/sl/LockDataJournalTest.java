@@ -0,0 +1,173 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * LockDataJournal のスナップショットとジャーナルのテスト
+ * @author ucchy
+ */
+public class LockDataJournalTest {
+
+    private static final UUID OWNER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+    private static final UUID OTHER = UUID.fromString("00000000-0000-0000-0000-000000000002");
+
+    private File folder;
+    private Logger logger;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = TestUtility.createTempFolder();
+        logger = Logger.getAnonymousLogger();
+    }
+
+    @After
+    public void tearDown() {
+        TestUtility.deleteFolder(folder);
+    }
+
+    /**
+     * スナップショットへ書き出した内容を、そのまま読み込めること
+     */
+    @Test
+    public void testSnapshotRoundTrip() {
+
+        LockRecord first = TestUtility.createRecord(OWNER, "world", -10, 64, 20);
+        LockRecord second = TestUtility.createRecord(OTHER, "world_nether", 5, 70, -5);
+        second.entity = UUID.fromString("00000000-0000-0000-0000-0000000000ff");
+
+        LockDataJournal journal = createJournal();
+        journal.add(first);
+        journal.add(second);
+        journal.shutdown(10, logger);
+
+        LockDataJournal loaded = createJournal();
+        assertRecords(loaded, "world", first);
+        assertRecords(loaded, "world_nether", second);
+        assertEquals(1, loaded.getCount(OWNER));
+        assertEquals(1, loaded.getCount(OTHER));
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * コンパクションせずに停止しても、ジャーナルから追加・更新・削除が復元されること
+     */
+    @Test
+    public void testJournalRoundTrip() {
+
+        LockRecord first = TestUtility.createRecord(OWNER, "world", -10, 64, 20);
+        LockRecord second = TestUtility.createRecord(OWNER, "world", 5, 70, -5);
+        LockRecord updated = TestUtility.createRecord(OTHER, "world", -10, 64, 20);
+
+        LockDataJournal journal = createJournal();
+        journal.add(first);
+        journal.add(second);
+        journal.update(updated);
+        journal.remove(second);
+        journal.waitForIdle();
+
+        // 停止時のコンパクションを経由せずに、別のインスタンスで読み込む
+        LockDataJournal loaded = createJournal();
+        assertRecords(loaded, "world", updated);
+        assertEquals(0, loaded.getCount(OWNER));
+        assertEquals(1, loaded.getCount(OTHER));
+
+        loaded.shutdown(10, logger);
+        journal.shutdown(10, logger);
+    }
+
+    /**
+     * ジャーナルの最後のレコードが途中で切れていても、それより前の内容が読み込めること
+     */
+    @Test
+    public void testTruncatedJournal() throws IOException {
+
+        LockRecord first = TestUtility.createRecord(OWNER, "world", -10, 64, 20);
+
+        LockDataJournal journal = createJournal();
+        journal.add(first);
+        journal.shutdown(10, logger);
+
+        // 追記の途中で停止したように、不完全なレコードを追記する
+        DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(new File(folder, "locks.journal"), true));
+        try {
+            out.writeByte(1);
+            out.writeLong(OWNER.getMostSignificantBits());
+        } finally {
+            out.close();
+        }
+
+        LockDataJournal loaded = createJournal();
+        assertRecords(loaded, "world", first);
+        loaded.shutdown(10, logger);
+
+        // 作り直したファイルから、もう一度読み込めること
+        LockDataJournal reloaded = createJournal();
+        assertRecords(reloaded, "world", first);
+        reloaded.shutdown(10, logger);
+    }
+
+    /**
+     * 壊れたスナップショットは別名で残されること
+     */
+    @Test
+    public void testBrokenSnapshotIsQuarantined() throws IOException {
+
+        LockDataJournal journal = createJournal();
+        journal.add(TestUtility.createRecord(OWNER, "world", 1, 2, 3));
+        journal.shutdown(10, logger);
+
+        FileOutputStream out = new FileOutputStream(new File(folder, "locks.dat"));
+        try {
+            out.write(new byte[] { 1, 2, 3, 4 });
+        } finally {
+            out.close();
+        }
+
+        LockDataJournal loaded = createJournal();
+        assertEquals(0, loaded.loadWorld("world").size());
+        loaded.shutdown(10, logger);
+
+        assertTrue(new File(folder, "locks.dat.broken").exists());
+    }
+
+    /**
+     * ジャーナルを作成して読み込む
+     * @return ジャーナル
+     */
+    private LockDataJournal createJournal() {
+        LockDataJournal journal = new LockDataJournal(folder, 1000);
+        journal.load(logger);
+        return journal;
+    }
+
+    /**
+     * ワールドのレコードが、期待するものだけであることを確認する
+     * @param journal ジャーナル
+     * @param world ワールド名
+     * @param expected 期待するレコード
+     */
+    private static void assertRecords(LockDataJournal journal, String world, LockRecord expected) {
+        List<LockRecord> records = journal.loadWorld(world);
+        assertEquals(1, records.size());
+        TestUtility.assertRecordEquals(expected, records.get(0));
+    }
+}
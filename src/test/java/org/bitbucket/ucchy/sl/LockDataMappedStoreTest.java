@@ -0,0 +1,183 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * LockDataMappedStore のテスト
+ * @author ucchy
+ */
+public class LockDataMappedStoreTest {
+
+    private static final UUID OWNER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+    private static final UUID OTHER = UUID.fromString("00000000-0000-0000-0000-000000000002");
+
+    /** ヘッダーの長さ */
+    private static final int HEADER_SIZE = 32;
+
+    private File folder;
+    private Logger logger;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = TestUtility.createTempFolder();
+        logger = Logger.getAnonymousLogger();
+    }
+
+    @After
+    public void tearDown() {
+        TestUtility.deleteFolder(folder);
+    }
+
+    /**
+     * 書き込んだレコードを、次回の起動時にチャンク単位で読み込めること
+     */
+    @Test
+    public void testRoundTrip() {
+
+        LockRecord first = TestUtility.createRecord(OWNER, "world", -10, 64, 20);
+        LockRecord second = TestUtility.createRecord(OTHER, "world_nether", 5, 70, -5);
+        second.entity = UUID.fromString("00000000-0000-0000-0000-0000000000ff");
+
+        LockDataMappedStore store = createStore();
+        store.add(first);
+        store.add(second);
+        store.add(TestUtility.createRecord(OWNER, "world", 100, 64, 100));
+        store.remove(TestUtility.createRecord(OWNER, "world", 100, 64, 100));
+        store.shutdown(10, logger);
+
+        LockDataMappedStore loaded = createStore();
+        assertEquals(1, loaded.getCount(OWNER));
+        assertEquals(1, loaded.getCount(OTHER));
+        assertRecords(loaded.loadChunk("world", -1, 1), first);
+        assertRecords(loaded.loadChunk("world_nether", 0, -1), second);
+        assertEquals(2, readAll(loaded.openCursor()).size());
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * 初期容量を超えて追加しても、全てのレコードが残ること
+     */
+    @Test
+    public void testGrow() {
+
+        LockDataMappedStore store = createStore();
+        for ( int i=0; i<3000; i++ ) {
+            store.add(TestUtility.createRecord(OWNER, "world", i, 64, 0));
+        }
+        assertEquals(3000, store.getCount(OWNER));
+        store.shutdown(10, logger);
+
+        LockDataMappedStore loaded = createStore();
+        assertEquals(3000, loaded.getCount(OWNER));
+        assertEquals(3000, readAll(loaded.openCursor()).size());
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * チェックサムの合わないレコードは読み飛ばされるが、破棄されずに、ロックし直すと上書きされること
+     */
+    @Test
+    public void testBrokenRecordIsKept() throws IOException {
+
+        LockRecord record = TestUtility.createRecord(OWNER, "world", 1, 64, 1);
+        LockDataMappedStore store = createStore();
+        store.add(record);
+        store.shutdown(10, logger);
+
+        // 最初のレコードの、ロックした日時を書き換える
+        RandomAccessFile raf = new RandomAccessFile(new File(folder, "locks.idx"), "rw");
+        try {
+            raf.seek(HEADER_SIZE + 32);
+            raf.writeLong(0);
+        } finally {
+            raf.close();
+        }
+
+        LockDataMappedStore loaded = createStore();
+        assertTrue(loaded.loadChunk("world", 0, 0).isEmpty());
+        assertEquals(1, loaded.getCount(OWNER));
+
+        loaded.update(record);
+        assertEquals(1, loaded.getCount(OWNER));
+        loaded.unloadChunk("world", 0, 0);
+        assertRecords(loaded.loadChunk("world", 0, 0), record);
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * ヘッダーが壊れたインデックスファイルは別名で残され、チェックサムの合うレコードが移されること
+     */
+    @Test
+    public void testBrokenHeaderIsQuarantined() throws IOException {
+
+        LockRecord record = TestUtility.createRecord(OWNER, "world", 1, 64, 1);
+        LockDataMappedStore store = createStore();
+        store.add(record);
+        store.shutdown(10, logger);
+
+        RandomAccessFile raf = new RandomAccessFile(new File(folder, "locks.idx"), "rw");
+        try {
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+
+        LockDataMappedStore loaded = createStore();
+        assertTrue(new File(folder, "locks.idx.broken").exists());
+        assertEquals(1, loaded.getCount(OWNER));
+        assertRecords(loaded.loadChunk("world", 0, 0), record);
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * ストアを作成して読み込む
+     * @return ストア
+     */
+    private LockDataMappedStore createStore() {
+        LockDataMappedStore store = new LockDataMappedStore(folder, null);
+        store.load(logger);
+        return store;
+    }
+
+    /**
+     * レコードが、期待するものだけであることを確認する
+     * @param records レコード
+     * @param expected 期待するレコード
+     */
+    private static void assertRecords(List<LockRecord> records, LockRecord expected) {
+        assertEquals(1, records.size());
+        TestUtility.assertRecordEquals(expected, records.get(0));
+    }
+
+    /**
+     * カーソルから全てのレコードを読み出す
+     * @param cursor カーソル
+     * @return レコード
+     */
+    private static List<LockRecord> readAll(Iterator<LockRecord> cursor) {
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        while ( cursor.hasNext() ) {
+            records.add(cursor.next());
+        }
+        return records;
+    }
+}
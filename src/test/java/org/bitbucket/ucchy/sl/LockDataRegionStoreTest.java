@@ -0,0 +1,147 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * LockDataRegionStore のテスト
+ * @author ucchy
+ */
+public class LockDataRegionStoreTest {
+
+    private static final UUID OWNER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+
+    private File folder;
+    private Logger logger;
+    private LockStore.ChunkCallback callback;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = TestUtility.createTempFolder();
+        logger = Logger.getAnonymousLogger();
+        callback = new LockStore.ChunkCallback() {
+            public void loaded(String world, List<LockRecord> records) {
+                // do nothing.
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        TestUtility.deleteFolder(folder);
+    }
+
+    /**
+     * 書き出したリージョンとサマリーを、次回の起動時に読み込めること
+     */
+    @Test
+    public void testRoundTrip() {
+
+        LockDataRegionStore store = createStore();
+        store.add(TestUtility.createRecord(OWNER, "world", -10, 64, 20));
+        store.add(TestUtility.createRecord(OWNER, "world", 1000, 70, -1000));
+        store.add(TestUtility.createRecord(OWNER, "world_nether", 5, 30, 5));
+        store.shutdown(10, logger);
+
+        LockDataRegionStore loaded = createStore();
+        assertEquals(3, loaded.getCount(OWNER));
+        assertEquals(2, loaded.getWorldCount("world"));
+        assertEquals(3, readAll(loaded.openCursor()).size());
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * リージョンを読み込んでいる間は、そのチャンクが読み込み中になること
+     */
+    @Test
+    public void testChunkLoading() {
+
+        LockDataRegionStore store = createStore();
+        store.add(TestUtility.createRecord(OWNER, "world", 1, 64, 1));
+        store.shutdown(10, logger);
+
+        LockDataRegionStore loaded = createStore();
+        assertFalse(loaded.isChunkLoading("world", 0, 0));
+        assertTrue(loaded.loadChunk("world", 0, 0).isEmpty());
+        assertTrue(loaded.isChunkLoading("world", 0, 0));
+        assertTrue(loaded.isChunkLoading("world", 31, 31));
+        assertFalse(loaded.isChunkLoading("world", 32, 0));
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * 壊れたリージョンファイルは別名で残され、読めた分だけが書き直されること
+     */
+    @Test
+    public void testBrokenRegionIsQuarantined() throws IOException {
+
+        LockDataRegionStore store = createStore();
+        store.add(TestUtility.createRecord(OWNER, "world", 1, 64, 1));
+        store.add(TestUtility.createRecord(OWNER, "world", 5, 64, 5));
+        store.shutdown(10, logger);
+
+        // 最後のレコードの途中で切れたように、末尾を切り詰める
+        File file = new File(folder, "regions/world/r.0.0.dat");
+        assertTrue(file.exists());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        // チャンクのロードで読み込み、停止時に読めた分を書き出す
+        LockDataRegionStore loaded = createStore();
+        loaded.loadChunk("world", 0, 0);
+        loaded.shutdown(10, logger);
+
+        assertTrue(new File(folder, "regions/world/r.0.0.dat.broken").exists());
+        assertTrue(file.exists());
+
+        LockDataRegionStore reloaded = createStore();
+        assertEquals(1, readAll(reloaded.openCursor()).size());
+        reloaded.shutdown(10, logger);
+    }
+
+    /**
+     * ストアを作成して読み込む
+     * @return ストア
+     */
+    private LockDataRegionStore createStore() {
+        LockDataRegionStore store = new LockDataRegionStore(folder, null, callback);
+        store.load(logger);
+        return store;
+    }
+
+    /**
+     * カーソルから全てのレコードを読み出す
+     * @param cursor カーソル
+     * @return レコード
+     */
+    private static List<LockRecord> readAll(Iterator<LockRecord> cursor) {
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        while ( cursor.hasNext() ) {
+            records.add(cursor.next());
+        }
+        return records;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * LockDataSnapshot のテスト
+ * @author ucchy
+ */
+public class LockDataSnapshotTest {
+
+    private static final UUID OWNER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+    private static final UUID OTHER = UUID.fromString("00000000-0000-0000-0000-000000000002");
+
+    private File folder;
+    private Logger logger;
+    private OwnerFileLayout layout;
+    private OwnerNameCache names;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = TestUtility.createTempFolder();
+        logger = Logger.getAnonymousLogger();
+        layout = new OwnerFileLayout(folder, false);
+        names = new OwnerNameCache(folder, 10);
+    }
+
+    @After
+    public void tearDown() {
+        TestUtility.deleteFolder(folder);
+    }
+
+    /**
+     * 書き出したスナップショットを読み込めて、読み込んだファイルは削除されること
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+
+        LockRecord first = TestUtility.createRecord(OWNER, "world", -10, 64, 20);
+        LockRecord second = TestUtility.createRecord(OWNER, "world", 5, 70, -5);
+        second.entity = UUID.fromString("00000000-0000-0000-0000-0000000000ff");
+        HashMap<UUID, List<LockRecord>> owners = new HashMap<UUID, List<LockRecord>>();
+        owners.put(OWNER, records(first, second));
+        names.put(OWNER, "owner");
+        writeFile(layout.getFile(OWNER), "name: owner\n");
+
+        LockDataSnapshot.write(layout, owners, names);
+        assertTrue(new File(folder, "index.snapshot").exists());
+
+        LockDataSnapshot snapshot = LockDataSnapshot.read(folder, logger);
+        assertFalse(new File(folder, "index.snapshot").exists());
+        assertTrue(snapshot.matches(layout.getFile(OWNER), OWNER));
+        assertEquals("owner", snapshot.getName(OWNER));
+        List<LockRecord> records = snapshot.getRecords(OWNER);
+        assertEquals(2, records.size());
+        TestUtility.assertRecordEquals(first, records.get(0));
+        TestUtility.assertRecordEquals(second, records.get(1));
+
+        // 一度読み込んだら、次の起動では使われない
+        assertNull(LockDataSnapshot.read(folder, logger));
+    }
+
+    /**
+     * 書き出した後で変更されたプレイヤーファイルや、ファイルの無いオーナーは一致しないこと
+     */
+    @Test
+    public void testModifiedFileDoesNotMatch() throws IOException {
+
+        HashMap<UUID, List<LockRecord>> owners = new HashMap<UUID, List<LockRecord>>();
+        owners.put(OWNER, records(TestUtility.createRecord(OWNER, "world", 1, 2, 3)));
+        owners.put(OTHER, records(TestUtility.createRecord(OTHER, "world", 4, 5, 6)));
+        writeFile(layout.getFile(OWNER), "name: owner\n");
+
+        LockDataSnapshot.write(layout, owners, names);
+        writeFile(layout.getFile(OWNER), "name: owner\nworld,1,2,3: 1500000000001\n");
+
+        LockDataSnapshot snapshot = LockDataSnapshot.read(folder, logger);
+        assertFalse(snapshot.matches(layout.getFile(OWNER), OWNER));
+        assertFalse(snapshot.matches(layout.getFile(OTHER), OTHER));
+        assertTrue(snapshot.getRecords(OTHER).isEmpty());
+    }
+
+    /**
+     * 壊れたスナップショットは無視されて、削除されること
+     */
+    @Test
+    public void testBrokenSnapshotIsIgnored() throws IOException {
+
+        writeFile(new File(folder, "index.snapshot"), "broken");
+        assertNull(LockDataSnapshot.read(folder, logger));
+        assertFalse(new File(folder, "index.snapshot").exists());
+    }
+
+    /**
+     * レコードのリストを作成する
+     * @param records レコード
+     * @return リスト
+     */
+    private static List<LockRecord> records(LockRecord... records) {
+        ArrayList<LockRecord> list = new ArrayList<LockRecord>();
+        for ( LockRecord record : records ) {
+            list.add(record);
+        }
+        return list;
+    }
+
+    /**
+     * ファイルに文字列を書き込む
+     * @param file ファイル
+     * @param content 内容
+     * @throws IOException
+     */
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
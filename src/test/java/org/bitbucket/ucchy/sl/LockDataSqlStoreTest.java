@@ -0,0 +1,137 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * LockDataSqlStore のテスト
+ * @author ucchy
+ */
+public class LockDataSqlStoreTest {
+
+    private static final UUID OWNER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+    private static final UUID OTHER = UUID.fromString("00000000-0000-0000-0000-000000000002");
+
+    private File folder;
+    private Logger logger;
+    private LockStore.ChunkCallback callback;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(hasDriver());
+        folder = TestUtility.createTempFolder();
+        logger = Logger.getAnonymousLogger();
+        callback = new LockStore.ChunkCallback() {
+            public void loaded(String world, List<LockRecord> records) {
+                // do nothing.
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        TestUtility.deleteFolder(folder);
+    }
+
+    /**
+     * 書き込んだ変更を、次回の起動時に読み込めること
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        LockRecord first = TestUtility.createRecord(OWNER, "world", -10, 64, 20);
+        LockRecord second = TestUtility.createRecord(OWNER, "world", 5, 70, -5);
+        LockRecord updated = TestUtility.createRecord(OTHER, "world", -10, 64, 20);
+
+        LockDataSqlStore store = createStore();
+        store.add(first);
+        store.add(second);
+        store.update(updated);
+        store.remove(second);
+        store.shutdown(10, logger);
+
+        LockDataSqlStore loaded = createStore();
+        assertEquals(0, loaded.getCount(OWNER));
+        assertEquals(1, loaded.getCount(OTHER));
+        List<LockRecord> records = loaded.loadWorld("world");
+        assertEquals(1, records.size());
+        TestUtility.assertRecordEquals(updated, records.get(0));
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * 取り込みで置き換えられたレコードの分が、ロック数から引かれること
+     */
+    @Test
+    public void testImportReplaces() throws Exception {
+
+        LockDataSqlStore store = createStore();
+        store.add(TestUtility.createRecord(OWNER, "world", 1, 64, 1));
+
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        records.add(TestUtility.createRecord(OTHER, "world", 1, 64, 1));
+        records.add(TestUtility.createRecord(OTHER, "world", 2, 64, 2));
+        store.importRecords(records);
+
+        // 書き込みスレッドの処理が終わるのを待つ
+        assertEquals(2, store.loadWorld("world").size());
+        assertEquals(0, store.getCount(OWNER));
+        assertEquals(2, store.getCount(OTHER));
+        assertEquals(2, store.getWorldCount("world"));
+        store.shutdown(10, logger);
+    }
+
+    /**
+     * その場で読み込む場合は、読み込み中のチャンクが無いこと
+     */
+    @Test
+    public void testLoadWorldWithoutPlugin() throws Exception {
+
+        LockDataSqlStore store = createStore();
+        store.add(TestUtility.createRecord(OWNER, "world", 1, 64, 1));
+        assertEquals(1, store.loadWorld("world").size());
+        assertFalse(store.isChunkLoading("world", 0, 0));
+        store.shutdown(10, logger);
+    }
+
+    /**
+     * ストアを作成して読み込む
+     * @return ストア
+     * @throws Exception
+     */
+    private LockDataSqlStore createStore() throws Exception {
+        LockDataSqlStore store = new LockDataSqlStore(folder, null, callback);
+        store.load(logger);
+        return store;
+    }
+
+    /**
+     * SQLiteのドライバが使えるかどうか
+     * @return 使えるかどうか
+     */
+    private static boolean hasDriver() {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * LockDataWorldStore のテスト
+ * @author ucchy
+ */
+public class LockDataWorldStoreTest {
+
+    private static final UUID OWNER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+    private static final UUID OTHER = UUID.fromString("00000000-0000-0000-0000-000000000002");
+
+    private File folder;
+    private Logger logger;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = TestUtility.createTempFolder();
+        logger = Logger.getAnonymousLogger();
+    }
+
+    @After
+    public void tearDown() {
+        TestUtility.deleteFolder(folder);
+    }
+
+    /**
+     * 書き出したワールドのファイルとロック数を、次回の起動時に読み込めること
+     */
+    @Test
+    public void testRoundTrip() {
+
+        LockRecord first = TestUtility.createRecord(OWNER, "world", -10, 64, 20);
+        LockRecord second = TestUtility.createRecord(OTHER, "world_nether", 5, 70, -5);
+        second.entity = UUID.fromString("00000000-0000-0000-0000-0000000000ff");
+
+        LockDataWorldStore store = createStore();
+        store.add(first);
+        store.add(second);
+        store.add(TestUtility.createRecord(OWNER, "world", 100, 64, 100));
+        store.remove(TestUtility.createRecord(OWNER, "world", 100, 64, 100));
+        store.shutdown(10, logger);
+
+        LockDataWorldStore loaded = createStore();
+        assertEquals(1, loaded.getCount(OWNER));
+        assertEquals(1, loaded.getCount(OTHER));
+        assertRecords(loaded.loadWorld("world"), first);
+        assertRecords(loaded.loadWorld("world_nether"), second);
+        assertEquals(2, readAll(loaded.openCursor()).size());
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * ワールドを削除すると、そのワールドのファイルとロック数だけが無くなること
+     */
+    @Test
+    public void testDeleteWorld() {
+
+        LockDataWorldStore store = createStore();
+        store.add(TestUtility.createRecord(OWNER, "world", 1, 64, 1));
+        store.add(TestUtility.createRecord(OWNER, "world_nether", 1, 64, 1));
+        store.flush();
+        store.deleteWorld("world");
+        assertEquals(1, store.getCount(OWNER));
+        assertEquals(0, store.getWorldCount("world"));
+        store.shutdown(10, logger);
+
+        assertFalse(new File(folder, "worlds/world.dat").exists());
+        LockDataWorldStore loaded = createStore();
+        assertTrue(loaded.loadWorld("world").isEmpty());
+        assertEquals(1, loaded.getCount(OWNER));
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * ロック数のファイルが無い場合は、ワールドのファイルから数え直すこと
+     */
+    @Test
+    public void testRebuildCounts() {
+
+        LockDataWorldStore store = createStore();
+        store.add(TestUtility.createRecord(OWNER, "world", 1, 64, 1));
+        store.add(TestUtility.createRecord(OTHER, "world", 2, 64, 2));
+        store.shutdown(10, logger);
+
+        assertTrue(new File(folder, "worlds/counts.dat").delete());
+        LockDataWorldStore loaded = createStore();
+        assertEquals(1, loaded.getCount(OWNER));
+        assertEquals(1, loaded.getCount(OTHER));
+        assertEquals(2, loaded.getWorldCount("world"));
+        loaded.shutdown(10, logger);
+    }
+
+    /**
+     * 壊れたワールドのファイルは別名で残され、読めた分だけが書き直されること
+     */
+    @Test
+    public void testBrokenWorldIsQuarantined() throws IOException {
+
+        LockDataWorldStore store = createStore();
+        store.add(TestUtility.createRecord(OWNER, "world", 1, 64, 1));
+        store.add(TestUtility.createRecord(OWNER, "world", 5, 64, 5));
+        store.shutdown(10, logger);
+
+        // 最後のレコードの途中で切れたように、末尾を切り詰める
+        File file = new File(folder, "worlds/world.dat");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        LockDataWorldStore loaded = createStore();
+        assertEquals(1, loaded.loadWorld("world").size());
+        loaded.shutdown(10, logger);
+
+        assertTrue(new File(folder, "worlds/world.dat.broken").exists());
+        assertTrue(file.exists());
+
+        LockDataWorldStore reloaded = createStore();
+        assertEquals(1, reloaded.loadWorld("world").size());
+        reloaded.shutdown(10, logger);
+    }
+
+    /**
+     * ストアを作成して読み込む
+     * @return ストア
+     */
+    private LockDataWorldStore createStore() {
+        LockDataWorldStore store = new LockDataWorldStore(folder);
+        store.load(logger);
+        return store;
+    }
+
+    /**
+     * レコードが、期待するものだけであることを確認する
+     * @param records レコード
+     * @param expected 期待するレコード
+     */
+    private static void assertRecords(List<LockRecord> records, LockRecord expected) {
+        assertEquals(1, records.size());
+        TestUtility.assertRecordEquals(expected, records.get(0));
+    }
+
+    /**
+     * カーソルから全てのレコードを読み出す
+     * @param cursor カーソル
+     * @return レコード
+     */
+    private static List<LockRecord> readAll(Iterator<LockRecord> cursor) {
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        while ( cursor.hasNext() ) {
+            records.add(cursor.next());
+        }
+        return records;
+    }
+}
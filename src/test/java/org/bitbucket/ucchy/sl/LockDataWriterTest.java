@@ -0,0 +1,167 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * LockDataWriter の先行書き込みログのテスト
+ * @author ucchy
+ */
+public class LockDataWriterTest {
+
+    private static final UUID OWNER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+
+    private File folder;
+    private Logger logger;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = TestUtility.createTempFolder();
+        logger = Logger.getAnonymousLogger();
+    }
+
+    @After
+    public void tearDown() {
+        TestUtility.deleteFolder(folder);
+    }
+
+    /**
+     * 追記したログが、書き込みスレッドを終了しなくても復元できること
+     */
+    @Test
+    public void testReplayWithoutShutdown() {
+
+        LockRecord first = TestUtility.createRecord(OWNER, "world", -10, 64, 20);
+        LockRecord second = TestUtility.createRecord(OWNER, "world", 5, 70, -5);
+
+        LockDataWriter writer = new LockDataWriter(new OwnerFileLayout(folder, false));
+        writer.logAdd(first);
+        writer.logAdd(second);
+
+        LockDataYamlStore store = createStore();
+        assertEquals(2, new LockDataWriter(new OwnerFileLayout(folder, false)).replay(store, logger));
+
+        List<LockRecord> records = store.loadWorld("world");
+        assertEquals(2, records.size());
+        assertEquals(2, store.getCount(OWNER));
+
+        writer.shutdown(10, logger);
+    }
+
+    /**
+     * 最後のレコードが途中で切れているログから、それより前の変更だけが復元されること
+     */
+    @Test
+    public void testReplayTruncatedTail() throws IOException {
+
+        LockRecord first = TestUtility.createRecord(OWNER, "world", -10, 64, 20);
+        LockRecord second = TestUtility.createRecord(OWNER, "world", 5, 70, -5);
+        LockRecord third = TestUtility.createRecord(OWNER, "world", 100, 1, 100);
+
+        LockDataWriter writer = new LockDataWriter(new OwnerFileLayout(folder, false));
+        writer.logAdd(first);
+        writer.logAdd(second);
+        writer.logRemove(first);
+        writer.logAdd(third);
+        assertTrue(writer.shutdown(10, logger));
+
+        // 最後のレコードの途中で停止したように、末尾を切り詰める
+        File log = new File(folder, "locks-0.wal");
+        assertTrue(log.exists());
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        LockDataYamlStore store = createStore();
+        assertEquals(3, new LockDataWriter(new OwnerFileLayout(folder, false)).replay(store, logger));
+
+        List<LockRecord> records = store.loadWorld("world");
+        assertEquals(1, records.size());
+        TestUtility.assertRecordEquals(second, records.get(0));
+    }
+
+    /**
+     * 復元の後は、残っているログに追記せず、次の番号のログへ追記すること
+     */
+    @Test
+    public void testReplayUsesNextLog() {
+
+        LockDataWriter writer = new LockDataWriter(new OwnerFileLayout(folder, false));
+        writer.logAdd(TestUtility.createRecord(OWNER, "world", 1, 2, 3));
+        assertTrue(writer.shutdown(10, logger));
+
+        LockDataWriter next = new LockDataWriter(new OwnerFileLayout(folder, false));
+        next.replay(createStore(), logger);
+        next.logAdd(TestUtility.createRecord(OWNER, "world", 4, 5, 6));
+        assertTrue(next.shutdown(10, logger));
+
+        assertTrue(new File(folder, "locks-0.wal").exists());
+        assertTrue(new File(folder, "locks-1.wal").exists());
+
+        LockDataYamlStore store = createStore();
+        assertEquals(2, new LockDataWriter(new OwnerFileLayout(folder, false)).replay(store, logger));
+        assertEquals(2, store.loadWorld("world").size());
+    }
+
+    /**
+     * プレイヤーファイルの書き込みに失敗した場合は、書き直せるまでログが削除されないこと
+     */
+    @Test
+    public void testCheckpointKeepsLogsAfterFailure() {
+
+        OwnerFileLayout layout = new OwnerFileLayout(folder, false);
+        LockRecord record = TestUtility.createRecord(OWNER, "world", 1, 2, 3);
+        ArrayList<LockRecord> records = new ArrayList<LockRecord>();
+        records.add(record);
+
+        // 一時ファイルの位置にフォルダを置いて、書き込みを失敗させる
+        File blocker = new File(folder, layout.getFile(OWNER).getName() + ".tmp");
+        assertTrue(blocker.mkdir());
+
+        LockDataWriter writer = new LockDataWriter(layout);
+        writer.logAdd(record);
+        writer.write(OWNER, "owner", records);
+        writer.checkpoint();
+        writer.waitForIdle();
+        assertTrue(new File(folder, "locks-0.wal").exists());
+
+        // 書き直せた後のチェックポイントで、残していたログも削除される
+        assertTrue(blocker.delete());
+        writer.write(OWNER, "owner", records);
+        writer.checkpoint();
+        writer.waitForIdle();
+        assertFalse(new File(folder, "locks-0.wal").exists());
+        assertTrue(layout.getFile(OWNER).exists());
+
+        assertTrue(writer.shutdown(10, logger));
+    }
+
+    /**
+     * 復元先のストアを作成する
+     * @return ストア
+     */
+    private LockDataYamlStore createStore() {
+        return new LockDataYamlStore(folder, new OwnerNameCache(folder, 10), false);
+    }
+}
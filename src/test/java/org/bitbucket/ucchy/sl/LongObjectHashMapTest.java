@@ -0,0 +1,181 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * LongObjectHashMap のテスト
+ * @author ucchy
+ */
+public class LongObjectHashMapTest {
+
+    /** 初期容量の配列のマスク */
+    private static final int MASK = 15;
+
+    /**
+     * 格納、取得、上書き、削除ができること
+     */
+    @Test
+    public void testPutGetRemove() {
+
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        assertNull(map.put(1L, "a"));
+        assertNull(map.put(-1L, "b"));
+        assertNull(map.put(0L, "c"));
+        assertNull(map.put(Long.MIN_VALUE, "d"));
+        assertEquals(4, map.size());
+
+        assertEquals("a", map.put(1L, "e"));
+        assertEquals(4, map.size());
+        assertEquals("e", map.get(1L));
+        assertEquals("b", map.get(-1L));
+        assertEquals("c", map.get(0L));
+        assertEquals("d", map.get(Long.MIN_VALUE));
+        assertNull(map.get(2L));
+
+        assertEquals("b", map.remove(-1L));
+        assertNull(map.remove(-1L));
+        assertFalse(map.containsKey(-1L));
+        assertEquals(3, map.size());
+    }
+
+    /**
+     * 配列を再確保しても、全ての要素が取得できること
+     */
+    @Test
+    public void testRehash() {
+
+        LongObjectHashMap<Long> map = new LongObjectHashMap<Long>();
+        for ( long i=-500; i<500; i++ ) {
+            map.put(i * 31, i);
+        }
+        assertEquals(1000, map.size());
+        for ( long i=-500; i<500; i++ ) {
+            assertEquals(Long.valueOf(i), map.get(i * 31));
+        }
+    }
+
+    /**
+     * 衝突している要素を削除した後も、前へ詰め直された要素が取得できること
+     */
+    @Test
+    public void testBackwardShiftDeletion() {
+
+        // 同じ位置に入る3つのキーと、その次の位置に入るキー
+        long[] same = findKeys(3, 0, 1);
+        long next = findKeys(1, 1, 2)[0];
+
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        map.put(same[0], "a");
+        map.put(same[1], "b");
+        map.put(same[2], "c");
+        map.put(next, "d");
+
+        assertEquals("a", map.remove(same[0]));
+        assertNull(map.get(same[0]));
+        assertEquals("b", map.get(same[1]));
+        assertEquals("c", map.get(same[2]));
+        assertEquals("d", map.get(next));
+
+        assertEquals("c", map.remove(same[2]));
+        assertEquals("b", map.get(same[1]));
+        assertEquals("d", map.get(next));
+        assertEquals(2, map.size());
+    }
+
+    /**
+     * 配列の末尾から先頭へ折り返している要素を削除しても、残りの要素が取得できること
+     */
+    @Test
+    public void testBackwardShiftDeletionWrapped() {
+
+        long[] last = findKeys(3, MASK, MASK + 1);
+
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        map.put(last[0], "a");
+        map.put(last[1], "b");
+        map.put(last[2], "c");
+
+        assertEquals("b", map.remove(last[1]));
+        assertEquals("a", map.get(last[0]));
+        assertEquals("c", map.get(last[2]));
+
+        assertEquals("a", map.remove(last[0]));
+        assertEquals("c", map.get(last[2]));
+        assertEquals(1, map.size());
+    }
+
+    /**
+     * カーソルの読み出しの合間に削除しても、残っている要素を読み飛ばさないこと
+     */
+    @Test
+    public void testCursorWithRemoval() {
+
+        LongObjectHashMap<Long> map = new LongObjectHashMap<Long>();
+        for ( long i=0; i<1000; i++ ) {
+            map.put(i, i);
+        }
+
+        HashSet<Long> read = new HashSet<Long>();
+        LongObjectHashMap<Long>.ValueCursor cursor = map.cursor();
+        List<Long> batch = new ArrayList<Long>();
+        boolean more = true;
+        long removing = 0;
+        while ( more ) {
+            batch.clear();
+            more = cursor.next(10, batch);
+            read.addAll(batch);
+
+            // 読み出しの合間に、偶数のキーを少しずつ削除する
+            for ( int i=0; i<10 && removing < 1000; i++, removing += 2 ) {
+                map.remove(removing);
+            }
+        }
+
+        for ( long i=1; i<1000; i+=2 ) {
+            assertTrue(read.contains(i));
+        }
+    }
+
+    /**
+     * 指定した範囲の位置に入るキーを探す
+     * @param count 探す数
+     * @param from 位置の下限
+     * @param to 位置の上限（含まない）
+     * @return キー
+     */
+    private static long[] findKeys(int count, int from, int to) {
+        long[] keys = new long[count];
+        int found = 0;
+        for ( long key=0; found<count; key++ ) {
+            int index = hash(key) & MASK;
+            if ( from <= index && index < to ) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * LongObjectHashMap と同じハッシュ値を計算する
+     * @param key キー
+     * @return ハッシュ値
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2017
+ */
+package org.bitbucket.ucchy.sl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * テスト用のユーティリティクラス
+ * @author ucchy
+ */
+public class TestUtility {
+
+    /**
+     * 空の一時フォルダを作成する
+     * @return 作成したフォルダ
+     * @throws IOException
+     */
+    public static File createTempFolder() throws IOException {
+        File folder = File.createTempFile("standlock", "");
+        if ( !folder.delete() || !folder.mkdir() ) {
+            throw new IOException("Could not create " + folder.getPath() + ".");
+        }
+        return folder;
+    }
+
+    /**
+     * フォルダを、中身ごと削除する
+     * @param file 削除するフォルダ
+     */
+    public static void deleteFolder(File file) {
+        if ( file == null ) return;
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                deleteFolder(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * テスト用のレコードを作成する
+     * @param owner オーナー
+     * @param world ワールド名
+     * @param x X座標
+     * @param y Y座標
+     * @param z Z座標
+     * @return レコード
+     */
+    public static LockRecord createRecord(UUID owner, String world, int x, int y, int z) {
+        LockRecord record = new LockRecord();
+        record.owner = owner;
+        record.world = world;
+        record.x = x;
+        record.y = y;
+        record.z = z;
+        record.time = 1500000000000L + x;
+        return record;
+    }
+
+    /**
+     * 2つのレコードの内容が同じであることを確認する
+     * @param expected 期待するレコード
+     * @param actual 実際のレコード
+     */
+    public static void assertRecordEquals(LockRecord expected, LockRecord actual) {
+        assertEquals(expected.owner, actual.owner);
+        assertEquals(expected.world, actual.world);
+        assertEquals(expected.x, actual.x);
+        assertEquals(expected.y, actual.y);
+        assertEquals(expected.z, actual.z);
+        assertEquals(expected.time, actual.time);
+        assertEquals(expected.entity, actual.entity);
+    }
+}